@@ -0,0 +1,200 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks logins on a fixed pool of worker threads, so that slow password
+ * hashes never run on a connection's I/O thread. Logins wait in a bounded
+ * queue; when the queue is full, the client is told that the server is busy
+ * and asked to try again rather than piling up more work.
+ */
+public class Authenticator {
+	public static final int LOGIN_TIMEOUT = 30 * 1000; // Milliseconds
+
+	private static final String TRY_AGAIN = " Please try again!\n\n";
+
+	/**
+	 * Outcome of a login, with what to tell the client if it failed.
+	 */
+	public static class Result {
+		private boolean authenticated;
+		private boolean retryAllowed;
+		private String message;
+
+		private Result(boolean authenticated, boolean retryAllowed,
+				String message) {
+			this.authenticated = authenticated;
+			this.retryAllowed = retryAllowed;
+			this.message = message;
+		}
+
+		/**
+		 * @return whether the user is now logged in
+		 */
+		public boolean isAuthenticated() {
+			return authenticated;
+		}
+
+		/**
+		 * @return whether the client may try to log in again on the same
+		 *         connection
+		 */
+		public boolean isRetryAllowed() {
+			return retryAllowed;
+		}
+
+		/**
+		 * @return why the login failed, for the client
+		 */
+		public String getMessage() {
+			return message;
+		}
+	}
+
+	/**
+	 * Receives the {@link Result} of a login.
+	 */
+	public interface Callback {
+
+		/**
+		 * Called on an authentication worker thread once the login has been
+		 * checked, or failed to be checked, or right away if the server is
+		 * too busy to check it.
+		 *
+		 * @param result
+		 */
+		public void completed(Result result);
+	}
+
+	private Server server;
+	private ThreadPoolExecutor workers;
+
+	/**
+	 * @param server
+	 * @param threads
+	 *            number of worker threads
+	 * @param queueCapacity
+	 *            number of logins waiting for a worker at most
+	 */
+	public Authenticator(Server server, int threads, int queueCapacity) {
+		this.server = server;
+
+		final AtomicInteger count = new AtomicInteger(0);
+		this.workers = new ThreadPoolExecutor(threads, threads, 0L,
+				TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+						queueCapacity), new ThreadFactory() {
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "auth-worker-"
+								+ count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * Checks a login on a worker thread. Never blocks.
+	 *
+	 * @param username
+	 * @param password
+	 * @param connection
+	 *            {@link Connection} the client is logging in on
+	 * @param callback
+	 *            receives the {@link Result}
+	 */
+	public void authenticate(final String username, final String password,
+			final Connection connection, final Callback callback) {
+		try {
+			workers.execute(new Runnable() {
+				public void run() {
+					Result result;
+					try {
+						result = check(username, password, connection);
+					} catch (RuntimeException e) {
+						// The client must hear back either way
+						System.out.println("could not check login of "
+								+ username + ": " + e);
+						result = new Result(false, true,
+								"Sorry! The server could not check your login."
+										+ TRY_AGAIN);
+					}
+					callback.completed(result);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			server.getMetrics().loginRejected();
+			callback.completed(new Result(false, true,
+					"Sorry! The server is busy." + TRY_AGAIN));
+		}
+	}
+
+	/**
+	 * Checks a login on a worker thread and waits for the {@link Result}. For
+	 * connections that have a thread of their own to block. Gives up after
+	 * {@link #LOGIN_TIMEOUT} milliseconds with a <code>Result</code> that ends
+	 * the connection, so a login that completes later can't be left behind
+	 * on a connection that is still in use.
+	 *
+	 * @param username
+	 * @param password
+	 * @param connection
+	 *            {@link Connection} the client is logging in on
+	 * @return <code>Result</code>
+	 * @throws InterruptedException
+	 */
+	public Result authenticate(String username, String password,
+			Connection connection) throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(1);
+		final Result[] result = new Result[1];
+		authenticate(username, password, connection, new Callback() {
+			public void completed(Result completed) {
+				result[0] = completed;
+				done.countDown();
+			}
+		});
+		if (!done.await(LOGIN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+			System.out.println("gave up checking login of " + username);
+			return new Result(false, false,
+					"Sorry! The server took too long to check your login."
+							+ Utilities.EXIT);
+		}
+		return result[0];
+	}
+
+	/**
+	 * @return number of logins waiting for a worker
+	 */
+	public int getQueuedLogins() {
+		return workers.getQueue().size();
+	}
+
+	private Result check(String username, String password,
+			Connection connection) {
+		try {
+			if (server.authenticateUser(username, password, connection)) {
+				// User authenticated!
+				return new Result(true, false, null);
+			}
+
+			// User not authenticated
+			return new Result(false, true,
+					"Sorry! Incorrect username and password combination."
+							+ TRY_AGAIN);
+
+		} catch (User.UserAlreadyLoggedInException e) {
+			return new Result(false, true, username + " is already logged in!"
+					+ TRY_AGAIN);
+		} catch (User.IpAddressBlockedException e) {
+			return new Result(false, false, "Sorry! " + username
+					+ " has been blocked from ip address "
+					+ connection.getIpAddress() + ".\nPlease wait "
+					+ e.getSecondsLeft()
+					+ " seconds before attempting to login again"
+					+ Utilities.EXIT);
+		}
+	}
+}
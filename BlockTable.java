@@ -0,0 +1,416 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Who has blocked whom, by {@link User} id. Every user's block list is kept
+ * as an {@link IdSet}, along with the reverse: the set of users who have
+ * blocked them. Sending a message looks up the set of users who have blocked
+ * the sender once, and then checks every recipient against it.
+ *
+ * Block lists are saved to a file whenever they change, so that they survive
+ * restarts. Ids are only dense for the users loaded since the server started,
+ * so the file has a table of the usernames involved, and the block lists
+ * refer to positions in that table as sorted <code>int</code> arrays.
+ *
+ * The file is written by a thread of its own, so blocking never waits for the
+ * disk. Changes made while the file is being written are saved together by
+ * the next write.
+ */
+public class BlockTable implements Runnable {
+	private static final int MAGIC = 0x424c4b53; // "BLKS"
+	private static final int VERSION = 1;
+
+	private File file;
+	private UserStore users;
+
+	/**
+	 * @key id of a user
+	 * @value ids of the users they have blocked
+	 */
+	private ConcurrentHashMap<Integer, IdSet> blocked;
+
+	/**
+	 * @key id of a user
+	 * @value ids of the users who have blocked them
+	 */
+	private ConcurrentHashMap<Integer, IdSet> blockers;
+
+	private Thread thread;
+
+	/**
+	 * Number of changes made to the block lists
+	 */
+	private AtomicLong changes;
+
+	/**
+	 * Number of changes that have been saved, guarded by <code>saved</code>
+	 */
+	private long savedChanges;
+	private Object saved;
+
+	/**
+	 * Loads the block lists saved in a file, if any. Call {@link #start()} to
+	 * start saving changes.
+	 *
+	 * @param path
+	 * @param users
+	 *            the user database
+	 * @throws IOException
+	 */
+	public BlockTable(String path, UserStore users) throws IOException {
+		this.file = new File(path);
+		this.users = users;
+		this.blocked = new ConcurrentHashMap<Integer, IdSet>();
+		this.blockers = new ConcurrentHashMap<Integer, IdSet>();
+		this.thread = new Thread(this, "block-writer");
+		this.thread.setDaemon(true);
+		this.changes = new AtomicLong(0);
+		this.savedChanges = 0;
+		this.saved = new Object();
+
+		if (file.isFile()) {
+			load();
+		}
+	}
+
+	/**
+	 * Starts the thread that saves the block lists.
+	 */
+	public void start() {
+		thread.start();
+	}
+
+	/**
+	 * Blocks a user from sending messages to another.
+	 *
+	 * @param blocker
+	 *            <code>User</code> who doesn't want the messages
+	 * @param user
+	 *            <code>User</code> to block
+	 * @return true if the user was blocked and false if they already were
+	 */
+	public synchronized boolean block(User blocker, User user) {
+		IdSet before = get(blocked, blocker.getId());
+		IdSet after = before.with(user.getId());
+		if (after == before) {
+			return false;
+		}
+		blocked.put(blocker.getId(), after);
+		blockers.put(user.getId(),
+				get(blockers, user.getId()).with(blocker.getId()));
+		changed();
+		return true;
+	}
+
+	/**
+	 * Lets a blocked user send messages again.
+	 *
+	 * @param blocker
+	 * @param user
+	 * @return true if the user was unblocked and false if they weren't
+	 *         blocked to begin with
+	 */
+	public synchronized boolean unblock(User blocker, User user) {
+		IdSet before = get(blocked, blocker.getId());
+		IdSet after = before.without(user.getId());
+		if (after == before) {
+			return false;
+		}
+		put(blocked, blocker.getId(), after);
+		put(blockers, user.getId(),
+				get(blockers, user.getId()).without(blocker.getId()));
+		changed();
+		return true;
+	}
+
+	/**
+	 * @param user
+	 * @return ids of the users who have blocked a user
+	 */
+	public IdSet getBlockers(User user) {
+		return get(blockers, user.getId());
+	}
+
+	/**
+	 * @param blocker
+	 * @param user
+	 * @return whether a user has been blocked by another
+	 */
+	public boolean hasBlocked(User blocker, User user) {
+		return getBlockers(user).contains(blocker.getId());
+	}
+
+	/**
+	 * Waits until every change made so far has been saved.
+	 *
+	 * @param timeout
+	 *            milliseconds to wait at most
+	 * @return false if the time ran out first
+	 * @throws InterruptedException
+	 */
+	public boolean awaitSaved(long timeout) throws InterruptedException {
+		long target = changes.get();
+		long deadline = System.currentTimeMillis() + timeout;
+		synchronized (saved) {
+			while (savedChanges < target) {
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0) {
+					return false;
+				}
+				saved.wait(left);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Tells the writer thread that the block lists have changed.
+	 */
+	private void changed() {
+		changes.incrementAndGet();
+		LockSupport.unpark(thread);
+	}
+
+	public void run() {
+		long written = 0;
+		while (true) {
+			long target = changes.get();
+			if (target == written) {
+				LockSupport.park(this);
+				continue;
+			}
+
+			try {
+				save();
+			} catch (RuntimeException e) {
+				// Don't let one bad write take the writer down
+				System.out.println("could not save block lists to "
+						+ file.getPath() + ": " + e);
+			}
+			written = target;
+			synchronized (saved) {
+				savedChanges = written;
+				saved.notifyAll();
+			}
+		}
+	}
+
+	private static IdSet get(Map<Integer, IdSet> sets, int id) {
+		IdSet set = sets.get(id);
+		return set == null ? IdSet.EMPTY : set;
+	}
+
+	private static void put(Map<Integer, IdSet> sets, int id, IdSet set) {
+		if (set.isEmpty()) {
+			sets.remove(id);
+		} else {
+			sets.put(id, set);
+		}
+	}
+
+	/**
+	 * Writes every block list to a temporary file and replaces the file with
+	 * it. Blocking is rare, so the whole table is written every time. Only
+	 * called by the writer thread.
+	 */
+	private void save() {
+		// The lists may change while they are written, so write a copy. Each
+		// IdSet never changes.
+		HashMap<Integer, IdSet> snapshot = new HashMap<Integer, IdSet>(
+				blocked);
+
+		// Number the users involved in the order they come up
+		HashMap<Integer, Integer> positions = new HashMap<Integer, Integer>();
+		List<String> usernames = new ArrayList<String>();
+		for (Map.Entry<Integer, IdSet> entry : snapshot.entrySet()) {
+			position(entry.getKey(), positions, usernames);
+			for (int id : entry.getValue().toArray()) {
+				position(id, positions, usernames);
+			}
+		}
+
+		File temporary = new File(file.getPath() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(temporary)));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(usernames.size());
+				for (String username : usernames) {
+					out.writeUTF(username);
+				}
+				out.writeInt(snapshot.size());
+				for (Map.Entry<Integer, IdSet> entry : snapshot.entrySet()) {
+					int[] ids = entry.getValue().toArray();
+					int[] list = new int[ids.length];
+					for (int i = 0; i < ids.length; i++) {
+						list[i] = positions.get(ids[i]);
+					}
+					Arrays.sort(list);
+
+					out.writeInt(positions.get(entry.getKey()));
+					out.writeInt(list.length);
+					for (int position : list) {
+						out.writeInt(position);
+					}
+				}
+			} finally {
+				out.close();
+			}
+			if (!temporary.renameTo(file)) {
+				throw new IOException("could not rename " + temporary);
+			}
+		} catch (IOException e) {
+			System.out.println("could not save block lists to "
+					+ file.getPath() + ": " + e.getMessage());
+		}
+	}
+
+	private void position(int id, HashMap<Integer, Integer> positions,
+			List<String> usernames) {
+		if (!positions.containsKey(id)) {
+			positions.put(id, usernames.size());
+			usernames.add(users.get(id).getUsername());
+		}
+	}
+
+	/**
+	 * Reads the block lists saved in the file. Users who no longer exist are
+	 * left out.
+	 *
+	 * @throws IOException
+	 */
+	private void load() throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException(file.getPath()
+						+ " is not a block list file");
+			}
+
+			// Look up the users involved, which gives them ids. Every username
+			// takes two bytes at least.
+			int size = in.readInt();
+			if (size < 0 || size > file.length() / 2) {
+				throw new IOException(file.getPath()
+						+ " is not a block list file");
+			}
+			User[] table = new User[size];
+			for (int i = 0; i < table.length; i++) {
+				table[i] = users.get(in.readUTF());
+			}
+
+			HashMap<Integer, List<Integer>> blockedLists = new HashMap<Integer, List<Integer>>();
+			HashMap<Integer, List<Integer>> blockerLists = new HashMap<Integer, List<Integer>>();
+			// Nobody is in the table twice, so there can't be more lists, or
+			// users in a list, than users in the table
+			int count = readCount(in, table);
+			for (int i = 0; i < count; i++) {
+				User blocker = table[readIndex(in, table)];
+				int length = readCount(in, table);
+				for (int j = 0; j < length; j++) {
+					User user = table[readIndex(in, table)];
+					if (blocker != null && user != null) {
+						add(blockedLists, blocker.getId(), user.getId());
+						add(blockerLists, user.getId(), blocker.getId());
+					}
+				}
+			}
+
+			for (Map.Entry<Integer, List<Integer>> entry : blockedLists
+					.entrySet()) {
+				blocked.put(entry.getKey(), toIdSet(entry.getValue()));
+			}
+			for (Map.Entry<Integer, List<Integer>> entry : blockerLists
+					.entrySet()) {
+				blockers.put(entry.getKey(), toIdSet(entry.getValue()));
+			}
+		} catch (EOFException e) {
+			// Cut short
+			throw new IOException(file.getPath() + " is not a block list file");
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @param in
+	 * @param table
+	 *            users in the file
+	 * @return a number of lists or users read from the file
+	 * @throws IOException
+	 *             if there are more than users in the table
+	 */
+	private int readCount(DataInputStream in, User[] table)
+			throws IOException {
+		int count = in.readInt();
+		if (count < 0 || count > table.length) {
+			throw new IOException(file.getPath() + " is not a block list file");
+		}
+		return count;
+	}
+
+	/**
+	 * @param in
+	 * @param table
+	 *            users in the file
+	 * @return position of a user in the table read from the file
+	 * @throws IOException
+	 *             if it is not in the table
+	 */
+	private int readIndex(DataInputStream in, User[] table)
+			throws IOException {
+		int index = in.readInt();
+		if (index < 0 || index >= table.length) {
+			throw new IOException(file.getPath() + " is not a block list file");
+		}
+		return index;
+	}
+
+	private static void add(HashMap<Integer, List<Integer>> lists, int key,
+			int id) {
+		List<Integer> list = lists.get(key);
+		if (list == null) {
+			list = new ArrayList<Integer>();
+			lists.put(key, list);
+		}
+		list.add(id);
+	}
+
+	/**
+	 * @param ids
+	 * @return an {@link IdSet} of some ids, in any order and possibly repeated
+	 */
+	private static IdSet toIdSet(List<Integer> ids) {
+		int[] sorted = new int[ids.size()];
+		for (int i = 0; i < sorted.length; i++) {
+			sorted[i] = ids.get(i);
+		}
+		Arrays.sort(sorted);
+
+		int count = 0;
+		for (int i = 0; i < sorted.length; i++) {
+			if (count == 0 || sorted[count - 1] != sorted[i]) {
+				sorted[count++] = sorted[i];
+			}
+		}
+		return IdSet.of(Arrays.copyOf(sorted, count));
+	}
+}
@@ -7,22 +7,28 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.swing.BorderFactory;
-import javax.swing.ImageIcon;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTextField;
 import javax.swing.JTextPane;
+import javax.swing.SwingUtilities;
+import javax.swing.text.AttributeSet;
 import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
 import javax.swing.text.SimpleAttributeSet;
 import javax.swing.text.Style;
 import javax.swing.text.StyleConstants;
@@ -38,35 +44,98 @@ public class Client {
 	private static final Font GUI_FONT = new Font("Consolas", Font.BOLD, 12);
 
 	private static final String EMOTICON_FOLDER_PATH = "emoticons/";
-	private static final String[] EMOTICONS = { ":D", "XD", ":)", ";)", "-.-",
-			">.<", "o.o", ":(" };
+
+	private static final int SCROLLBACK = 1000; // Lines
+	private static final int SCROLLBACK_SLACK = 100; // Lines
+
+	/**
+	 * Text waiting to be printed to the output box.
+	 */
+	private static class Output {
+		private String message;
+		private AttributeSet style;
+
+		private Output(String message, AttributeSet style) {
+			this.message = message;
+			this.style = style;
+		}
+	}
 
 	private JTextPane outputBox;
 	private StyledDocument outputBoxDoc;
+	private Style emoticonStyle;
+	private Emoticons emoticons;
 	private JTextField inputBox;
 	private JLabel prompt;
-	private boolean printing = false;
+
+	/**
+	 * Text printed by any thread, which the event dispatch thread adds to the
+	 * output box a batch at a time
+	 */
+	private ConcurrentLinkedQueue<Output> output = new ConcurrentLinkedQueue<Output>();
+	private AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+	/**
+	 * Prints everything queued so far. Clears the flag first, so text queued
+	 * while it runs schedules it again rather than being left behind.
+	 */
+	private Runnable flush = new Runnable() {
+		public void run() {
+			flushScheduled.set(false);
+			flushOutput();
+		}
+	};
 
 	private Socket socket;
-	private BufferedReader in;
-	private PrintWriter out;
+	private FrameReader in;
+	private OutputStream out;
+
+	/**
+	 * Whether the binary framing is used to talk to the server. Guarded by
+	 * <code>out</code>.
+	 */
+	private boolean binary = false;
 
 	public Client(String ipAddress, int portNumber) {
+		// Load the emoticons, or go without them
+		try {
+			emoticons = Emoticons.load(new File(EMOTICON_FOLDER_PATH));
+		} catch (IOException e) {
+			System.out.println("could not load emoticons: " + e.getMessage());
+			emoticons = new Emoticons();
+		}
+
 		try {
 			socket = new Socket(ipAddress, portNumber);
-			in = new BufferedReader(new InputStreamReader(
-					socket.getInputStream()));
-			out = new PrintWriter(socket.getOutputStream(), true);
+			in = new FrameReader(socket.getInputStream());
+			out = new BufferedOutputStream(socket.getOutputStream());
 
 			// Set up the GUI
-			setupGUI();
+			try {
+				SwingUtilities.invokeAndWait(new Runnable() {
+					public void run() {
+						setupGUI();
+					}
+				});
+			} catch (Exception e) {
+				Utilities.error(e.getMessage());
+			}
 
 			// Communicate with server
-			String fromServer;
-			while ((fromServer = in.readLine()) != null) {
-				// Decode message from server
-				String[] fromServerArr = Utilities.decodeMessage(fromServer);
-				fromServer = fromServerArr[1];
+			String[] fromServerArr;
+			while ((fromServerArr = in.readMessage()) != null) {
+				// Accept the binary framing if the server offers it. The
+				// server sends the prompt again using the binary framing.
+				if (in.isBinaryOffered()) {
+					synchronized (out) {
+						send(Utilities.BINARY);
+						binary = true;
+						in.setBinary(true);
+					}
+					continue;
+				}
+
+				String fromServer = fromServerArr[1];
 
 				// Force exit if signaled
 				if (fromServer.equals(Utilities.FORCE_EXIT)) {
@@ -74,7 +143,7 @@ public class Client {
 				}
 
 				// Set prompt
-				prompt.setText(fromServerArr[0] + ":");
+				setPrompt(fromServerArr[0] + ":");
 
 				// Exit if signaled by server
 				if (fromServer.endsWith(Utilities.EXIT)) {
@@ -85,11 +154,15 @@ public class Client {
 
 					// Disable text box (basically exiting without closing
 					// window)
-					inputBox.setEditable(false);
-					inputBox.setBackground(GUI_BG_COLOR);
-					inputBox.setCaretColor(GUI_BG_COLOR);
-					prompt.setText("");
-					prompt.getParent().setBackground(GUI_BG_COLOR);
+					SwingUtilities.invokeLater(new Runnable() {
+						public void run() {
+							inputBox.setEditable(false);
+							inputBox.setBackground(GUI_BG_COLOR);
+							inputBox.setCaretColor(GUI_BG_COLOR);
+							prompt.setText("");
+							prompt.getParent().setBackground(GUI_BG_COLOR);
+						}
+					});
 
 					// Start exiting
 					for (int i = 0; i < COUNTDOWN; i++) {
@@ -138,6 +211,7 @@ public class Client {
 		outputBox.setEditable(false);
 		outputBox.setFont(GUI_FONT);
 		outputBoxDoc = outputBox.getStyledDocument();
+		emoticonStyle = outputBoxDoc.addStyle("emoticonStyle", null);
 		JScrollPane scrollPane = new JScrollPane(outputBox);
 		scrollPane.setBorder(BorderFactory.createEmptyBorder());
 		contentPane.add(scrollPane, BorderLayout.CENTER);
@@ -173,7 +247,7 @@ public class Client {
 				}
 
 				inputBox.setText("");
-				out.println(text);
+				send(text);
 
 				// Style input text
 				SimpleAttributeSet inputStyle = new SimpleAttributeSet();
@@ -194,7 +268,7 @@ public class Client {
 
 			public void windowClosing(WindowEvent e) {
 				// Send message to server that we want to close the client
-				out.println(Utilities.FORCE_EXIT);
+				send(Utilities.FORCE_EXIT);
 			}
 		});
 
@@ -203,101 +277,153 @@ public class Client {
 	}
 
 	/**
-	 * Prints a message in a defined style to the output box.
+	 * Sends a line to the server.
+	 * 
+	 * @param line
+	 */
+	private void send(String line) {
+		synchronized (out) {
+			try {
+				Utilities.writeLine(out, line, binary);
+				out.flush();
+			} catch (IOException e) {
+				Utilities.error(e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Sets the prompt from any thread.
+	 * 
+	 * @param text
+	 */
+	private void setPrompt(final String text) {
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				prompt.setText(text);
+			}
+		});
+	}
+
+	/**
+	 * Prints a message in a defined style to the output box. May be called
+	 * from any thread and never blocks: the message is queued, and the event
+	 * dispatch thread prints whatever has piled up at once.
 	 * 
 	 * @param message
 	 * @param style
 	 */
 	private void print(String message, SimpleAttributeSet style) {
+		output.add(new Output(message, style));
+		if (flushScheduled.compareAndSet(false, true)) {
+			SwingUtilities.invokeLater(flush);
+		}
+	}
 
-		// Wait until printing to output box is done before proceeding
-		while (printing) {
-			try {
-				Thread.sleep(10);
-			} catch (InterruptedException e) {
-				Utilities.error(e.getMessage());
-			}
+	/**
+	 * Prints everything that has been queued to the output box, trims it to
+	 * the last <code>SCROLLBACK</code> lines and scrolls to the bottom once.
+	 * Runs on the event dispatch thread.
+	 */
+	private void flushOutput() {
+		List<Output> batch = new ArrayList<Output>();
+		Output next;
+		while ((next = output.poll()) != null) {
+			batch.add(next);
+		}
+		if (batch.isEmpty()) {
+			return;
 		}
 
-		// Print
-		printing = true;
-		try {
-			// Check if there is an emoticon
-			int[] emoticon = findEmoticon(message);
-			if (emoticon == null) {
-				// No emoticons, so print normally
-				outputBoxDoc.insertString(outputBoxDoc.getLength(), message,
-						style);
-			} else {
-				// There are emoticons
+		// Skip whatever would be trimmed right away
+		int first = batch.size();
+		int lines = 0;
+		while (first > 0 && lines <= SCROLLBACK) {
+			first--;
+			lines += countLines(batch.get(first).message);
+		}
 
-				String temp = message;
+		try {
+			// Text in the same style is inserted at once
+			StringBuilder text = new StringBuilder();
+			AttributeSet textStyle = null;
+			for (int i = first; i < batch.size(); i++) {
+				Output print = batch.get(i);
+				if (print.style != textStyle) {
+					insert(text, textStyle);
+					textStyle = print.style;
+				}
 
-				Style emoticonStyle = ((StyledDocument) outputBox.getDocument())
-						.addStyle("emoticonStyle", null);
+				// Look for emoticons in one pass over the message
+				String message = print.message;
+				int start = 0; // Of the text not printed yet
+				int offset = 0;
+				while (offset < message.length()) {
+					int emoticon = emoticons.match(message, offset);
+					if (emoticon < 0) {
+						offset++;
+						continue;
+					}
 
-				while (emoticon != null) {
 					// Print up to emoticon
-					outputBoxDoc.insertString(outputBoxDoc.getLength(),
-							temp.substring(0, emoticon[0]), style);
+					text.append(message, start, offset);
+					insert(text, textStyle);
 
 					// Print emoticon
-					StyleConstants.setIcon(emoticonStyle, new ImageIcon(
-							EMOTICON_FOLDER_PATH + emoticon[1] + ".png"));
+					String emoticonText = emoticons.getText(emoticon);
+					StyleConstants.setIcon(emoticonStyle, emoticons
+							.getIcon(emoticon));
 					outputBoxDoc.insertString(outputBoxDoc.getLength(),
-							EMOTICONS[emoticon[1]], emoticonStyle);
+							emoticonText, emoticonStyle);
 
-					// Set temp to the rest of the message
-					temp = temp.substring(emoticon[0]
-							+ EMOTICONS[emoticon[1]].length());
-
-					// Check again for emoticons
-					emoticon = findEmoticon(temp);
+					offset += emoticonText.length();
+					start = offset;
 				}
-
-				// No emoticons, so print normally
-				outputBoxDoc
-						.insertString(outputBoxDoc.getLength(), temp, style);
+				text.append(message, start, message.length());
+			}
+			insert(text, textStyle);
+
+			// Trim old lines, a few at a time rather than after every line
+			Element root = outputBoxDoc.getDefaultRootElement();
+			int count = root.getElementCount();
+			if (count > SCROLLBACK + SCROLLBACK_SLACK) {
+				outputBoxDoc.remove(0, root.getElement(count - SCROLLBACK - 1)
+						.getEndOffset());
 			}
 		} catch (BadLocationException e) {
 			Utilities.error(e.getMessage());
 		}
 
 		// Scroll to bottom
-		outputBox.setCaretPosition(outputBox.getDocument().getLength());
-
-		printing = false;
+		outputBox.setCaretPosition(outputBoxDoc.getLength());
 	}
 
 	/**
-	 * Finds the first instance of an emoticon in a string
+	 * Appends text to the output box and clears it.
 	 * 
-	 * @param str
-	 *            string to find emoticon in
-	 * @return an integer array { index of emoticon in string, index of emoticon
-	 *         in <code>EMOTICONS</code> array } or null if there are no
-	 *         emoticons
+	 * @param text
+	 * @param style
+	 * @throws BadLocationException
 	 */
-	private int[] findEmoticon(String str) {
-		int firstIndex = -1;
-		int emoticon = -1;
-		for (int i = 0; i < EMOTICONS.length; i++) {
-			int index = str.indexOf(EMOTICONS[i]);
-
-			if (index >= 0) {
-				// Found an emoticon
-				if (firstIndex == -1 || index < firstIndex) {
-					firstIndex = index;
-					emoticon = i;
-				}
-			}
+	private void insert(StringBuilder text, AttributeSet style)
+			throws BadLocationException {
+		if (text.length() > 0) {
+			outputBoxDoc.insertString(outputBoxDoc.getLength(), text
+					.toString(), style);
+			text.setLength(0);
 		}
+	}
 
-		if (emoticon == -1) {
-			return null;
-		} else {
-			return new int[] { firstIndex, emoticon };
+	/**
+	 * @param str
+	 * @return number of line breaks in a string
+	 */
+	private static int countLines(String str) {
+		int lines = 0;
+		for (int i = str.indexOf('\n'); i >= 0; i = str.indexOf('\n', i + 1)) {
+			lines++;
 		}
+		return lines;
 	}
 
 	public static void main(String[] args) {
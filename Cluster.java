@@ -0,0 +1,352 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Lets several {@link Server}s share one set of users. Every node tells the
+ * others who logs in and out on it, and keeps a directory of the users who
+ * are online on other nodes, so it can tell where to forward a message.
+ * Blocking and unblocking is sent to every node too, so that every node can
+ * check whether a message may be sent without asking the others.
+ *
+ * A message to a user who is offline everywhere is saved on the node of the
+ * sender. When the user logs in on any node, the other nodes forward the
+ * messages they have saved for them to that node. A message forwarded to a
+ * node that goes away before it is sent is saved on the sender's node too.
+ *
+ * A user can only be logged in on one node. If two nodes log the same user in
+ * at the same time, the node whose name comes first keeps them.
+ */
+public class Cluster implements ClusterTransport.Receiver {
+	private static final byte ONLINE = 1;
+	private static final byte OFFLINE = 2;
+	private static final byte DELIVER = 3;
+	private static final byte DELIVER_OFFLINE = 4;
+	private static final byte BLOCK = 5;
+	private static final byte UNBLOCK = 6;
+
+	private Server server;
+	private Presence presence;
+	private ClusterTransport transport;
+
+	/**
+	 * @key username of a user who is online on another node
+	 * @value name of that node
+	 */
+	private ConcurrentHashMap<String, String> directory;
+
+	/**
+	 * @param server
+	 *            this node
+	 * @param presence
+	 *            users who are online on this node
+	 * @param transport
+	 */
+	public Cluster(Server server, Presence presence, ClusterTransport transport) {
+		this.server = server;
+		this.presence = presence;
+		this.transport = transport;
+		this.directory = new ConcurrentHashMap<String, String>();
+	}
+
+	/**
+	 * Starts talking to the other nodes.
+	 *
+	 * @throws IOException
+	 */
+	public void start() throws IOException {
+		transport.start(this);
+	}
+
+	/**
+	 * @return name of this node
+	 */
+	public String getNode() {
+		return transport.getNode();
+	}
+
+	/**
+	 * @param username
+	 * @return name of the other node the user is online on, or
+	 *         <code>null</code> if they are not online on another node
+	 */
+	public String locate(String username) {
+		return directory.get(username);
+	}
+
+	/**
+	 * @return usernames of the users who are online on other nodes
+	 */
+	public Collection<String> getRemoteUsernames() {
+		return directory.keySet();
+	}
+
+	/**
+	 * Tells the other nodes that a user has logged in on this node.
+	 *
+	 * @param user
+	 */
+	public void userOnline(User user) {
+		sendToAll(encode(ONLINE, user.getUsername()));
+	}
+
+	/**
+	 * Tells the other nodes that a user has logged out of this node.
+	 *
+	 * @param user
+	 */
+	public void userOffline(User user) {
+		sendToAll(encode(OFFLINE, user.getUsername()));
+	}
+
+	/**
+	 * Tells the other nodes that a user has blocked or unblocked another.
+	 *
+	 * @param blocker
+	 * @param user
+	 * @param blocked
+	 *            true if the user was blocked and false if unblocked
+	 */
+	public void blockChanged(User blocker, User user, boolean blocked) {
+		sendToAll(encode(blocked ? BLOCK : UNBLOCK, blocker.getUsername(),
+				user.getUsername()));
+	}
+
+	/**
+	 * Forwards a message to users who are online on another node.
+	 *
+	 * @param node
+	 * @param fromUsername
+	 * @param text
+	 * @param toUsers
+	 * @return false if the node can't be reached
+	 */
+	public boolean forward(String node, String fromUsername, String text,
+			List<User> toUsers) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(DELIVER);
+			writeString(out, fromUsername);
+			writeString(out, text);
+			out.writeInt(toUsers.size());
+			for (User toUser : toUsers) {
+				writeString(out, toUser.getUsername());
+			}
+		} catch (IOException e) {
+			// Can't happen with a ByteArrayOutputStream
+			throw new IllegalStateException(e);
+		}
+		return transport.send(node, bytes.toByteArray());
+	}
+
+	/**
+	 * Forwards a broadcast to every other node, which sends it to all of its
+	 * users who have not blocked the sender.
+	 *
+	 * @param fromUsername
+	 * @param text
+	 */
+	public void broadcast(String fromUsername, String text) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(DELIVER);
+			writeString(out, fromUsername);
+			writeString(out, text);
+			out.writeInt(-1);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		sendToAll(bytes.toByteArray());
+	}
+
+	/**
+	 * Forwards messages saved on this node to the node a user has logged in
+	 * on.
+	 *
+	 * @param node
+	 * @param toUsername
+	 * @param messages
+	 * @return false if the node can't be reached
+	 */
+	public boolean forwardOffline(String node, String toUsername,
+			List<OfflineMessage> messages) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(DELIVER_OFFLINE);
+			writeString(out, toUsername);
+			out.writeInt(messages.size());
+			for (OfflineMessage message : messages) {
+				writeString(out, message.getFromUsername());
+				writeString(out, message.getMessage());
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return transport.send(node, bytes.toByteArray());
+	}
+
+	public void linked(String node) {
+		// The node doesn't know who is online here yet
+		for (User user : presence.getSnapshot().getUsers()) {
+			transport.send(node, encode(ONLINE, user.getUsername()));
+		}
+	}
+
+	public void received(String node, byte[] message) {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				message));
+		try {
+			switch (in.readByte()) {
+			case ONLINE: {
+				String username = readString(in);
+				directory.put(username, node);
+				server.loggedInElsewhere(username, node);
+				break;
+			}
+			case OFFLINE:
+				directory.remove(readString(in), node);
+				break;
+
+			case DELIVER: {
+				String fromUsername = readString(in);
+				String text = readString(in);
+				int count = in.readInt();
+				if (count < 0) {
+					server.receiveBroadcast(fromUsername, text);
+					break;
+				}
+				List<String> toUsernames = new ArrayList<String>(count);
+				for (int i = 0; i < count; i++) {
+					toUsernames.add(readString(in));
+				}
+				server.receiveMessage(fromUsername, text, toUsernames);
+				break;
+			}
+			case DELIVER_OFFLINE: {
+				String toUsername = readString(in);
+				int count = in.readInt();
+				List<String[]> messages = new ArrayList<String[]>(count);
+				for (int i = 0; i < count; i++) {
+					messages.add(new String[] { readString(in), readString(in) });
+				}
+				server.receiveOfflineMessages(toUsername, messages);
+				break;
+			}
+			case BLOCK:
+				server.receiveBlockChange(readString(in), readString(in), true);
+				break;
+
+			case UNBLOCK:
+				server.receiveBlockChange(readString(in), readString(in), false);
+				break;
+
+			default:
+				System.out.println("unknown message from cluster node " + node);
+			}
+		} catch (IOException e) {
+			System.out.println("malformed message from cluster node " + node);
+		}
+	}
+
+	public void undelivered(String node, byte[] message) {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				message));
+		try {
+			switch (in.readByte()) {
+			case DELIVER: {
+				// Broadcasts are only for the users who are online
+				String fromUsername = readString(in);
+				String text = readString(in);
+				int count = in.readInt();
+				for (int i = 0; i < count; i++) {
+					server.saveOfflineMessage(readString(in), fromUsername,
+							text);
+				}
+				break;
+			}
+			case DELIVER_OFFLINE: {
+				String toUsername = readString(in);
+				int count = in.readInt();
+				for (int i = 0; i < count; i++) {
+					server.saveOfflineMessage(toUsername, readString(in),
+							readString(in));
+				}
+				break;
+			}
+			default:
+				// The node learns who is online here when it is linked again
+			}
+		} catch (IOException e) {
+			// Can't happen with a message encoded here
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public void lost(String node) {
+		// Everybody who was online there is gone
+		Iterator<Map.Entry<String, String>> iter = directory.entrySet()
+				.iterator();
+		while (iter.hasNext()) {
+			if (iter.next().getValue().equals(node)) {
+				iter.remove();
+			}
+		}
+	}
+
+	private void sendToAll(byte[] message) {
+		for (String node : transport.getPeers()) {
+			transport.send(node, message);
+		}
+	}
+
+	/**
+	 * @param type
+	 * @param strings
+	 * @return a message of a type with some strings
+	 */
+	private static byte[] encode(byte type, String... strings) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(type);
+			for (String string : strings) {
+				writeString(out, string);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Writes a string of any length, unlike
+	 * {@link DataOutputStream#writeUTF(String)}.
+	 */
+	private static void writeString(DataOutputStream out, String string)
+			throws IOException {
+		byte[] bytes = string.getBytes(Utilities.CHARSET);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > in.available()) {
+			throw new IOException("bad string length " + length);
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, Utilities.CHARSET);
+	}
+}
@@ -0,0 +1,79 @@
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Carries messages between the nodes of a {@link Cluster}. Messages are
+ * opaque byte arrays to the transport, and messages sent to the same node
+ * arrive in the order they were sent. A transport may batch messages, but
+ * must not hold them back waiting for more.
+ */
+public interface ClusterTransport {
+
+	/**
+	 * Told about everything that happens on the transport. Called from the
+	 * transport's own threads.
+	 */
+	public interface Receiver {
+
+		/**
+		 * Messages can now be sent to a node that could not be reached
+		 * before, and it has forgotten anything sent to it earlier.
+		 *
+		 * @param node
+		 */
+		public void linked(String node);
+
+		/**
+		 * A message has arrived from a node.
+		 *
+		 * @param node
+		 * @param message
+		 */
+		public void received(String node, byte[] message);
+
+		/**
+		 * A message that was sent to a node won't arrive after all, because
+		 * the connection to the node failed before it was written.
+		 *
+		 * @param node
+		 * @param message
+		 */
+		public void undelivered(String node, byte[] message);
+
+		/**
+		 * A node has gone away, so whatever it said no longer holds.
+		 *
+		 * @param node
+		 */
+		public void lost(String node);
+	}
+
+	/**
+	 * Starts listening to and connecting to the other nodes.
+	 *
+	 * @param receiver
+	 * @throws IOException
+	 */
+	public void start(Receiver receiver) throws IOException;
+
+	/**
+	 * @return name of this node
+	 */
+	public String getNode();
+
+	/**
+	 * @return names of the other nodes
+	 */
+	public Collection<String> getPeers();
+
+	/**
+	 * Sends a message to a node.
+	 *
+	 * @param node
+	 * @param message
+	 * @return false if the node can't be reached right now, in which case
+	 *         the message is dropped. If true, the message may still be
+	 *         handed back to {@link Receiver#undelivered(String, byte[])}.
+	 */
+	public boolean send(String node, byte[] message);
+}
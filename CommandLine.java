@@ -0,0 +1,144 @@
+/**
+ * A line sent by a client, split into a {@link Server.Command} and its
+ * arguments. Arguments are separated by single spaces, and the text of a
+ * message is everything after them, so the line is only scanned for the
+ * first two spaces and nothing is copied until an argument is asked for.
+ * Trailing spaces are ignored.
+ */
+public final class CommandLine {
+	/**
+	 * Commands by the length of their name, so that a line is only compared
+	 * with the names it could be
+	 */
+	private static final Server.Command[][] COMMANDS_BY_LENGTH;
+
+	static {
+		int longest = 0;
+		for (Server.Command command : Server.Command.values()) {
+			longest = Math.max(longest, command.name().length());
+		}
+
+		int[] counts = new int[longest + 1];
+		for (Server.Command command : Server.Command.values()) {
+			counts[command.name().length()]++;
+		}
+		COMMANDS_BY_LENGTH = new Server.Command[longest + 1][];
+		for (int length = 0; length <= longest; length++) {
+			COMMANDS_BY_LENGTH[length] = new Server.Command[counts[length]];
+			counts[length] = 0;
+		}
+		for (Server.Command command : Server.Command.values()) {
+			int length = command.name().length();
+			COMMANDS_BY_LENGTH[length][counts[length]++] = command;
+		}
+	}
+
+	private String line;
+
+	/**
+	 * Length of the line without trailing spaces
+	 */
+	private int end;
+
+	/**
+	 * Index of the space after the command, or -1 if there are no arguments
+	 */
+	private int firstSpace;
+
+	/**
+	 * Index of the space after the first argument, or -1 if there is nothing
+	 * after it
+	 */
+	private int secondSpace;
+
+	private Server.Command command;
+
+	/**
+	 * @param line
+	 *            line sent by the client
+	 */
+	public CommandLine(String line) {
+		this.line = line;
+
+		int end = line.length();
+		while (end > 0 && line.charAt(end - 1) == ' ') {
+			end--;
+		}
+		this.end = end;
+
+		this.firstSpace = line.indexOf(' ');
+		if (firstSpace >= end) {
+			firstSpace = -1;
+		}
+		this.secondSpace = firstSpace < 0 ? -1 : line.indexOf(' ',
+				firstSpace + 1);
+		if (secondSpace >= end) {
+			secondSpace = -1;
+		}
+
+		this.command = lookUp(line, firstSpace < 0 ? end : firstSpace);
+	}
+
+	/**
+	 * @param line
+	 * @param length
+	 *            length of the command at the start of the line
+	 * @return the command, ignoring case, or <code>null</code> if there is no
+	 *         such command
+	 */
+	private static Server.Command lookUp(String line, int length) {
+		if (length >= COMMANDS_BY_LENGTH.length) {
+			return null;
+		}
+		for (Server.Command command : COMMANDS_BY_LENGTH[length]) {
+			if (line.regionMatches(true, 0, command.name(), 0, length)) {
+				return command;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the command, or <code>null</code> if the line doesn't start with
+	 *         one
+	 */
+	public Server.Command getCommand() {
+		return command;
+	}
+
+	/**
+	 * @return whether there is anything after the command
+	 */
+	public boolean hasArgument() {
+		return firstSpace >= 0;
+	}
+
+	/**
+	 * @return the first argument, e.g. the user to send a message to
+	 */
+	public String getArgument() {
+		return line.substring(firstSpace + 1, secondSpace < 0 ? end
+				: secondSpace);
+	}
+
+	/**
+	 * @return everything after the command, e.g. the text of a broadcast
+	 */
+	public String getText() {
+		return line.substring(firstSpace + 1, end);
+	}
+
+	/**
+	 * @return whether there is anything after the first argument
+	 */
+	public boolean hasTextAfterArgument() {
+		return secondSpace >= 0;
+	}
+
+	/**
+	 * @return everything after the first argument, e.g. the text of a message
+	 */
+	public String getTextAfterArgument() {
+		return line.substring(secondSpace + 1, end);
+	}
+}
@@ -0,0 +1,49 @@
+/**
+ * A connection between the {@link Server} and a single Client. The
+ * <code>Server</code> only talks to clients through this interface, so it does
+ * not need to know which connection engine is serving a given client.
+ */
+public interface Connection {
+
+	/**
+	 * @return id of this <code>Connection</code>
+	 */
+	public String getThreadId();
+
+	/**
+	 * @return ip address of the connected client
+	 */
+	public String getIpAddress();
+
+	/**
+	 * Prints a message to the client.
+	 *
+	 * @param message
+	 */
+	public void print(String message);
+
+	/**
+	 * Sends an already encoded {@link Frame} to the client.
+	 *
+	 * @param frame
+	 */
+	public void send(Frame frame);
+
+	/**
+	 * @return number of frames waiting to be written to the client
+	 */
+	public int getPendingFrames();
+
+	/**
+	 * @return the {@link Outbox} of frames waiting to be written
+	 */
+	public Outbox getOutbox();
+
+	/**
+	 * Closes the connection from the server side.
+	 *
+	 * @param reason
+	 *            why the connection is closed, for the log
+	 */
+	public void disconnect(String reason);
+}
@@ -0,0 +1,196 @@
+import java.awt.MediaTracker;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.ImageIcon;
+
+/**
+ * The emoticons the <code>Client</code> shows as images, loaded from a folder
+ * with a mapping file that has the text of an emoticon and the name of its
+ * image on every line. Every image is loaded once and shared by every place
+ * the emoticon appears. The texts are compiled into a trie, so a message is
+ * searched for all of them in a single pass.
+ */
+public class Emoticons {
+	public static final String MAPPING_FILE = "emoticons.txt";
+
+	/**
+	 * A node of the trie, for the text matched so far.
+	 */
+	private static class Node {
+		private char[] keys = new char[0];
+		private Node[] children = new Node[0];
+
+		/**
+		 * Emoticon whose text ends here, or -1
+		 */
+		private int emoticon = -1;
+
+		private Node get(char key) {
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] == key) {
+					return children[i];
+				}
+			}
+			return null;
+		}
+
+		private Node add(char key) {
+			Node child = get(key);
+			if (child == null) {
+				int length = keys.length;
+				char[] newKeys = new char[length + 1];
+				Node[] newChildren = new Node[length + 1];
+				System.arraycopy(keys, 0, newKeys, 0, length);
+				System.arraycopy(children, 0, newChildren, 0, length);
+				newKeys[length] = key;
+				child = new Node();
+				newChildren[length] = child;
+				keys = newKeys;
+				children = newChildren;
+			}
+			return child;
+		}
+	}
+
+	private List<String> texts;
+	private List<ImageIcon> icons;
+	private Node root;
+
+	/**
+	 * Children of the root by ASCII character, so that most characters of a
+	 * message are ruled out with a single lookup
+	 */
+	private Node[] asciiRoot;
+
+	/**
+	 * No emoticons at all.
+	 */
+	public Emoticons() {
+		this.texts = new ArrayList<String>();
+		this.icons = new ArrayList<ImageIcon>();
+		this.root = new Node();
+		this.asciiRoot = new Node[128];
+	}
+
+	/**
+	 * Loads the emoticons of a folder. Lines of the mapping file that are
+	 * empty or start with # are skipped, and so are emoticons whose image
+	 * can't be loaded.
+	 *
+	 * @param folder
+	 *            folder with the images and the mapping file
+	 * @return the emoticons
+	 * @throws IOException
+	 *             if the mapping file can't be read
+	 */
+	public static Emoticons load(File folder) throws IOException {
+		Emoticons emoticons = new Emoticons();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(new File(folder, MAPPING_FILE)),
+				Utilities.CHARSET));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+				String[] fields = line.split("\\s+");
+				if (fields.length != 2) {
+					System.out.println("skipping emoticon: " + line);
+					continue;
+				}
+				ImageIcon icon = new ImageIcon(new File(folder, fields[1])
+						.getPath());
+				if (icon.getImageLoadStatus() != MediaTracker.COMPLETE) {
+					System.out.println("could not load emoticon image "
+							+ fields[1]);
+					continue;
+				}
+				emoticons.add(fields[0], icon);
+			}
+		} finally {
+			reader.close();
+		}
+		return emoticons;
+	}
+
+	/**
+	 * @param text
+	 *            text of the emoticon, replacing an earlier one with the same
+	 *            text
+	 * @param icon
+	 */
+	public void add(String text, ImageIcon icon) {
+		Node node = root;
+		for (int i = 0; i < text.length(); i++) {
+			node = node.add(text.charAt(i));
+			if (i == 0 && text.charAt(0) < asciiRoot.length) {
+				asciiRoot[text.charAt(0)] = node;
+			}
+		}
+		if (node.emoticon >= 0) {
+			icons.set(node.emoticon, icon);
+		} else {
+			node.emoticon = texts.size();
+			texts.add(text);
+			icons.add(icon);
+		}
+	}
+
+	/**
+	 * @return number of emoticons
+	 */
+	public int size() {
+		return texts.size();
+	}
+
+	/**
+	 * @param emoticon
+	 *            index of the emoticon
+	 * @return the text the emoticon replaces
+	 */
+	public String getText(int emoticon) {
+		return texts.get(emoticon);
+	}
+
+	/**
+	 * @param emoticon
+	 *            index of the emoticon
+	 * @return the image of the emoticon
+	 */
+	public ImageIcon getIcon(int emoticon) {
+		return icons.get(emoticon);
+	}
+
+	/**
+	 * Finds the longest emoticon that starts at an offset. Checking every
+	 * offset of a string in turn finds all of its emoticons in one pass.
+	 *
+	 * @param str
+	 * @param offset
+	 * @return index of the emoticon, or -1 if none starts there
+	 */
+	public int match(String str, int offset) {
+		char first = str.charAt(offset);
+		Node node = first < asciiRoot.length ? asciiRoot[first] : root
+				.get(first);
+		int emoticon = -1;
+		for (int i = offset + 1; node != null; i++) {
+			if (node.emoticon >= 0) {
+				emoticon = node.emoticon;
+			}
+			if (i == str.length()) {
+				break;
+			}
+			node = node.get(str.charAt(i));
+		}
+		return emoticon;
+	}
+}
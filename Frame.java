@@ -0,0 +1,141 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A message from the <code>Server</code> to the <code>Client</code> that has
+ * already been encoded into the bytes that go on the wire. A
+ * <code>Frame</code> is immutable, so a broadcast encodes its text once and
+ * hands the same <code>Frame</code> to every recipient {@link Connection}.
+ *
+ * Each framing is encoded the first time a connection using it asks for the
+ * bytes. Two threads may race to encode the same framing, which only means it
+ * is encoded twice.
+ */
+public class Frame {
+	private String prompt;
+	private String message;
+	private Message origin;
+
+	/**
+	 * Encoded message followed by a newline
+	 */
+	private volatile byte[] textBytes;
+
+	/**
+	 * Payload length, prompt length, prompt and message
+	 */
+	private volatile byte[] binaryBytes;
+
+	public Frame(String prompt, String message) {
+		this(prompt, message, null);
+	}
+
+	/**
+	 * @param prompt
+	 * @param message
+	 * @param origin
+	 *            chat {@link Message} this <code>Frame</code> delivers, which
+	 *            can be saved for later if the recipient can't keep up
+	 */
+	public Frame(String prompt, String message, Message origin) {
+		this.prompt = prompt;
+		this.message = message;
+		this.origin = origin;
+	}
+
+	/**
+	 * Creates the first <code>Frame</code> of a connection, which offers the
+	 * binary framing to the client. Only meant to be sent with the text
+	 * framing; older clients ignore the offer.
+	 *
+	 * @param prompt
+	 * @param message
+	 * @return <code>Frame</code> with the offer
+	 */
+	public static Frame binaryOffer(String prompt, String message) {
+		Frame frame = new Frame(prompt, message);
+		frame.textBytes = (Utilities.encodeMessage(prompt, message)
+				+ Utilities.BINARY + "\n").getBytes(Utilities.CHARSET);
+		return frame;
+	}
+
+	/**
+	 * @return the prompt
+	 */
+	public String getPrompt() {
+		return prompt;
+	}
+
+	/**
+	 * @return the message
+	 */
+	public String getMessage() {
+		return message;
+	}
+
+	/**
+	 * @return the chat {@link Message} this <code>Frame</code> delivers or
+	 *         <code>null</code> if it is not a chat message
+	 */
+	public Message getOrigin() {
+		return origin;
+	}
+
+	/**
+	 * @param binary
+	 *            whether to use the binary framing
+	 * @return a new read-only view of the encoded bytes with its own position,
+	 *         so that every recipient can write it independently
+	 */
+	public ByteBuffer getBytes(boolean binary) {
+		return ByteBuffer.wrap(encode(binary)).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Writes the encoded bytes to a stream.
+	 *
+	 * @param out
+	 * @param binary
+	 *            whether to use the binary framing
+	 * @throws IOException
+	 */
+	public void writeTo(OutputStream out, boolean binary) throws IOException {
+		out.write(encode(binary));
+	}
+
+	/**
+	 * @param binary
+	 *            whether to use the binary framing
+	 * @return the encoded bytes, encoding them if this is the first time
+	 */
+	private byte[] encode(boolean binary) {
+		if (!binary) {
+			byte[] bytes = textBytes;
+			if (bytes == null) {
+				bytes = (Utilities.encodeMessage(prompt, message) + "\n")
+						.getBytes(Utilities.CHARSET);
+				textBytes = bytes;
+			}
+			return bytes;
+		}
+
+		byte[] bytes = binaryBytes;
+		if (bytes == null) {
+			int promptLength = Utilities.utf8Length(prompt);
+			int messageLength = Utilities.utf8Length(message);
+			if (promptLength > 0xffff) {
+				throw new IllegalArgumentException("prompt is too long");
+			}
+
+			bytes = new byte[6 + promptLength + messageLength];
+			Utilities.putInt(bytes, 0, 2 + promptLength + messageLength);
+			bytes[4] = (byte) (promptLength >>> 8);
+			bytes[5] = (byte) promptLength;
+			Utilities.encodeUtf8(prompt, bytes, 6);
+			Utilities.encodeUtf8(message, bytes, 6 + promptLength);
+			binaryBytes = bytes;
+		}
+		return bytes;
+	}
+}
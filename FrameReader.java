@@ -0,0 +1,176 @@
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reads frames sent between the <code>Server</code> and the
+ * <code>Client</code> off a blocking stream. Starts out reading the text
+ * framing (one encoded message per line) and can be switched to the length
+ * prefixed binary framing once both sides have agreed on it. The bytes of a
+ * frame are read into a buffer that is reused, so the only thing allocated per
+ * frame is the decoded {@link String}s.
+ */
+public class FrameReader {
+	private InputStream in;
+	private boolean binary;
+	private boolean binaryOffered;
+	private byte[] buffer;
+
+	public FrameReader(InputStream in) {
+		this.in = new BufferedInputStream(in);
+		this.binary = false;
+		this.binaryOffered = false;
+		this.buffer = new byte[256];
+	}
+
+	/**
+	 * @param binary
+	 *            whether to read binary frames from now on
+	 */
+	public void setBinary(boolean binary) {
+		this.binary = binary;
+	}
+
+	/**
+	 * @return whether the last message read by {@link #readMessage()} was the
+	 *         server offering the binary framing
+	 */
+	public boolean isBinaryOffered() {
+		return binaryOffered;
+	}
+
+	/**
+	 * Reads a line sent from the <code>Client</code> to the
+	 * <code>Server</code>.
+	 * 
+	 * @return the line or <code>null</code> if the end of the stream has been
+	 *         reached
+	 * @throws IOException
+	 */
+	public String readLine() throws IOException {
+		int length = binary ? readBinary() : readText();
+		if (length < 0) {
+			return null;
+		}
+		return new String(buffer, 0, length, Utilities.CHARSET);
+	}
+
+	/**
+	 * Reads a message sent from the <code>Server</code> to the
+	 * <code>Client</code>.
+	 * 
+	 * @return a {@link String} array with the first value being the prompt and
+	 *         the second value being the message, or <code>null</code> if the
+	 *         end of the stream has been reached
+	 * @throws IOException
+	 */
+	public String[] readMessage() throws IOException {
+		binaryOffered = false;
+		if (!binary) {
+			int length = readText();
+			if (length < 0) {
+				return null;
+			}
+			String encodedMessage = new String(buffer, 0, length,
+					Utilities.CHARSET);
+			binaryOffered = encodedMessage.endsWith(Utilities.BINARY);
+			return Utilities.decodeMessage(encodedMessage);
+		}
+
+		int length = readBinary();
+		if (length < 0) {
+			return null;
+		}
+		if (length < 2) {
+			throw new IOException("binary frame is too short");
+		}
+		int promptLength = ((buffer[0] & 0xff) << 8) | (buffer[1] & 0xff);
+		if (2 + promptLength > length) {
+			throw new IOException("binary frame has an invalid prompt length");
+		}
+		return new String[] {
+				new String(buffer, 2, promptLength, Utilities.CHARSET),
+				new String(buffer, 2 + promptLength, length - 2 - promptLength,
+						Utilities.CHARSET) };
+	}
+
+	/**
+	 * Reads the bytes up to the next newline into <code>buffer</code>.
+	 * 
+	 * @return number of bytes read, not counting the line ending, or -1 if the
+	 *         end of the stream has been reached
+	 * @throws IOException
+	 */
+	private int readText() throws IOException {
+		int length = 0;
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b < 0) {
+				return length == 0 ? -1 : length;
+			}
+			if (length == Utilities.MAX_FRAME_LENGTH) {
+				throw new IOException("line is longer than "
+						+ Utilities.MAX_FRAME_LENGTH + " bytes");
+			}
+			ensureCapacity(length + 1);
+			buffer[length++] = (byte) b;
+		}
+
+		// Drop the carriage return of a \r\n line ending
+		if (length > 0 && buffer[length - 1] == '\r') {
+			length--;
+		}
+		return length;
+	}
+
+	/**
+	 * Reads the payload of the next length prefixed frame into
+	 * <code>buffer</code>.
+	 * 
+	 * @return length of the payload or -1 if the end of the stream has been
+	 *         reached
+	 * @throws IOException
+	 */
+	private int readBinary() throws IOException {
+		int length = 0;
+		for (int i = 0; i < 4; i++) {
+			int b = in.read();
+			if (b < 0) {
+				if (i == 0) {
+					return -1;
+				}
+				throw new EOFException("stream ended inside a frame header");
+			}
+			length = (length << 8) | b;
+		}
+		if (length < 0 || length > Utilities.MAX_FRAME_LENGTH) {
+			throw new IOException("binary frame of " + length
+					+ " bytes is too long");
+		}
+
+		ensureCapacity(length);
+		int read = 0;
+		while (read < length) {
+			int count = in.read(buffer, read, length - read);
+			if (count < 0) {
+				throw new EOFException("stream ended inside a frame");
+			}
+			read += count;
+		}
+		return length;
+	}
+
+	/**
+	 * Grows <code>buffer</code> so that it can hold a number of bytes.
+	 * 
+	 * @param capacity
+	 */
+	private void ensureCapacity(int capacity) {
+		if (capacity > buffer.length) {
+			buffer = Arrays.copyOf(buffer,
+					Math.max(capacity, buffer.length * 2));
+		}
+	}
+}
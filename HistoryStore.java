@@ -0,0 +1,1192 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * Durable history of the messages sent between every pair of users, and of
+ * the broadcasts. Every conversation has a directory of its own, so reading
+ * one never touches the others, and its messages are appended in time order
+ * to segment files of about 1 MB. Next to every segment is a sparse index
+ * with the timestamp and position of a message every 4 KB after the first
+ * one, and the timestamp of the first message of every segment is kept in
+ * memory, so reading the messages since some time only reads the segments
+ * they are in, starting close to the first of them.
+ *
+ * Only the conversations used most recently are kept in memory. A
+ * conversation is loaded outside the lock of the cache, so a cold load only
+ * holds up those who want the same conversation, and one with messages that
+ * have not been written yet is never dropped.
+ *
+ * Every record in a segment is a length, a CRC32 of the rest of the record,
+ * and the timestamp, sender and message. When a conversation is first used,
+ * its last segment is checked and ends at its first record that is
+ * incomplete or fails its checksum, and its index is rebuilt. The timestamps
+ * of a conversation always go up, so a message sent in the same millisecond
+ * as the one before it is recorded a millisecond later.
+ *
+ * Messages are appended by a thread of its own. Senders only hand them over
+ * through a lock-free queue, so keeping the history never holds up delivery.
+ * Once the thread has been woken up by a message, it lets the messages that
+ * follow pile up for 10 milliseconds at a time and writes them with one write
+ * per file, so senders rarely have to wake it up and a burst of messages
+ * costs a few writes rather than one each. Readers that must not block, such
+ * as an event loop, hand their reads to the same thread, which runs them once
+ * the messages handed over before them have been written.
+ */
+public class HistoryStore implements Runnable {
+	public static final int SEGMENT_SIZE = 1024 * 1024; // Bytes
+	public static final int INDEX_INTERVAL = 4 * 1024; // Bytes
+
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final String INDEX_SUFFIX = ".idx";
+	private static final String BROADCAST_DIRECTORY = "broadcast";
+	private static final String PAIR_DIRECTORY_PREFIX = "pair-";
+	private static final int HEADER_LENGTH = 8; // Length and checksum
+	private static final int MIN_LENGTH = 8 + 2 + 4; // Empty sender and message
+	private static final int INDEX_ENTRY_LENGTH = 8 + 4; // Timestamp and position
+	private static final int OPEN_FILES = 64;
+	private static final int CACHED_CONVERSATIONS = 1024;
+	private static final int BATCH_SIZE = 64 * 1024; // Bytes
+	private static final long BATCH_DELAY = 10 * 1000 * 1000; // Nanoseconds
+
+	/**
+	 * A message read back from the history
+	 */
+	public static class Entry {
+		private long timestamp;
+		private String fromUsername;
+		private String message;
+
+		private Entry(long timestamp, String fromUsername, String message) {
+			this.timestamp = timestamp;
+			this.fromUsername = fromUsername;
+			this.message = message;
+		}
+
+		/**
+		 * @return when the message was sent, in milliseconds since the epoch
+		 */
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		public String getFromUsername() {
+			return fromUsername;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+	}
+
+	/**
+	 * Receives the messages read back on the history thread.
+	 */
+	public interface ReadCallback {
+
+		/**
+		 * Called on the history thread.
+		 *
+		 * @param entries
+		 *            the messages read, oldest first, or <code>null</code> if
+		 *            they could not be read
+		 * @param error
+		 *            why they could not be read, or <code>null</code>
+		 */
+		public void completed(List<Entry> entries, IOException error);
+	}
+
+	/**
+	 * A message waiting to be appended
+	 */
+	private static class Append {
+		private String fromUsername;
+		private String toUsername; // null for a broadcast
+		private String message;
+		private long timestamp;
+
+		/**
+		 * Runs once everything before it is appended instead, if not
+		 * <code>null</code>
+		 */
+		private Runnable callback;
+
+		private Append(String fromUsername, String toUsername, String message,
+				long timestamp, Runnable callback) {
+			this.fromUsername = fromUsername;
+			this.toUsername = toUsername;
+			this.message = message;
+			this.timestamp = timestamp;
+			this.callback = callback;
+		}
+	}
+
+	private static class Segment {
+		private int id;
+		private File file;
+		private File indexFile;
+		private long firstTimestamp;
+
+		/**
+		 * Bytes of records, where the next record goes
+		 */
+		private int length;
+
+		// Sparse index, or null until it is needed. Always loaded for the
+		// last segment of a conversation, which is the only one that grows.
+		private long[] indexTimestamps;
+		private int[] indexPositions;
+		private int indexSize;
+
+		// Only used by the history thread: where the next record and index
+		// entry go, and the ones that have not been written yet
+		private int end;
+		private int indexEnd;
+		private ByteArrayOutputStream pending;
+		private ByteArrayOutputStream pendingIndex;
+
+		private Segment(int id, File directory) {
+			this.id = id;
+			String name = String.format("%010d", id);
+			this.file = new File(directory, name + SEGMENT_SUFFIX);
+			this.indexFile = new File(directory, name + INDEX_SUFFIX);
+			this.pending = new ByteArrayOutputStream();
+			this.pendingIndex = new ByteArrayOutputStream();
+		}
+
+		private void addIndexEntry(long timestamp, int position) {
+			if (indexSize == indexTimestamps.length) {
+				int capacity = Math.max(16, 2 * indexSize);
+				long[] timestamps = new long[capacity];
+				int[] positions = new int[capacity];
+				System.arraycopy(indexTimestamps, 0, timestamps, 0, indexSize);
+				System.arraycopy(indexPositions, 0, positions, 0, indexSize);
+				indexTimestamps = timestamps;
+				indexPositions = positions;
+			}
+			indexTimestamps[indexSize] = timestamp;
+			indexPositions[indexSize] = position;
+			indexSize++;
+		}
+	}
+
+	/**
+	 * The messages between a pair of users, or the broadcasts. Segments are
+	 * only added and grown by the history thread, which changes them while
+	 * holding the lock of the conversation, and readers copy what they need
+	 * while holding it too. Loaded while holding the lock too.
+	 */
+	private static class Conversation {
+		private File directory;
+		private List<Segment> segments; // In time order
+		private long lastTimestamp;
+		private boolean loaded;
+
+		/**
+		 * Whether the history thread has appended messages that have not been
+		 * written yet, so the conversation must stay in the cache. Guarded by
+		 * the lock of the cache.
+		 */
+		private boolean pinned;
+
+		private Conversation(File directory) {
+			this.directory = directory;
+			this.segments = new ArrayList<Segment>();
+			this.lastTimestamp = Long.MIN_VALUE;
+			this.loaded = false;
+			this.pinned = false;
+		}
+	}
+
+	private File directory;
+
+	/**
+	 * @key usernames of the pair in order, separated by a space, or an empty
+	 *      string for the broadcasts
+	 * @value <code>Conversation</code>, loaded the first time it is used
+	 *        since it was last dropped. Least recently used first.
+	 */
+	private LinkedHashMap<String, Conversation> conversations;
+
+	/**
+	 * Files the history thread appends to, least recently used first. Only
+	 * used by the history thread.
+	 */
+	private LinkedHashMap<File, FileChannel> openFiles;
+
+	/**
+	 * Segments with messages that have not been written yet, and their
+	 * conversations. Only used by the history thread.
+	 */
+	private LinkedHashMap<Segment, Conversation> dirty;
+	private int pendingBytes;
+
+	private CRC32 crc; // Only used by the history thread
+	private Thread thread;
+	private ConcurrentLinkedQueue<Append> queue;
+
+	/**
+	 * Whether the thread may be parked until it is woken up, rather than for
+	 * a while to let messages pile up
+	 */
+	private volatile boolean idle;
+
+	/**
+	 * Opens the history in a directory, creating the directory if needed.
+	 * Call {@link #start()} to start appending.
+	 *
+	 * @param directoryPath
+	 * @throws IOException
+	 */
+	public HistoryStore(String directoryPath) throws IOException {
+		this.directory = new File(directoryPath);
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("could not create " + directoryPath);
+		}
+
+		this.conversations = new LinkedHashMap<String, Conversation>(16,
+				0.75f, true);
+		this.openFiles = new LinkedHashMap<File, FileChannel>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(
+					Map.Entry<File, FileChannel> eldest) {
+				if (size() <= OPEN_FILES) {
+					return false;
+				}
+				close(eldest.getKey(), eldest.getValue());
+				return true;
+			}
+		};
+		this.dirty = new LinkedHashMap<Segment, Conversation>();
+		this.pendingBytes = 0;
+		this.crc = new CRC32();
+		this.thread = new Thread(this, "history");
+		this.thread.setDaemon(true);
+		this.queue = new ConcurrentLinkedQueue<Append>();
+		this.idle = false;
+	}
+
+	/**
+	 * Starts the history thread.
+	 */
+	public void start() {
+		thread.start();
+	}
+
+	/**
+	 * Hands a message between two users to the history thread to append. Can
+	 * be called from any thread and never blocks.
+	 *
+	 * @param fromUsername
+	 * @param toUsername
+	 * @param message
+	 * @param timestamp
+	 *            when the message was sent, in milliseconds since the epoch
+	 */
+	public void appendMessage(String fromUsername, String toUsername,
+			String message, long timestamp) {
+		post(new Append(fromUsername, toUsername, message, timestamp, null));
+	}
+
+	/**
+	 * Hands a broadcast to the history thread to append. Can be called from
+	 * any thread and never blocks.
+	 *
+	 * @param fromUsername
+	 * @param message
+	 * @param timestamp
+	 *            when the broadcast was sent, in milliseconds since the epoch
+	 */
+	public void appendBroadcast(String fromUsername, String message,
+			long timestamp) {
+		post(new Append(fromUsername, null, message, timestamp, null));
+	}
+
+	/**
+	 * Waits until every message handed over so far has been appended.
+	 *
+	 * @param timeout
+	 *            milliseconds to wait at most
+	 * @return false if the time ran out first
+	 * @throws InterruptedException
+	 */
+	public boolean awaitAppends(long timeout) throws InterruptedException {
+		final CountDownLatch latch = new CountDownLatch(1);
+		post(new Append(null, null, null, 0, new Runnable() {
+			public void run() {
+				latch.countDown();
+			}
+		}));
+		return latch.await(timeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Waits until every message handed over so far has been appended and
+	 * written back to disk.
+	 *
+	 * @param timeout
+	 *            milliseconds to wait at most
+	 * @return false if the time ran out first
+	 * @throws InterruptedException
+	 */
+	public boolean force(long timeout) throws InterruptedException {
+		final CountDownLatch latch = new CountDownLatch(1);
+		post(new Append(null, null, null, 0, new Runnable() {
+			public void run() {
+				for (Map.Entry<File, FileChannel> entry : openFiles.entrySet()) {
+					try {
+						entry.getValue().force(false);
+					} catch (IOException e) {
+						System.out.println("could not write history file "
+								+ entry.getKey().getPath() + " to disk: "
+								+ e.getMessage());
+					}
+				}
+				latch.countDown();
+			}
+		}));
+		return latch.await(timeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Like {@link #read(String, String, long, int)}, but reads on the history
+	 * thread once every message handed over so far has been appended. Can be
+	 * called from any thread and never blocks.
+	 *
+	 * @param username
+	 * @param otherUsername
+	 *            the other user, or <code>null</code> for the broadcasts
+	 * @param since
+	 *            milliseconds since the epoch
+	 * @param max
+	 *            number of messages to read at most
+	 * @param callback
+	 *            receives the messages
+	 */
+	public void read(final String username, final String otherUsername,
+			final long since, final int max, ReadCallback callback) {
+		postRead(new Callable<List<Entry>>() {
+			public List<Entry> call() throws IOException {
+				return read(username, otherUsername, since, max);
+			}
+		}, callback);
+	}
+
+	/**
+	 * Like {@link #readLatest(String, String, int)}, but reads on the history
+	 * thread once every message handed over so far has been appended. Can be
+	 * called from any thread and never blocks.
+	 *
+	 * @param username
+	 * @param otherUsername
+	 *            the other user, or <code>null</code> for the broadcasts
+	 * @param max
+	 *            number of messages to read at most
+	 * @param callback
+	 *            receives the messages
+	 */
+	public void readLatest(final String username, final String otherUsername,
+			final int max, ReadCallback callback) {
+		postRead(new Callable<List<Entry>>() {
+			public List<Entry> call() throws IOException {
+				return readLatest(username, otherUsername, max);
+			}
+		}, callback);
+	}
+
+	/**
+	 * Hands a read to the history thread.
+	 *
+	 * @param read
+	 * @param callback
+	 *            always receives the outcome of the read
+	 */
+	private void postRead(final Callable<List<Entry>> read,
+			final ReadCallback callback) {
+		post(new Append(null, null, null, 0, new Runnable() {
+			public void run() {
+				List<Entry> entries = null;
+				IOException error = null;
+				try {
+					entries = read.call();
+				} catch (IOException e) {
+					error = e;
+				} catch (Exception e) {
+					error = new IOException(e.toString());
+				}
+				callback.completed(entries, error);
+			}
+		}));
+	}
+
+	/**
+	 * Reads the messages between two users, or the broadcasts, sent at or
+	 * after some time. Only reads the segments that can have such messages.
+	 *
+	 * @param username
+	 * @param otherUsername
+	 *            the other user, or <code>null</code> for the broadcasts
+	 * @param since
+	 *            milliseconds since the epoch
+	 * @param max
+	 *            number of messages to read at most
+	 * @return the first messages since then, oldest first
+	 * @throws IOException
+	 */
+	public List<Entry> read(String username, String otherUsername,
+			long since, int max) throws IOException {
+		List<Entry> entries = new ArrayList<Entry>();
+		Conversation conversation = getConversation(username, otherUsername,
+				false);
+		if (conversation == null) {
+			return entries;
+		}
+
+		Segment[] segments;
+		int[] lengths;
+		int first;
+		int position;
+		synchronized (conversation) {
+			segments = conversation.segments.toArray(new Segment[0]);
+			if (segments.length == 0) {
+				return entries;
+			}
+			lengths = lengths(segments);
+
+			// The last segment that starts before then, since every segment
+			// before it ends before then too
+			int low = 0;
+			int high = segments.length - 1;
+			while (low < high) {
+				int middle = (low + high + 1) >>> 1;
+				if (segments[middle].firstTimestamp < since) {
+					low = middle;
+				} else {
+					high = middle - 1;
+				}
+			}
+			first = low;
+
+			// The last message in the index before then
+			Segment segment = segments[first];
+			loadIndex(segment);
+			position = 0;
+			low = 0;
+			high = segment.indexSize - 1;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				if (segment.indexTimestamps[middle] < since) {
+					position = segment.indexPositions[middle];
+					low = middle + 1;
+				} else {
+					high = middle - 1;
+				}
+			}
+		}
+
+		CRC32 crc = new CRC32();
+		for (int i = first; i < segments.length && entries.size() < max; i++) {
+			readRecords(segments[i], i == first ? position : 0, lengths[i],
+					since, max, entries, crc);
+		}
+		return entries;
+	}
+
+	/**
+	 * Reads the latest messages between two users, or the latest broadcasts.
+	 * Reads the segments backwards from the end, a stretch of the index at a
+	 * time, until it has enough.
+	 *
+	 * @param username
+	 * @param otherUsername
+	 *            the other user, or <code>null</code> for the broadcasts
+	 * @param max
+	 *            number of messages to read at most
+	 * @return the last messages, oldest first
+	 * @throws IOException
+	 */
+	public List<Entry> readLatest(String username, String otherUsername,
+			int max) throws IOException {
+		List<Entry> entries = new ArrayList<Entry>();
+		Conversation conversation = getConversation(username, otherUsername,
+				false);
+		if (conversation == null) {
+			return entries;
+		}
+
+		Segment[] segments;
+		int[] lengths;
+		synchronized (conversation) {
+			segments = conversation.segments.toArray(new Segment[0]);
+			lengths = lengths(segments);
+		}
+
+		CRC32 crc = new CRC32();
+		for (int i = segments.length - 1; i >= 0 && entries.size() < max; i--) {
+			Segment segment = segments[i];
+			int[] positions;
+			synchronized (conversation) {
+				loadIndex(segment);
+				positions = new int[segment.indexSize];
+				System.arraycopy(segment.indexPositions, 0, positions, 0,
+						positions.length);
+			}
+
+			int end = lengths[i];
+			for (int j = positions.length; j >= 0 && entries.size() < max; j--) {
+				int start = j == 0 ? 0 : positions[j - 1];
+				if (start >= end) {
+					continue;
+				}
+				List<Entry> stretch = new ArrayList<Entry>();
+				readRecords(segment, start, end, Long.MIN_VALUE,
+						Integer.MAX_VALUE, stretch, crc);
+				stretch.addAll(entries);
+				entries = stretch;
+				end = start;
+			}
+		}
+		return entries.size() > max ? new ArrayList<Entry>(entries.subList(
+				entries.size() - max, entries.size())) : entries;
+	}
+
+	/**
+	 * Hands something to the history thread.
+	 *
+	 * @param append
+	 */
+	private void post(Append append) {
+		queue.add(append);
+		if (idle || append.callback != null) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	public void run() {
+		while (true) {
+			Append append = queue.poll();
+			if (append == null) {
+				if (!dirty.isEmpty()) {
+					// More are likely to follow, so let them pile up for a
+					// while rather than being woken up for each
+					flush();
+					LockSupport.parkNanos(this, BATCH_DELAY);
+					continue;
+				}
+
+				// Check once more after saying we're idle, so that a message
+				// posted in between isn't left waiting
+				idle = true;
+				if (queue.isEmpty()) {
+					LockSupport.park(this);
+				}
+				idle = false;
+				continue;
+			}
+
+			if (append.callback != null) {
+				flush();
+				try {
+					append.callback.run();
+				} catch (RuntimeException e) {
+					// Don't let one callback take the history thread down
+					System.out.println("history callback failed: " + e);
+				}
+				continue;
+			}
+			try {
+				append(append);
+			} catch (IOException e) {
+				System.out.println("could not save the history of a message from "
+						+ append.fromUsername + ": " + e.getMessage());
+			} catch (RuntimeException e) {
+				// Don't let one message take the history thread down
+				System.out.println("could not save the history of a message from "
+						+ append.fromUsername + ": " + e);
+			}
+			if (pendingBytes >= BATCH_SIZE) {
+				flush();
+			}
+		}
+	}
+
+	/**
+	 * Adds a message to the end of its conversation, starting a new segment
+	 * if the last one is full. The message is only written by the next
+	 * {@link #flush()}. Called by the history thread only.
+	 *
+	 * @param append
+	 * @throws IOException
+	 */
+	private void append(Append append) throws IOException {
+		byte[] from = append.fromUsername.getBytes(Utilities.CHARSET);
+		byte[] text = append.message.getBytes(Utilities.CHARSET);
+		if (from.length > 0xffff) {
+			System.out.println("username " + append.fromUsername
+					+ " is too long to save in the history");
+			return;
+		}
+		Conversation conversation = getConversation(append.fromUsername,
+				append.toUsername, true);
+		int length = MIN_LENGTH + from.length + text.length;
+		long timestamp = Math.max(append.timestamp,
+				conversation.lastTimestamp + 1);
+
+		// Only this thread changes the segments, so it can look at them
+		// without the lock
+		List<Segment> segments = conversation.segments;
+		Segment segment = segments.isEmpty() ? null : segments.get(segments
+				.size() - 1);
+		if (segment == null
+				|| (segment.end > 0 && segment.end + HEADER_LENGTH + length > SEGMENT_SIZE)) {
+			segment = new Segment(segment == null ? 1 : segment.id + 1,
+					conversation.directory);
+			segment.firstTimestamp = timestamp;
+			segment.indexTimestamps = new long[0];
+			segment.indexPositions = new int[0];
+			synchronized (conversation) {
+				segments.add(segment);
+			}
+		}
+
+		ByteBuffer record = ByteBuffer.allocate(HEADER_LENGTH + length);
+		record.putInt(length);
+		record.putInt(0); // Checksum, once the rest is written
+		record.putLong(timestamp);
+		record.putShort((short) from.length);
+		record.put(from);
+		record.putInt(text.length);
+		record.put(text);
+		crc.reset();
+		crc.update(record.array(), HEADER_LENGTH, length);
+		record.putInt(4, (int) crc.getValue());
+		segment.pending.write(record.array(), 0, record.capacity());
+
+		if (segment.indexSize == 0
+				|| segment.end - segment.indexPositions[segment.indexSize - 1] >= INDEX_INTERVAL) {
+			// Readers never look past the length of the segment, so the entry
+			// can be used before the record is written
+			synchronized (conversation) {
+				segment.addIndexEntry(timestamp, segment.end);
+			}
+			if (segment.end > 0) {
+				ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_LENGTH);
+				entry.putLong(timestamp);
+				entry.putInt(segment.end);
+				segment.pendingIndex.write(entry.array(), 0, entry.capacity());
+			}
+		}
+
+		segment.end += HEADER_LENGTH + length;
+		conversation.lastTimestamp = timestamp;
+		dirty.put(segment, conversation);
+		pendingBytes += HEADER_LENGTH + length;
+	}
+
+	/**
+	 * Writes the messages appended since the last flush, with a single write
+	 * to every segment and index they went to, and then lets readers see
+	 * them. Called by the history thread only.
+	 */
+	private void flush() {
+		for (Map.Entry<Segment, Conversation> entry : dirty.entrySet()) {
+			Segment segment = entry.getKey();
+			Conversation conversation = entry.getValue();
+			try {
+				write(segment.file, segment.pending, segment.length);
+				write(segment.indexFile, segment.pendingIndex,
+						segment.indexEnd);
+				segment.indexEnd += segment.pendingIndex.size();
+				synchronized (conversation) {
+					segment.length = segment.end;
+				}
+			} catch (IOException e) {
+				System.out.println("could not save history in "
+						+ segment.file.getPath() + ": " + e.getMessage());
+
+				// Drop the messages, and their index entries, so the next
+				// ones go where they were
+				segment.end = segment.length;
+				synchronized (conversation) {
+					while (segment.indexSize > 0
+							&& segment.indexPositions[segment.indexSize - 1] >= segment.length) {
+						segment.indexSize--;
+					}
+				}
+				segment.indexEnd = Math.max(0, segment.indexSize - 1)
+						* INDEX_ENTRY_LENGTH;
+			}
+			segment.pending.reset();
+			segment.pendingIndex.reset();
+		}
+
+		// What is on disk is all there is to them now
+		synchronized (conversations) {
+			for (Conversation conversation : dirty.values()) {
+				conversation.pinned = false;
+			}
+		}
+		dirty.clear();
+		pendingBytes = 0;
+	}
+
+	/**
+	 * Writes bytes to a file, keeping the file open for the next time.
+	 *
+	 * @param file
+	 * @param bytes
+	 * @param position
+	 * @throws IOException
+	 */
+	private void write(File file, ByteArrayOutputStream bytes, long position)
+			throws IOException {
+		if (bytes.size() == 0) {
+			return;
+		}
+		FileChannel channel = openFiles.get(file);
+		if (channel == null) {
+			channel = new RandomAccessFile(file, "rw").getChannel();
+			openFiles.put(file, channel);
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	private static void close(File file, FileChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			System.out.println("could not close history file " + file.getPath()
+					+ ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @param username
+	 * @param otherUsername
+	 *            the other user, or <code>null</code> for the broadcasts
+	 * @param create
+	 *            whether to create the conversation if it doesn't exist, which
+	 *            only the history thread does. The conversation then stays in
+	 *            the cache until the next {@link #flush()}.
+	 * @return the conversation, or <code>null</code> if it doesn't exist and
+	 *         isn't created
+	 * @throws IOException
+	 */
+	private Conversation getConversation(String username,
+			String otherUsername, boolean create) throws IOException {
+		// Usernames have no spaces, so a space can separate them
+		String key;
+		if (otherUsername == null) {
+			key = "";
+		} else if (username.compareTo(otherUsername) <= 0) {
+			key = username + ' ' + otherUsername;
+		} else {
+			key = otherUsername + ' ' + username;
+		}
+
+		Conversation conversation;
+		synchronized (conversations) {
+			conversation = conversations.get(key);
+			if (conversation == null) {
+				conversation = new Conversation(new File(directory,
+						conversationName(username, otherUsername)));
+				conversations.put(key, conversation);
+				evict();
+			}
+			if (create) {
+				conversation.pinned = true;
+			}
+		}
+
+		// Load it outside the lock of the cache
+		try {
+			synchronized (conversation) {
+				if (!conversation.loaded) {
+					if (!conversation.directory.isDirectory()) {
+						if (!create) {
+							return null;
+						}
+						if (!conversation.directory.mkdirs()) {
+							throw new IOException("could not create "
+									+ conversation.directory.getPath());
+						}
+					}
+					load(conversation);
+					conversation.loaded = true;
+				}
+			}
+		} catch (IOException e) {
+			if (create) {
+				// Nothing was appended to it after all
+				synchronized (conversations) {
+					conversation.pinned = false;
+				}
+			}
+			throw e;
+		}
+		return conversation;
+	}
+
+	/**
+	 * Drops the least recently used conversations that have nothing waiting
+	 * to be written, until the cache is small enough again. Their segments
+	 * hold no open files, so dropping them only frees their memory. Must be
+	 * called while holding the lock of the cache.
+	 */
+	private void evict() {
+		Iterator<Conversation> iter = conversations.values().iterator();
+		while (conversations.size() > CACHED_CONVERSATIONS && iter.hasNext()) {
+			if (!iter.next().pinned) {
+				iter.remove();
+			}
+		}
+	}
+
+	/**
+	 * Finds the segments of a conversation and checks the last one. Must be
+	 * called while holding the lock of the conversation.
+	 *
+	 * @param conversation
+	 * @throws IOException
+	 */
+	private static void load(Conversation conversation) throws IOException {
+		File conversationDirectory = conversation.directory;
+		conversation.segments.clear();
+		conversation.lastTimestamp = Long.MIN_VALUE;
+		TreeMap<Integer, Segment> ordered = new TreeMap<Integer, Segment>();
+		File[] files = conversationDirectory.listFiles();
+		if (files == null) {
+			throw new IOException("could not list "
+					+ conversationDirectory.getPath());
+		}
+		for (File file : files) {
+			String name = file.getName();
+			if (!name.endsWith(SEGMENT_SUFFIX)) {
+				continue;
+			}
+			try {
+				int id = Integer.parseInt(name.substring(0, name.length()
+						- SEGMENT_SUFFIX.length()));
+				ordered.put(id, new Segment(id, conversationDirectory));
+			} catch (NumberFormatException e) {
+				// Not one of ours
+			}
+		}
+
+		// Check the last segment, which may have been cut short by a crash,
+		// and drop it if nothing is left of it
+		while (!ordered.isEmpty()) {
+			Segment last = ordered.lastEntry().getValue();
+			long lastTimestamp = recover(last);
+			if (last.length > 0) {
+				conversation.lastTimestamp = lastTimestamp;
+				break;
+			}
+			ordered.remove(last.id);
+			if (!last.file.delete() || last.indexFile.exists()
+					&& !last.indexFile.delete()) {
+				System.out.println("could not delete history segment "
+						+ last.file.getPath());
+			}
+		}
+
+		for (Segment segment : ordered.values()) {
+			if (segment.indexTimestamps == null) {
+				readFirstTimestamp(segment);
+			}
+			conversation.segments.add(segment);
+		}
+	}
+
+	/**
+	 * Scans a segment up to its first record that is incomplete or fails its
+	 * checksum, truncates it there and rebuilds its index.
+	 *
+	 * @param segment
+	 * @return timestamp of the last record, if the segment has any
+	 * @throws IOException
+	 */
+	private static long recover(Segment segment) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(segment.file, "rw");
+		long lastTimestamp = Long.MIN_VALUE;
+		try {
+			byte[] bytes = new byte[(int) Math.min(file.length(),
+					Integer.MAX_VALUE)];
+			file.readFully(bytes);
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			CRC32 crc = new CRC32();
+
+			segment.indexTimestamps = new long[0];
+			segment.indexPositions = new int[0];
+			segment.indexSize = 0;
+			int position = 0;
+			while (position + HEADER_LENGTH <= bytes.length) {
+				int length = buffer.getInt(position);
+				if (length < MIN_LENGTH
+						|| length > bytes.length - position - HEADER_LENGTH) {
+					break;
+				}
+				crc.reset();
+				crc.update(bytes, position + HEADER_LENGTH, length);
+				if (buffer.getInt(position + 4) != (int) crc.getValue()) {
+					break;
+				}
+
+				long timestamp = buffer.getLong(position + HEADER_LENGTH);
+				if (position == 0) {
+					segment.firstTimestamp = timestamp;
+				}
+				if (segment.indexSize == 0
+						|| position
+								- segment.indexPositions[segment.indexSize - 1] >= INDEX_INTERVAL) {
+					segment.addIndexEntry(timestamp, position);
+				}
+				lastTimestamp = timestamp;
+				position += HEADER_LENGTH + length;
+			}
+			segment.length = position;
+
+			if (position < bytes.length) {
+				System.out.println("truncating history segment "
+						+ segment.file.getPath() + " at " + position);
+				file.setLength(position);
+			}
+		} finally {
+			file.close();
+		}
+		if (segment.length == 0) {
+			return lastTimestamp;
+		}
+
+		// Rewrite the index, which may be missing entries or have entries for
+		// records that are gone
+		segment.end = segment.length;
+		segment.indexEnd = (segment.indexSize - 1) * INDEX_ENTRY_LENGTH;
+		if (segment.indexSize == 1) {
+			if (segment.indexFile.exists() && !segment.indexFile.delete()) {
+				throw new IOException("could not delete "
+						+ segment.indexFile.getPath());
+			}
+			return lastTimestamp;
+		}
+		RandomAccessFile index = new RandomAccessFile(segment.indexFile, "rw");
+		try {
+			ByteBuffer entries = ByteBuffer.allocate(segment.indexEnd);
+			for (int i = 1; i < segment.indexSize; i++) {
+				entries.putLong(segment.indexTimestamps[i]);
+				entries.putInt(segment.indexPositions[i]);
+			}
+			index.setLength(0);
+			index.write(entries.array());
+		} finally {
+			index.close();
+		}
+		return lastTimestamp;
+	}
+
+	/**
+	 * Reads the timestamp of the first record of a segment, and takes the
+	 * size of the file as the length of the segment.
+	 *
+	 * @param segment
+	 * @throws IOException
+	 */
+	private static void readFirstTimestamp(Segment segment) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(segment.file, "r");
+		try {
+			segment.length = (int) Math.min(file.length(), Integer.MAX_VALUE);
+			if (segment.length < HEADER_LENGTH + MIN_LENGTH) {
+				// Nothing to read, so never start reading before it
+				segment.firstTimestamp = Long.MAX_VALUE;
+				return;
+			}
+			file.seek(HEADER_LENGTH);
+			segment.firstTimestamp = file.readLong();
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Loads the index of a segment if it isn't loaded yet. An index that is
+	 * missing or cut short only makes reading start further back. Must be
+	 * called while holding the lock of the conversation.
+	 *
+	 * @param segment
+	 * @throws IOException
+	 */
+	private static void loadIndex(Segment segment) throws IOException {
+		if (segment.indexTimestamps != null) {
+			return;
+		}
+		segment.indexTimestamps = new long[0];
+		segment.indexPositions = new int[0];
+		segment.indexSize = 0;
+		if (segment.length == 0) {
+			return;
+		}
+
+		// The first record is never in the index file
+		segment.addIndexEntry(segment.firstTimestamp, 0);
+		if (!segment.indexFile.exists()) {
+			return;
+		}
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(segment.indexFile)));
+		try {
+			while (true) {
+				long timestamp = in.readLong();
+				int position = in.readInt();
+				if (position >= segment.length
+						|| (segment.indexSize > 0 && position <= segment.indexPositions[segment.indexSize - 1])) {
+					break;
+				}
+				segment.addIndexEntry(timestamp, position);
+			}
+		} catch (EOFException e) {
+			// End of the index
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads the records of a segment between two positions.
+	 *
+	 * @param segment
+	 * @param start
+	 *            position of a record
+	 * @param end
+	 *            position to stop at
+	 * @param since
+	 *            skip records older than this
+	 * @param max
+	 *            stop once there are this many entries
+	 * @param entries
+	 *            where the entries are added
+	 * @param crc
+	 * @throws IOException
+	 */
+	private static void readRecords(Segment segment, int start, int end,
+			long since, int max, List<Entry> entries, CRC32 crc)
+			throws IOException {
+		FileInputStream stream = new FileInputStream(segment.file);
+		try {
+			stream.getChannel().position(start);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					stream));
+			int position = start;
+			while (position + HEADER_LENGTH <= end && entries.size() < max) {
+				int length = in.readInt();
+				int checksum = in.readInt();
+				if (length < MIN_LENGTH
+						|| length > end - position - HEADER_LENGTH) {
+					break;
+				}
+				byte[] bytes = new byte[length];
+				in.readFully(bytes);
+				crc.reset();
+				crc.update(bytes, 0, length);
+				if ((int) crc.getValue() != checksum) {
+					System.out.println("history segment "
+							+ segment.file.getPath()
+							+ " has a bad record at " + position);
+					break;
+				}
+				position += HEADER_LENGTH + length;
+
+				ByteBuffer record = ByteBuffer.wrap(bytes);
+				long timestamp = record.getLong();
+				if (timestamp < since) {
+					continue;
+				}
+				String fromUsername = readString(record,
+						record.getShort() & 0xffff);
+				String message = readString(record, record.getInt());
+				entries.add(new Entry(timestamp, fromUsername, message));
+			}
+		} finally {
+			stream.close();
+		}
+	}
+
+	private static String readString(ByteBuffer record, int length) {
+		String str = new String(record.array(), record.position(), length,
+				Utilities.CHARSET);
+		record.position(record.position() + length);
+		return str;
+	}
+
+	/**
+	 * @param segments
+	 * @return the length of every segment right now
+	 */
+	private static int[] lengths(Segment[] segments) {
+		int[] lengths = new int[segments.length];
+		for (int i = 0; i < segments.length; i++) {
+			lengths[i] = segments[i].length;
+		}
+		return lengths;
+	}
+
+	/**
+	 * @param username
+	 * @param otherUsername
+	 *            <code>null</code> for the broadcasts
+	 * @return name of the directory of the conversation, the same whichever
+	 *         user comes first
+	 */
+	private static String conversationName(String username,
+			String otherUsername) {
+		if (otherUsername == null) {
+			return BROADCAST_DIRECTORY;
+		}
+		if (username.compareTo(otherUsername) > 0) {
+			String swap = username;
+			username = otherUsername;
+			otherUsername = swap;
+		}
+		// Usernames have no spaces, which are the only thing encoded as +
+		return PAIR_DIRECTORY_PREFIX + encode(username) + "+"
+				+ encode(otherUsername);
+	}
+
+	/**
+	 * @param username
+	 * @return the username with anything that can't be in a file name escaped
+	 */
+	private static String encode(String username) {
+		try {
+			return URLEncoder.encode(username, Utilities.CHARSET.name())
+					.replace("*", "%2A");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
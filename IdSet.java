@@ -0,0 +1,133 @@
+import java.util.Arrays;
+
+/**
+ * An immutable set of dense {@link User} ids, stored either as a sorted
+ * <code>int</code> array or as a bitmap, whichever takes less memory. Adding
+ * or removing an id returns a new set, so a set can be read by any thread
+ * without locking.
+ */
+public final class IdSet {
+	public static final IdSet EMPTY = new IdSet(new int[0], null, 0);
+
+	/**
+	 * Sorted ids, or <code>null</code> if the set is a bitmap
+	 */
+	private final int[] ids;
+
+	/**
+	 * Bit <code>id</code> is set for every id in the set, or <code>null</code>
+	 * if the set is a sorted array
+	 */
+	private final long[] bits;
+
+	private final int size;
+
+	private IdSet(int[] ids, long[] bits, int size) {
+		this.ids = ids;
+		this.bits = bits;
+		this.size = size;
+	}
+
+	/**
+	 * @param sortedIds
+	 *            distinct ids in ascending order
+	 * @return a set of the ids in whichever form takes less memory
+	 */
+	public static IdSet of(int[] sortedIds) {
+		int size = sortedIds.length;
+		if (size == 0) {
+			return EMPTY;
+		}
+
+		int words = (sortedIds[size - 1] >>> 6) + 1;
+		if ((long) words * 8 >= (long) size * 4) {
+			return new IdSet(sortedIds, null, size);
+		}
+
+		long[] bits = new long[words];
+		for (int id : sortedIds) {
+			bits[id >>> 6] |= 1L << id;
+		}
+		return new IdSet(null, bits, size);
+	}
+
+	/**
+	 * @param id
+	 * @return whether the id is in the set
+	 */
+	public boolean contains(int id) {
+		if (bits != null) {
+			int word = id >>> 6;
+			return word < bits.length && (bits[word] & (1L << id)) != 0;
+		}
+		return Arrays.binarySearch(ids, id) >= 0;
+	}
+
+	/**
+	 * @param id
+	 * @return a set with the id added, or this set if it is already there
+	 */
+	public IdSet with(int id) {
+		if (contains(id)) {
+			return this;
+		}
+
+		int[] sorted = toArray();
+		int[] added = new int[size + 1];
+		int position = -Arrays.binarySearch(sorted, id) - 1;
+		System.arraycopy(sorted, 0, added, 0, position);
+		added[position] = id;
+		System.arraycopy(sorted, position, added, position + 1, size
+				- position);
+		return of(added);
+	}
+
+	/**
+	 * @param id
+	 * @return a set with the id removed, or this set if it is not there
+	 */
+	public IdSet without(int id) {
+		if (!contains(id)) {
+			return this;
+		}
+
+		int[] sorted = toArray();
+		int[] removed = new int[size - 1];
+		int position = Arrays.binarySearch(sorted, id);
+		System.arraycopy(sorted, 0, removed, 0, position);
+		System.arraycopy(sorted, position + 1, removed, position, size
+				- position - 1);
+		return of(removed);
+	}
+
+	/**
+	 * @return number of ids in the set
+	 */
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return the ids in ascending order
+	 */
+	public int[] toArray() {
+		if (bits == null) {
+			return ids.clone();
+		}
+
+		int[] sorted = new int[size];
+		int count = 0;
+		for (int word = 0; word < bits.length; word++) {
+			long w = bits[word];
+			while (w != 0) {
+				sorted[count++] = (word << 6) + Long.numberOfTrailingZeros(w);
+				w &= w - 1;
+			}
+		}
+		return sorted;
+	}
+}
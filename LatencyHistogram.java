@@ -0,0 +1,108 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts latencies in buckets that are 1/32 of a power of two wide, so
+ * percentiles are within about 3% of the truth at any scale. Every bucket is a
+ * striped counter, so many threads can record at once without contending on
+ * the same memory.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private LongAdder[] counts;
+	private AtomicLong max;
+
+	public LatencyHistogram() {
+		this.counts = new LongAdder[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = new LongAdder();
+		}
+		this.max = new AtomicLong();
+	}
+
+	/**
+	 * @param nanos
+	 *            latency in nanoseconds
+	 */
+	public void record(long nanos) {
+		nanos = Math.max(nanos, 0);
+		counts[index(nanos)].increment();
+
+		// Only contends while the maximum is still going up
+		long current;
+		while (nanos > (current = max.get())
+				&& !max.compareAndSet(current, nanos)) {
+		}
+	}
+
+	/**
+	 * @return number of latencies recorded
+	 */
+	public long getCount() {
+		long count = 0;
+		for (LongAdder bucket : counts) {
+			count += bucket.sum();
+		}
+		return count;
+	}
+
+	/**
+	 * @return highest latency recorded, in nanoseconds
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @param fraction
+	 *            between 0 and 1
+	 * @return the latency that this fraction of the latencies recorded are at
+	 *         most, in nanoseconds, or 0 if none have been recorded
+	 */
+	public long percentile(double fraction) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts[i].sum();
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(fraction * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(value(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	private static int index(long nanos) {
+		if (nanos < 2 * SUB_BUCKETS) {
+			return (int) nanos;
+		}
+		// Keep the SUB_BUCKET_BITS + 1 most significant bits
+		int shift = 63 - Long.numberOfLeadingZeros(nanos) - SUB_BUCKET_BITS;
+		return 2 * SUB_BUCKETS + (shift - 1) * SUB_BUCKETS
+				+ (int) (nanos >>> shift) - SUB_BUCKETS;
+	}
+
+	/**
+	 * @return the middle of a bucket
+	 */
+	private static long value(int index) {
+		if (index < 2 * SUB_BUCKETS) {
+			return index;
+		}
+		int shift = (index - 2 * SUB_BUCKETS) / SUB_BUCKETS + 1;
+		long low = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+		return low + (1L << shift) / 2;
+	}
+}
@@ -0,0 +1,689 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A headless client that puts load on a <code>Server</code>. Logs in many
+ * sessions with the credentials of a user database, has a few sender threads
+ * send a mix of message, broadcast and whoelse commands from random sessions
+ * at a fixed rate, and reports the throughput along with percentiles of how
+ * long messages took to be delivered and commands took to be answered.
+ *
+ * Every message carries the time it was meant to be sent, so delivery is
+ * timed end to end by the session that receives it. Times are measured from
+ * when a command was due rather than from when it was actually sent, so a
+ * server that falls behind can't hide it by holding up the senders.
+ *
+ * Sessions either connect to a running server over TCP and speak the same
+ * protocol as the {@link Client}, or (with --local) log in to a
+ * <code>Server</code> started in the same process, whose frames are encoded
+ * and decoded just as they would be on the wire.
+ */
+public class LoadClient {
+	private static final String USAGE = "usage: java LoadClient (<ip address> <port number> | --local [--shards=<n>]) [--users=<user_database>] [--sessions=<n>] [--rate=<commands/s>] [--duration=<seconds>] [--mix=message:<n>,broadcast:<n>,whoelse:<n>] [--senders=<n>]";
+
+	private static final int MESSAGE = 0;
+	private static final int BROADCAST = 1;
+	private static final int WHOELSE = 2;
+	private static final String[] COMMANDS = { "message", "broadcast",
+			"whoelse" };
+
+	/**
+	 * Starts every message sent, followed by the time it was due
+	 */
+	private static final String TAG = "t=";
+	private static final String SAYS = " says: ";
+	private static final String SAID = " said: "; // Offline messages
+	private static final String TEXT = "Hello there, how are you doing today? :)";
+
+	private static final int LOGIN_THREADS = 16;
+	private static final long BUSY_WAIT = 50; // Milliseconds
+	private static final long DRAIN_TIME = 10000; // Milliseconds
+	private static final int READER_STACK_SIZE = 128 * 1024; // Bytes
+
+	/**
+	 * Throws away everything written to it.
+	 */
+	private static final OutputStream NULL_STREAM = new OutputStream() {
+		public void write(int b) {
+		}
+
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+
+	/**
+	 * A logged in user.
+	 */
+	private abstract class Session {
+		protected String username;
+		protected volatile boolean closed;
+
+		protected Session(String username) {
+			this.username = username;
+			this.closed = false;
+		}
+
+		/**
+		 * Sends a command.
+		 *
+		 * @param line
+		 * @param due
+		 *            when the command was due, from {@link System#nanoTime()}
+		 * @throws IOException
+		 */
+		public abstract void send(String line, long due) throws IOException;
+
+		/**
+		 * Logs out and lets go of the connection.
+		 */
+		public abstract void close();
+	}
+
+	/**
+	 * A session connected to the server over TCP, with a thread of its own
+	 * that reads what the server sends.
+	 */
+	private class TcpSession extends Session implements Runnable {
+		private Socket socket;
+		private FrameReader in;
+		private OutputStream out;
+		private boolean binary;
+
+		/**
+		 * When each command that hasn't been answered yet was due
+		 */
+		private Queue<Long> unanswered;
+
+		private TcpSession(String username) {
+			super(username);
+			this.binary = false;
+			this.unanswered = new ConcurrentLinkedQueue<Long>();
+		}
+
+		/**
+		 * Connects and logs in, trying again while the server is too busy.
+		 *
+		 * @return times the server was too busy
+		 * @throws IOException
+		 *             if the connection or the login failed
+		 */
+		private int login(String host, int port, String password)
+				throws IOException {
+			socket = new Socket(host, port);
+			socket.setTcpNoDelay(true);
+			in = new FrameReader(socket.getInputStream());
+			out = new BufferedOutputStream(socket.getOutputStream());
+
+			String[] fromServer = in.readMessage();
+			if (fromServer != null && in.isBinaryOffered()) {
+				// The server sends the prompt again using the binary framing
+				write(Utilities.BINARY);
+				binary = true;
+				in.setBinary(true);
+				fromServer = in.readMessage();
+			}
+
+			int busy = 0;
+			while (true) {
+				write(username);
+				in.readMessage();
+				write(password);
+				fromServer = in.readMessage();
+				if (fromServer == null) {
+					throw new IOException(username + " was disconnected");
+				}
+				if (fromServer[0].equals("Command")) {
+					return busy;
+				}
+				if (!fromServer[1].contains("busy")) {
+					throw new IOException(username + " could not log in: "
+							+ fromServer[1].trim());
+				}
+				busy++;
+				try {
+					Thread.sleep(BUSY_WAIT);
+				} catch (InterruptedException e) {
+					throw new IOException("interrupted");
+				}
+			}
+		}
+
+		private void write(String line) throws IOException {
+			synchronized (out) {
+				Utilities.writeLine(out, line, binary);
+				out.flush();
+			}
+		}
+
+		public void send(String line, long due) throws IOException {
+			synchronized (out) {
+				// Queued in the order written, so that replies match
+				unanswered.add(due);
+				Utilities.writeLine(out, line, binary);
+				out.flush();
+			}
+		}
+
+		public void run() {
+			try {
+				String[] fromServer;
+				while ((fromServer = in.readMessage()) != null) {
+					String message = fromServer[1];
+					if (received(message) || message.contains(SAID)) {
+						continue;
+					}
+					if (message.endsWith(Utilities.EXIT)
+							|| message.equals(Utilities.FORCE_EXIT)) {
+						break;
+					}
+					Long due = unanswered.poll();
+					if (due != null) {
+						replyLatency.record(System.nanoTime() - due);
+					}
+				}
+			} catch (IOException e) {
+				// Disconnected
+			}
+			if (!closed) {
+				closed = true;
+				disconnected.incrementAndGet();
+			}
+		}
+
+		public void close() {
+			closed = true;
+			try {
+				write("logout");
+				socket.shutdownOutput();
+			} catch (IOException e) {
+				// Already gone
+			}
+		}
+	}
+
+	/**
+	 * A session logged in to a server in the same process. Frames sent to it
+	 * are encoded and decoded as if they had come over the network, on the
+	 * thread of the shard that delivers them.
+	 */
+	private class LocalSession extends Session implements Connection {
+		private String threadId;
+		private ByteArrayOutputStream bytes;
+
+		private LocalSession(String username, String threadId) {
+			super(username);
+			this.threadId = threadId;
+			this.bytes = new ByteArrayOutputStream();
+		}
+
+		public void send(String line, long due) {
+			server.processClientInput(line, this);
+			replyLatency.record(System.nanoTime() - due);
+		}
+
+		public void close() {
+			closed = true;
+			server.processClientInput("logout", this);
+			server.removeServerThread(threadId);
+		}
+
+		public String getThreadId() {
+			return threadId;
+		}
+
+		public String getIpAddress() {
+			return "127.0.0.1";
+		}
+
+		public void print(String message) {
+			send(new Frame("Command", message));
+		}
+
+		public void send(Frame frame) {
+			String encodedMessage;
+			synchronized (bytes) {
+				bytes.reset();
+				try {
+					frame.writeTo(bytes, false);
+				} catch (IOException e) {
+					return;
+				}
+				encodedMessage = new String(bytes.toByteArray(),
+						Utilities.CHARSET).trim();
+			}
+			received(Utilities.decodeMessage(encodedMessage)[1]);
+		}
+
+		public int getPendingFrames() {
+			return 0;
+		}
+
+		public Outbox getOutbox() {
+			return null;
+		}
+
+		public void disconnect(String reason) {
+			if (!closed) {
+				closed = true;
+				disconnected.incrementAndGet();
+			}
+		}
+	}
+
+	// Where to connect, or the server in this process
+	private String host;
+	private int port;
+	private Server server;
+
+	private List<Session> sessions;
+	private LatencyHistogram deliveryLatency = new LatencyHistogram();
+	private LatencyHistogram replyLatency = new LatencyHistogram();
+	private AtomicLong expected = new AtomicLong(); // Deliveries
+	private AtomicInteger disconnected = new AtomicInteger();
+	private AtomicLong[] sent = { new AtomicLong(), new AtomicLong(),
+			new AtomicLong() };
+
+	/**
+	 * Records the latency of a message sent by one of the sessions.
+	 *
+	 * @param message
+	 *            decoded message from the server
+	 * @return whether it was such a message
+	 */
+	private boolean received(String message) {
+		int start = message.indexOf(SAYS + TAG);
+		if (start < 0) {
+			return false;
+		}
+		start += SAYS.length() + TAG.length();
+		int end = message.indexOf(' ', start);
+		try {
+			long due = Long.parseLong(message.substring(start, end));
+			deliveryLatency.record(System.nanoTime() - due);
+		} catch (RuntimeException e) {
+			return false;
+		}
+		return true;
+	}
+
+	public static void main(String[] args) throws Exception {
+		String host = null;
+		int port = 0;
+		boolean local = false;
+		int shards = 0; // One per core
+		String users = null;
+		int sessions = 100;
+		double rate = 1000;
+		int duration = 10;
+		int[] mix = { 90, 1, 9 };
+		int senders = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+		List<String> addresses = new ArrayList<String>();
+		try {
+			for (String arg : args) {
+				if (arg.equals("--local")) {
+					local = true;
+				} else if (arg.startsWith("--shards=")) {
+					shards = positive(arg, "--shards=");
+				} else if (arg.startsWith("--users=")) {
+					users = arg.substring("--users=".length());
+				} else if (arg.startsWith("--sessions=")) {
+					sessions = positive(arg, "--sessions=");
+				} else if (arg.startsWith("--rate=")) {
+					rate = positive(arg, "--rate=");
+				} else if (arg.startsWith("--duration=")) {
+					duration = positive(arg, "--duration=");
+				} else if (arg.startsWith("--mix=")) {
+					mix = parseMix(arg.substring("--mix=".length()));
+				} else if (arg.startsWith("--senders=")) {
+					senders = positive(arg, "--senders=");
+				} else if (arg.startsWith("--")) {
+					Utilities.error(USAGE);
+				} else {
+					addresses.add(arg);
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			Utilities.error(e.getMessage());
+		}
+		if (local == (addresses.size() == 2) || addresses.size() % 2 != 0) {
+			Utilities.error(USAGE);
+		}
+		if (!local) {
+			host = addresses.get(0);
+			port = Utilities.parsePortNumber(addresses.get(1));
+		}
+
+		LoadClient client = new LoadClient();
+		PrintStream out = System.out;
+		if (local) {
+			// The server logs every connection
+			System.setOut(new PrintStream(NULL_STREAM));
+			File directory = File.createTempFile("loadclient", "");
+			directory.delete();
+			directory.mkdirs();
+			if (users == null) {
+				users = generateUsers(new File(directory, "user_pass.txt"),
+						sessions).getPath();
+			}
+			String offline = new File(directory, "offline").getPath();
+			String blocks = new File(directory, "blocks.dat").getPath();
+			client.server = shards == 0 ? new Server(users, offline, blocks)
+					: new Server(users, offline, blocks, shards);
+		} else {
+			client.host = host;
+			client.port = port;
+			if (users == null) {
+				users = "user_pass.txt";
+			}
+		}
+
+		List<String[]> credentials = readUsers(users, sessions);
+		if (credentials.size() < 2) {
+			Utilities.error("need at least 2 users with plain passwords in "
+					+ users);
+		}
+		out.printf("%d sessions on %s, %.0f commands/s for %d s (message %d, broadcast %d, whoelse %d)%n",
+				credentials.size(), local ? "a local server" : host + ":"
+						+ port, rate, duration, mix[MESSAGE], mix[BROADCAST],
+				mix[WHOELSE]);
+
+		long start = System.nanoTime();
+		int busy = client.login(credentials);
+		out.printf("logged in %d sessions in %.0f ms, server busy %d times%n",
+				client.sessions.size(), (System.nanoTime() - start) / 1e6,
+				busy);
+
+		client.run(out, rate, duration, mix, senders);
+		client.close();
+		System.exit(0);
+	}
+
+	/**
+	 * Logs every session in, a few at a time.
+	 *
+	 * @param credentials
+	 *            username and password of every session
+	 * @return times the server was too busy
+	 */
+	private int login(final List<String[]> credentials)
+			throws InterruptedException {
+		final Session[] loggedIn = new Session[credentials.size()];
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger busy = new AtomicInteger();
+		Thread[] threads = new Thread[Math.min(LOGIN_THREADS, loggedIn.length)];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					int i;
+					while ((i = next.getAndIncrement()) < loggedIn.length) {
+						String username = credentials.get(i)[0];
+						String password = credentials.get(i)[1];
+						try {
+							loggedIn[i] = server == null ? loginTcp(username,
+									password, busy) : loginLocal(username,
+									password, i);
+						} catch (IOException e) {
+							Utilities.error(e.getMessage());
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		sessions = new ArrayList<Session>(loggedIn.length);
+		for (Session session : loggedIn) {
+			sessions.add(session);
+		}
+		return busy.get();
+	}
+
+	private Session loginTcp(String username, String password,
+			AtomicInteger busy) throws IOException {
+		TcpSession session = new TcpSession(username);
+		busy.addAndGet(session.login(host, port, password));
+		Thread reader = new Thread(null, session, "reader-" + username,
+				READER_STACK_SIZE);
+		reader.setDaemon(true);
+		reader.start();
+		return session;
+	}
+
+	private Session loginLocal(String username, String password, int i)
+			throws IOException {
+		LocalSession session = new LocalSession(username, "load-" + i);
+		server.addConnection(session);
+		try {
+			if (server.authenticateUser(username, password, session)) {
+				return session;
+			}
+		} catch (User.UserAlreadyLoggedInException e) {
+			// Fall through
+		} catch (User.IpAddressBlockedException e) {
+			// Fall through
+		}
+		throw new IOException(username + " could not log in");
+	}
+
+	/**
+	 * Sends commands for a while, waits for what they sent to be delivered
+	 * and reports the results.
+	 */
+	private void run(PrintStream out, double rate, int duration,
+			final int[] mix, int senders) throws InterruptedException {
+		final int weights = mix[MESSAGE] + mix[BROADCAST] + mix[WHOELSE];
+		final long interval = (long) (1e9 * senders / rate);
+		final long start = System.nanoTime();
+		final long end = start + duration * 1000000000L;
+
+		Thread[] threads = new Thread[senders];
+		for (int t = 0; t < senders; t++) {
+			final long offset = interval * t / senders;
+			threads[t] = new Thread("sender-" + t) {
+				public void run() {
+					Random random = new Random();
+					long due = start + offset;
+					while (due < end) {
+						long wait = due - System.nanoTime();
+						if (wait > 0) {
+							LockSupport.parkNanos(wait);
+							continue;
+						}
+						int pick = random.nextInt(weights);
+						int command = pick < mix[MESSAGE] ? MESSAGE
+								: pick < mix[MESSAGE] + mix[BROADCAST] ? BROADCAST
+										: WHOELSE;
+						send(random, command, due);
+						due += interval;
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		long sendTime = System.nanoTime() - start;
+
+		// Wait for the stragglers
+		long deadline = System.currentTimeMillis() + DRAIN_TIME;
+		while ((deliveryLatency.getCount() < expected.get() || replyLatency
+				.getCount() < sent[MESSAGE].get() + sent[BROADCAST].get()
+				+ sent[WHOELSE].get())
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		long time = System.nanoTime() - start;
+
+		long commands = sent[MESSAGE].get() + sent[BROADCAST].get()
+				+ sent[WHOELSE].get();
+		out.printf("sent %d commands (%.0f/s): %d messages, %d broadcasts, %d whoelse%n",
+				commands, commands / (sendTime / 1e9), sent[MESSAGE].get(),
+				sent[BROADCAST].get(), sent[WHOELSE].get());
+		out.printf("delivered %d of %d messages (%.0f/s), %d sessions disconnected%n",
+				deliveryLatency.getCount(), expected.get(),
+				deliveryLatency.getCount() / (time / 1e9), disconnected.get());
+		out.println("latency (ms)     count      p50      p90      p99    p99.9      max");
+		print(out, "delivery", deliveryLatency);
+		print(out, "reply", replyLatency);
+	}
+
+	/**
+	 * Sends a command from a random session.
+	 */
+	private void send(Random random, int command, long due) {
+		Session session = sessions.get(random.nextInt(sessions.size()));
+		if (session.closed) {
+			return;
+		}
+		String line;
+		int recipients;
+		if (command == MESSAGE) {
+			Session to;
+			do {
+				to = sessions.get(random.nextInt(sessions.size()));
+			} while (to == session);
+			line = "message " + to.username + " " + TAG + due + " " + TEXT;
+			recipients = 1;
+		} else if (command == BROADCAST) {
+			line = "broadcast " + TAG + due + " " + TEXT;
+			recipients = sessions.size() - 1;
+		} else {
+			line = "whoelse";
+			recipients = 0;
+		}
+		try {
+			session.send(line, due);
+			sent[command].incrementAndGet();
+			expected.addAndGet(recipients);
+		} catch (IOException e) {
+			session.closed = true;
+		}
+	}
+
+	private static void print(PrintStream out, String name,
+			LatencyHistogram histogram) {
+		out.printf("%-12s %9d %8.3f %8.3f %8.3f %8.3f %8.3f%n", name,
+				histogram.getCount(), histogram.percentile(0.5) / 1e6,
+				histogram.percentile(0.9) / 1e6,
+				histogram.percentile(0.99) / 1e6,
+				histogram.percentile(0.999) / 1e6, histogram.getMax() / 1e6);
+	}
+
+	private void close() {
+		for (Session session : sessions) {
+			session.close();
+		}
+	}
+
+	/**
+	 * Reads the usernames and plain passwords of a user database, skipping
+	 * passwords that are hashed since they can't be logged in with.
+	 *
+	 * @param path
+	 * @param max
+	 *            most users to read
+	 * @return username and password of every user
+	 * @throws IOException
+	 */
+	private static List<String[]> readUsers(String path, int max)
+			throws IOException {
+		List<String[]> users = new ArrayList<String[]>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(path), Utilities.CHARSET));
+		try {
+			String line;
+			while (users.size() < max && (line = reader.readLine()) != null) {
+				String[] fields = line.trim().split(" ");
+				if (fields.length == 2 && !PasswordHash.isHashed(fields[1])) {
+					users.add(fields);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return users;
+	}
+
+	/**
+	 * Writes a user database of load0, load1... with plain passwords.
+	 */
+	private static File generateUsers(File file, int users) throws IOException {
+		PrintWriter writer = new PrintWriter(file, "UTF-8");
+		for (int i = 0; i < users; i++) {
+			writer.println("load" + i + " password" + i);
+		}
+		writer.close();
+		return file;
+	}
+
+	/**
+	 * @param mix
+	 *            such as message:90,broadcast:1,whoelse:9
+	 * @return weight of every command, by index
+	 */
+	private static int[] parseMix(String mix) {
+		int[] weights = new int[COMMANDS.length];
+		for (String part : mix.split(",")) {
+			int colon = part.indexOf(':');
+			int command = -1;
+			for (int i = 0; i < COMMANDS.length; i++) {
+				if (colon > 0 && COMMANDS[i].equalsIgnoreCase(part.substring(0,
+						colon))) {
+					command = i;
+				}
+			}
+			if (command < 0) {
+				throw new IllegalArgumentException(USAGE);
+			}
+			try {
+				weights[command] = Integer.parseInt(part.substring(colon + 1));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException(USAGE);
+			}
+			if (weights[command] < 0) {
+				throw new IllegalArgumentException(USAGE);
+			}
+		}
+		if (weights[MESSAGE] + weights[BROADCAST] + weights[WHOELSE] == 0) {
+			throw new IllegalArgumentException("the mix must have a command");
+		}
+		return weights;
+	}
+
+	private static int positive(String arg, String option) {
+		int value;
+		try {
+			value = Integer.parseInt(arg.substring(option.length()));
+		} catch (NumberFormatException e) {
+			value = -1;
+		}
+		if (value < 1) {
+			throw new IllegalArgumentException(option.substring(2,
+					option.length() - 1)
+					+ " must be a positive integer");
+		}
+		return value;
+	}
+}
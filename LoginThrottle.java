@@ -0,0 +1,290 @@
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps track of failed logins for the whole server and blocks an ip address
+ * from logging in for {@link Server#BLOCK_TIME} seconds, either as one user
+ * after too many failed attempts for that user, or as anybody after too many
+ * failed attempts in total.
+ *
+ * The table is split into stripes with a lock each, so logins checked on
+ * different threads rarely wait for each other. Each stripe keeps the failed
+ * attempts in two generations: entries are added to the current generation
+ * and moved back into it when they are used, and every
+ * {@link #GENERATION_TIME} seconds the previous generation is dropped as a
+ * whole. A stripe holds {@link #MAX_STRIPE_SIZE} of these entries at most;
+ * when it is full, the entries of the previous generation make room first,
+ * then the oldest of the current one, so failed attempts are always counted
+ * and the table stays bounded however many ip addresses and usernames are
+ * thrown at it.
+ *
+ * Blocks are kept apart from the attempts, so neither a full stripe nor a
+ * new generation ever lifts one early. A block is only dropped once it has
+ * run out, and there are never more of them than failed logins the
+ * {@link Authenticator} can check in {@link Server#BLOCK_TIME} seconds.
+ */
+public class LoginThrottle {
+	public static final int MAX_LOGIN_ATTEMPTS = 3; // Per ip address and user
+	public static final int MAX_IP_ADDRESS_ATTEMPTS = 32; // Per ip address
+	public static final int GENERATION_TIME = 10 * 60; // Seconds
+	public static final int MAX_STRIPE_SIZE = 8192; // Entries
+
+	/**
+	 * Failed attempts and block of an ip address, or of a user at an ip
+	 * address
+	 */
+	private static class Entry {
+		private int attempts;
+		private long blockedUntil;
+	}
+
+	private static class Stripe {
+		private LinkedHashMap<String, Entry> current; // Oldest first
+		private HashMap<String, Entry> previous;
+		private long generationStart;
+
+		/**
+		 * Entries that are blocked, until the block runs out
+		 */
+		private HashMap<String, Entry> blocked;
+
+		private Stripe(long now) {
+			this.current = new LinkedHashMap<String, Entry>();
+			this.previous = new HashMap<String, Entry>();
+			this.generationStart = now;
+			this.blocked = new HashMap<String, Entry>();
+		}
+
+		/**
+		 * @param key
+		 * @param now
+		 * @param create
+		 *            whether to create the entry if there is none
+		 * @return the entry or <code>null</code>
+		 */
+		private Entry get(String key, long now, boolean create) {
+			if (now - generationStart >= GENERATION_TIME * 1000L) {
+				rotate(now);
+			}
+
+			Entry entry = blocked.get(key);
+			if (entry != null) {
+				if (entry.blockedUntil > now) {
+					return entry;
+				}
+
+				// Block is over, so the attempts start over
+				blocked.remove(key);
+				entry = null;
+			} else {
+				entry = current.remove(key);
+				if (entry == null) {
+					entry = previous.remove(key);
+				}
+			}
+			if (entry == null) {
+				if (!create) {
+					return null;
+				}
+				makeRoom();
+				entry = new Entry();
+			}
+			current.put(key, entry);
+			return entry;
+		}
+
+		/**
+		 * Blocks an entry and keeps it until the block runs out.
+		 *
+		 * @param key
+		 * @param entry
+		 * @param now
+		 */
+		private void block(String key, Entry entry, long now) {
+			entry.attempts = 0;
+			entry.blockedUntil = now + Server.BLOCK_TIME * 1000L;
+			current.remove(key);
+			blocked.put(key, entry);
+		}
+
+		private void remove(String key) {
+			current.remove(key);
+			previous.remove(key);
+		}
+
+		/**
+		 * Forgets attempts, from the previous generation first, until there is
+		 * room for one more entry.
+		 */
+		private void makeRoom() {
+			Iterator<Entry> iter = previous.values().iterator();
+			while (current.size() + previous.size() >= MAX_STRIPE_SIZE
+					&& iter.hasNext()) {
+				iter.next();
+				iter.remove();
+			}
+			iter = current.values().iterator();
+			while (current.size() >= MAX_STRIPE_SIZE && iter.hasNext()) {
+				iter.next();
+				iter.remove();
+			}
+		}
+
+		/**
+		 * Drops the previous generation and the blocks that have run out, and
+		 * starts a new generation.
+		 *
+		 * @param now
+		 */
+		private void rotate(long now) {
+			if (now - generationStart >= 2 * GENERATION_TIME * 1000L) {
+				// Nothing has been used for two generations
+				current.clear();
+			}
+			previous = current;
+			current = new LinkedHashMap<String, Entry>();
+			generationStart = now;
+
+			Iterator<Entry> iter = blocked.values().iterator();
+			while (iter.hasNext()) {
+				if (iter.next().blockedUntil <= now) {
+					iter.remove();
+				}
+			}
+		}
+	}
+
+	private Stripe[] stripes;
+
+	/**
+	 * @param stripes
+	 *            number of stripes, rounded up to a power of two
+	 */
+	public LoginThrottle(int stripes) {
+		int count = Integer.highestOneBit(Math.max(stripes - 1, 1)) * 2;
+		long now = System.currentTimeMillis();
+		this.stripes = new Stripe[count];
+		for (int i = 0; i < count; i++) {
+			this.stripes[i] = new Stripe(now);
+		}
+	}
+
+	/**
+	 * @param ipAddress
+	 * @param username
+	 * @return seconds left before the ip address may log in as the user
+	 *         again, or 0 if it is not blocked
+	 */
+	public int getSecondsBlocked(String ipAddress, String username) {
+		long now = System.currentTimeMillis();
+		return Math.max(secondsLeft(ipAddress, now),
+				secondsLeft(key(ipAddress, username), now));
+	}
+
+	/**
+	 * Records a failed login.
+	 *
+	 * @param ipAddress
+	 * @param username
+	 * @param userExists
+	 *            whether the username exists. Attempts on usernames that
+	 *            don't exist only count towards the ip address, so that they
+	 *            don't fill up the table.
+	 * @return seconds the ip address is now blocked for, or 0 if it is not
+	 *         blocked
+	 */
+	public int loginFailed(String ipAddress, String username,
+			boolean userExists) {
+		long now = System.currentTimeMillis();
+		int secondsBlocked = attempt(ipAddress, MAX_IP_ADDRESS_ATTEMPTS, now);
+		if (userExists) {
+			secondsBlocked = Math.max(secondsBlocked,
+					attempt(key(ipAddress, username), MAX_LOGIN_ATTEMPTS, now));
+		}
+		return secondsBlocked;
+	}
+
+	/**
+	 * Records a login with the right password. Like a failed attempt, it is
+	 * blocked if the user has used up their attempts from the ip address;
+	 * otherwise their attempts start over.
+	 *
+	 * @param ipAddress
+	 * @param username
+	 * @return seconds the ip address is now blocked for, or 0 if the login
+	 *         may go ahead
+	 */
+	public int loginSucceeded(String ipAddress, String username) {
+		String key = key(ipAddress, username);
+		Stripe stripe = stripe(key);
+		synchronized (stripe) {
+			long now = System.currentTimeMillis();
+			Entry entry = stripe.get(key, now, false);
+			if (entry == null) {
+				return 0;
+			}
+			if (entry.attempts == MAX_LOGIN_ATTEMPTS) {
+				// Already attempted max times
+				stripe.block(key, entry, now);
+				return Server.BLOCK_TIME;
+			}
+			stripe.remove(key);
+			return 0;
+		}
+	}
+
+	/**
+	 * Counts a failed attempt and blocks the key if it already had the max
+	 * number of attempts.
+	 *
+	 * @param key
+	 * @param maxAttempts
+	 * @param now
+	 * @return seconds the key is now blocked for, or 0 if it is not blocked
+	 */
+	private int attempt(String key, int maxAttempts, long now) {
+		Stripe stripe = stripe(key);
+		synchronized (stripe) {
+			Entry entry = stripe.get(key, now, true);
+			if (entry.attempts == maxAttempts) {
+				stripe.block(key, entry, now);
+				return Server.BLOCK_TIME;
+			}
+			entry.attempts++;
+			return 0;
+		}
+	}
+
+	/**
+	 * @param key
+	 * @param now
+	 * @return seconds left before the key is unblocked, or 0
+	 */
+	private int secondsLeft(String key, long now) {
+		Stripe stripe = stripe(key);
+		synchronized (stripe) {
+			Entry entry = stripe.get(key, now, false);
+			if (entry == null || entry.blockedUntil <= now) {
+				return 0;
+			}
+			return (int) ((entry.blockedUntil - now + 999) / 1000);
+		}
+	}
+
+	/**
+	 * @param ipAddress
+	 * @param username
+	 * @return key of a user at an ip address. Ip addresses have no spaces, so
+	 *         it can't be mistaken for an ip address or another user.
+	 */
+	private static String key(String ipAddress, String username) {
+		return ipAddress + " " + username;
+	}
+
+	private Stripe stripe(String key) {
+		int hash = key.hashCode();
+		hash ^= hash >>> 16;
+		return stripes[hash & (stripes.length - 1)];
+	}
+}
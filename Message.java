@@ -3,11 +3,18 @@ public class Message {
 	private String message;
 	private User fromUser;
 	private User[] toUsers;
+	private boolean broadcast;
 	
 	public Message(String message, User fromUser, User[] toUsers) {
+		this(message, fromUser, toUsers, false);
+	}
+
+	public Message(String message, User fromUser, User[] toUsers,
+			boolean broadcast) {
 		this.message = message;
 		this.fromUser = fromUser;
 		this.toUsers = toUsers;
+		this.broadcast = broadcast;
 	}
 
 	/**
@@ -30,4 +37,13 @@ public class Message {
 	public User[] getToUsers() {
 		return toUsers;
 	}
+
+	/**
+	 * @return whether the <code>Message</code> is a broadcast, in which case
+	 *         <code>toUsers</code> may include the <code>fromUser</code>, who
+	 *         should not receive it
+	 */
+	public boolean isBroadcast() {
+		return broadcast;
+	}
 }
@@ -0,0 +1,279 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counts what the <code>Server</code> does: how many times each
+ * {@link Server.Command} was processed and how long it took, what became of
+ * the messages sent, connections opened and closed, and logins that failed.
+ * Counters are striped ({@link LongAdder}), so the threads that count on the
+ * hot path don't contend with each other. Gauges such as the frames waiting
+ * in outboxes are only computed when somebody asks for them.
+ *
+ * Shown to administrators by the STATS command, and through JMX once
+ * registered with {@link #register(int)}.
+ */
+public class Metrics implements MetricsMBean {
+	private SessionRegistry sessions;
+	private Presence presence;
+	private Server server;
+
+	/**
+	 * Processing time of every command, by ordinal
+	 */
+	private LatencyHistogram[] commands;
+	private LongAdder unknownCommands;
+
+	private LongAdder connectionsOpened;
+	private LongAdder connectionsClosed;
+
+	private LongAdder loginsSucceeded;
+	private LongAdder loginsFailed; // Wrong username or password
+	private LongAdder loginsThrottled; // Ip address blocked
+	private LongAdder loginsRejected; // Server too busy
+
+	private LongAdder messagesDelivered; // Sent to a connection
+	private LongAdder messagesForwarded; // To another node
+	private LongAdder messagesSavedOffline;
+	private LongAdder messagesSpilled; // Offline since the client lagged
+	private LongAdder messagesBlocked;
+
+	/**
+	 * @param server
+	 * @param sessions
+	 *            open connections of the server
+	 * @param presence
+	 *            users online on the server
+	 */
+	public Metrics(Server server, SessionRegistry sessions, Presence presence) {
+		this.server = server;
+		this.sessions = sessions;
+		this.presence = presence;
+
+		this.commands = new LatencyHistogram[Server.Command.values().length];
+		for (int i = 0; i < commands.length; i++) {
+			commands[i] = new LatencyHistogram();
+		}
+		this.unknownCommands = new LongAdder();
+
+		this.connectionsOpened = new LongAdder();
+		this.connectionsClosed = new LongAdder();
+
+		this.loginsSucceeded = new LongAdder();
+		this.loginsFailed = new LongAdder();
+		this.loginsThrottled = new LongAdder();
+		this.loginsRejected = new LongAdder();
+
+		this.messagesDelivered = new LongAdder();
+		this.messagesForwarded = new LongAdder();
+		this.messagesSavedOffline = new LongAdder();
+		this.messagesSpilled = new LongAdder();
+		this.messagesBlocked = new LongAdder();
+	}
+
+	/**
+	 * Makes the metrics visible through JMX.
+	 *
+	 * @param portNumber
+	 *            port of the server, which tells servers in the same JVM
+	 *            apart
+	 */
+	public void register(int portNumber) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+					new ObjectName("SimpleChatServer:type=Metrics,port="
+							+ portNumber));
+		} catch (JMException e) {
+			System.out.println("could not register metrics with JMX: "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * @param command
+	 * @param nanos
+	 *            how long processing it took
+	 */
+	public void commandProcessed(Server.Command command, long nanos) {
+		commands[command.ordinal()].record(nanos);
+	}
+
+	public void unknownCommand() {
+		unknownCommands.increment();
+	}
+
+	public void connectionOpened() {
+		connectionsOpened.increment();
+	}
+
+	public void connectionClosed() {
+		connectionsClosed.increment();
+	}
+
+	public void loginSucceeded() {
+		loginsSucceeded.increment();
+	}
+
+	public void loginFailed() {
+		loginsFailed.increment();
+	}
+
+	public void loginThrottled() {
+		loginsThrottled.increment();
+	}
+
+	public void loginRejected() {
+		loginsRejected.increment();
+	}
+
+	public void messageDelivered() {
+		messagesDelivered.increment();
+	}
+
+	public void messageForwarded() {
+		messagesForwarded.increment();
+	}
+
+	public void messageSavedOffline() {
+		messagesSavedOffline.increment();
+	}
+
+	public void messageSpilled() {
+		messagesSpilled.increment();
+	}
+
+	public void messageBlocked() {
+		messagesBlocked.increment();
+	}
+
+	public int getOpenConnections() {
+		return sessions.getSessions().size();
+	}
+
+	public long getConnectionsOpened() {
+		return connectionsOpened.sum();
+	}
+
+	public long getConnectionsClosed() {
+		return connectionsClosed.sum();
+	}
+
+	public int getUsersOnline() {
+		return presence.getSnapshot().getUsers().length;
+	}
+
+	public long getLoginsSucceeded() {
+		return loginsSucceeded.sum();
+	}
+
+	public long getLoginsFailed() {
+		return loginsFailed.sum();
+	}
+
+	public long getLoginsThrottled() {
+		return loginsThrottled.sum();
+	}
+
+	public long getLoginsRejected() {
+		return loginsRejected.sum();
+	}
+
+	public int getQueuedLogins() {
+		return server.getAuthenticator().getQueuedLogins();
+	}
+
+	public long getMessagesDelivered() {
+		return messagesDelivered.sum();
+	}
+
+	public long getMessagesForwarded() {
+		return messagesForwarded.sum();
+	}
+
+	public long getMessagesSavedOffline() {
+		return messagesSavedOffline.sum();
+	}
+
+	public long getMessagesSpilled() {
+		return messagesSpilled.sum();
+	}
+
+	public long getMessagesBlocked() {
+		return messagesBlocked.sum();
+	}
+
+	public long getPendingFrames() {
+		long pending = 0;
+		for (Session session : sessions.getSessions()) {
+			pending += session.getConnection().getPendingFrames();
+		}
+		return pending;
+	}
+
+	public int getMaxPendingFrames() {
+		int max = 0;
+		for (Session session : sessions.getSessions()) {
+			max = Math.max(max, session.getConnection().getPendingFrames());
+		}
+		return max;
+	}
+
+	public int getLaggingConnections() {
+		return server.getSlowConsumers().getLaggingConnections().size();
+	}
+
+	public long getUnknownCommands() {
+		return unknownCommands.sum();
+	}
+
+	public long getCommandCount(String command) {
+		return commands[parseCommand(command).ordinal()].getCount();
+	}
+
+	public double getCommandLatency(String command, double percentile) {
+		return commands[parseCommand(command).ordinal()]
+				.percentile(percentile / 100) / 1e6;
+	}
+
+	private static Server.Command parseCommand(String command) {
+		try {
+			return Server.Command.valueOf(command.toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException(command
+					+ " is not a command");
+		}
+	}
+
+	public String getReport() {
+		StringBuilder report = new StringBuilder();
+		report.append("connections: " + getOpenConnections() + " open, "
+				+ getConnectionsOpened() + " opened, "
+				+ getConnectionsClosed() + " closed, " + getUsersOnline()
+				+ " users online\n");
+		report.append("logins: " + getLoginsSucceeded() + " succeeded, "
+				+ getLoginsFailed() + " failed, " + getLoginsThrottled()
+				+ " throttled, " + getLoginsRejected() + " rejected as busy, "
+				+ getQueuedLogins() + " queued\n");
+		report.append("messages: " + getMessagesDelivered() + " delivered, "
+				+ getMessagesForwarded() + " forwarded, "
+				+ getMessagesSavedOffline() + " saved offline, "
+				+ getMessagesSpilled() + " spilled, " + getMessagesBlocked()
+				+ " blocked\n");
+		report.append("outboxes: " + getPendingFrames() + " frames pending, "
+				+ getMaxPendingFrames() + " at most, "
+				+ getLaggingConnections() + " lagging\n");
+		for (Server.Command command : Server.Command.values()) {
+			LatencyHistogram histogram = commands[command.ordinal()];
+			report.append(String.format(
+					"%s: %d, p50 %.3f ms, p99 %.3f ms, max %.3f ms\n", command
+							.name().toLowerCase(), histogram.getCount(),
+					histogram.percentile(0.5) / 1e6,
+					histogram.percentile(0.99) / 1e6,
+					histogram.getMax() / 1e6));
+		}
+		report.append("unknown: " + getUnknownCommands() + "\n");
+		return report.toString();
+	}
+}
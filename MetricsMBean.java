@@ -0,0 +1,61 @@
+/**
+ * What {@link Metrics} shows through JMX, e.g. in jconsole.
+ */
+public interface MetricsMBean {
+	public int getOpenConnections();
+
+	public long getConnectionsOpened();
+
+	public long getConnectionsClosed();
+
+	public int getUsersOnline();
+
+	public long getLoginsSucceeded();
+
+	public long getLoginsFailed();
+
+	public long getLoginsThrottled();
+
+	public long getLoginsRejected();
+
+	public int getQueuedLogins();
+
+	public long getMessagesDelivered();
+
+	public long getMessagesForwarded();
+
+	public long getMessagesSavedOffline();
+
+	public long getMessagesSpilled();
+
+	public long getMessagesBlocked();
+
+	public long getPendingFrames();
+
+	public int getMaxPendingFrames();
+
+	public int getLaggingConnections();
+
+	public long getUnknownCommands();
+
+	/**
+	 * @param command
+	 *            name of a {@link Server.Command}
+	 * @return times the command has been processed
+	 */
+	public long getCommandCount(String command);
+
+	/**
+	 * @param command
+	 *            name of a {@link Server.Command}
+	 * @param percentile
+	 *            between 0 and 100
+	 * @return milliseconds it took to process the command at this percentile
+	 */
+	public double getCommandLatency(String command, double percentile);
+
+	/**
+	 * @return everything, as the STATS command shows it
+	 */
+	public String getReport();
+}
@@ -0,0 +1,171 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Rewrites the user database so that every password is stored as a salted
+ * {@link PasswordHash} instead of plain text. Passwords that are already
+ * hashed and lines that are not a username and a password are left alone.
+ * The original file is kept with ".bak" appended.
+ */
+public class MigratePasswords {
+	private static final String USAGE = "usage: java MigratePasswords [<user_database>] [--iterations=<n>]";
+	private static final int BATCH_SIZE = 1024; // Lines
+
+	public static void main(String[] args) {
+		String path = "user_pass.txt";
+		int iterations = PasswordHash.DEFAULT_ITERATIONS;
+		for (String arg : args) {
+			if (arg.startsWith("--iterations=")) {
+				try {
+					iterations = Integer.parseInt(arg.substring("--iterations="
+							.length()));
+				} catch (NumberFormatException e) {
+					iterations = -1;
+				}
+				if (iterations < 1) {
+					Utilities.error("iterations must be a positive integer");
+				}
+			} else if (arg.startsWith("--")) {
+				Utilities.error(USAGE);
+			} else {
+				path = arg;
+			}
+		}
+
+		try {
+			migrate(new File(path), iterations);
+		} catch (IOException e) {
+			Utilities.error(e.getMessage());
+		} catch (InterruptedException e) {
+			Utilities.error("interrupted");
+		}
+	}
+
+	/**
+	 * Hashes the passwords of a user database a batch of lines at a time, on
+	 * every processor.
+	 *
+	 * @param file
+	 * @param iterations
+	 *            PBKDF2 iterations of the new hashes
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private static void migrate(File file, final int iterations)
+			throws IOException, InterruptedException {
+		File temporary = new File(file.getPath() + ".tmp");
+		ExecutorService workers = Executors.newFixedThreadPool(Runtime
+				.getRuntime().availableProcessors());
+		int migrated = 0;
+		int lines = 0;
+
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), Utilities.CHARSET));
+		try {
+			BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
+					new FileOutputStream(temporary), Utilities.CHARSET));
+			try {
+				List<String> originals = new ArrayList<String>();
+				List<Callable<String>> batch = new ArrayList<Callable<String>>();
+				String line;
+				while (true) {
+					line = in.readLine();
+					if (line != null) {
+						final String original = line;
+						originals.add(original);
+						batch.add(new Callable<String>() {
+							public String call() {
+								return migrateLine(original, iterations);
+							}
+						});
+						lines++;
+					}
+					if (batch.size() == BATCH_SIZE
+							|| (line == null && !batch.isEmpty())) {
+						List<Future<String>> futures = workers.invokeAll(batch);
+						for (int i = 0; i < futures.size(); i++) {
+							String migratedLine = futures.get(i).get();
+							if (migratedLine == null) {
+								// Left alone
+								migratedLine = originals.get(i);
+							} else {
+								migrated++;
+							}
+							out.write(migratedLine);
+							out.write('\n');
+						}
+						originals.clear();
+						batch.clear();
+					}
+					if (line == null) {
+						break;
+					}
+				}
+			} catch (ExecutionException e) {
+				throw new IOException(e.getCause().getMessage());
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+			workers.shutdown();
+		}
+
+		if (migrated == 0) {
+			temporary.delete();
+			System.out.println("all passwords in " + file.getPath()
+					+ " are already hashed");
+			return;
+		}
+
+		File backup = new File(file.getPath() + ".bak");
+		if (!file.renameTo(backup) || !temporary.renameTo(file)) {
+			throw new IOException("could not replace " + file.getPath()
+					+ ", the migrated copy is in " + temporary.getPath());
+		}
+		System.out.println("hashed " + migrated + " passwords on " + lines
+				+ " lines of " + file.getPath() + ", the original is in "
+				+ backup.getPath());
+	}
+
+	/**
+	 * @param line
+	 *            line of the user database
+	 * @param iterations
+	 * @return the line with its password hashed, or <code>null</code> if it
+	 *         is left alone
+	 */
+	private static String migrateLine(String line, int iterations) {
+		int space = line.indexOf(' ');
+		if (space <= 0 || space + 1 >= line.length()
+				|| line.charAt(space + 1) == ' ') {
+			// Not a username and a password
+			return null;
+		}
+
+		int end = line.indexOf(' ', space + 1);
+		if (end < 0) {
+			end = line.length();
+		}
+		String password = line.substring(space + 1, end);
+		if (PasswordHash.isHashed(password)) {
+			return null;
+		}
+		return line.substring(0, space + 1)
+				+ PasswordHash.hash(password, iterations)
+				+ line.substring(end);
+	}
+}
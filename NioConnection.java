@@ -0,0 +1,573 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Handles the communication with a single Client on a {@link NioEventLoop}.
+ * This is the non-blocking counterpart of {@link ServerThread}: instead of
+ * blocking on <code>readLine()</code>, it frames incoming bytes into lines and
+ * walks through the same login conversation as a small state machine.
+ */
+public class NioConnection implements Connection {
+	private static final int READ_BUFFER_SIZE = 4096;
+	private static final int MAX_GATHER = 64;
+
+	private enum State {
+		USERNAME, PASSWORD, AUTHENTICATING, COMMAND, RESPONDING, BLOCKED
+	}
+
+	private String threadId;
+	private SocketChannel channel;
+	private Server server;
+	private NioEventLoop eventLoop;
+
+	private String ipAddress;
+
+	private SelectionKey key;
+	private ByteBuffer readBuffer;
+	private byte[] line;
+	private int lineLength;
+	private Outbox outbox;
+
+	/**
+	 * Frames taken from the <code>outbox</code> that have not been completely
+	 * written yet, from <code>writingOffset</code> up to
+	 * <code>writingCount</code>
+	 */
+	private ByteBuffer[] writing;
+	private int writingOffset;
+	private int writingCount;
+
+	// Framing
+	private boolean binaryIn;
+	private volatile boolean binaryOut;
+	private int frameLength;
+	private boolean offerBinary;
+
+	private AtomicBoolean closed;
+	private boolean closeAfterFlush;
+
+	/**
+	 * Whether the socket buffer filled up before everything was written
+	 */
+	private boolean writePending;
+
+	// Login conversation
+	private State state;
+	private String username;
+
+	public NioConnection(String threadId, SocketChannel channel,
+			Server server, NioEventLoop eventLoop) {
+		this.threadId = threadId;
+		this.channel = channel;
+		this.server = server;
+		this.eventLoop = eventLoop;
+		this.ipAddress = channel.socket().getInetAddress().getHostAddress();
+
+		this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		this.line = new byte[128];
+		this.lineLength = 0;
+		this.outbox = new Outbox(eventLoop, new Runnable() {
+			public void run() {
+				flush();
+			}
+		}, this, server.getSlowConsumers());
+		this.writing = new ByteBuffer[MAX_GATHER];
+		this.writingOffset = 0;
+		this.writingCount = 0;
+
+		this.binaryIn = false;
+		this.binaryOut = false;
+		this.frameLength = -1;
+		this.offerBinary = true;
+
+		this.closed = new AtomicBoolean(false);
+		this.closeAfterFlush = false;
+		this.writePending = false;
+
+		System.out.println("connection opened for thread #" + threadId + " at "
+				+ ipAddress);
+	}
+
+	/**
+	 * Registers the channel with the selector of the event loop and starts the
+	 * login conversation. Must be called from the event loop thread.
+	 *
+	 * @param selector
+	 */
+	void register(Selector selector) {
+		try {
+			channel.configureBlocking(false);
+			key = channel.register(selector, SelectionKey.OP_READ, this);
+		} catch (IOException e) {
+			close();
+			return;
+		}
+
+		state = State.USERNAME;
+		send(Frame.binaryOffer("Username", ""));
+	}
+
+	/**
+	 * Reads whatever is available on the channel and handles every complete
+	 * line. Must be called from the event loop thread.
+	 */
+	void read() {
+		int read;
+		try {
+			read = channel.read(readBuffer);
+		} catch (IOException e) {
+			close();
+			return;
+		}
+		if (read < 0) {
+			// Client closed the connection
+			close();
+			return;
+		}
+
+		handleInput();
+	}
+
+	/**
+	 * Handles every complete line in <code>readBuffer</code>. Stops while a
+	 * login is being checked or a command is processed on another thread, and
+	 * leaves the rest in <code>readBuffer</code> until it is done.
+	 */
+	private void handleInput() {
+		readBuffer.flip();
+		while (readBuffer.hasRemaining() && !closed.get() && !isWaiting()) {
+			// Handling a line may switch the framing, so look at it for every
+			// line
+			if (binaryIn) {
+				readBinary();
+			} else {
+				readText();
+			}
+		}
+		readBuffer.compact();
+	}
+
+	/**
+	 * Consumes bytes from <code>readBuffer</code> up to the end of the current
+	 * line, and handles the line if it is complete.
+	 */
+	private void readText() {
+		while (readBuffer.hasRemaining()) {
+			byte b = readBuffer.get();
+			if (b == '\n') {
+				// Drop the carriage return of a \r\n line ending
+				int length = lineLength;
+				if (length > 0 && line[length - 1] == '\r') {
+					length--;
+				}
+				lineLength = 0;
+				handleLine(new String(line, 0, length, Utilities.CHARSET));
+				return;
+			}
+			if (lineLength == Utilities.MAX_FRAME_LENGTH) {
+				// Not a line we are willing to read
+				System.out.println("line from thread #" + threadId + " at "
+						+ ipAddress + " is too long");
+				close();
+				return;
+			}
+			ensureCapacity(lineLength + 1);
+			line[lineLength++] = b;
+		}
+	}
+
+	/**
+	 * Consumes bytes from <code>readBuffer</code> up to the end of the current
+	 * length prefixed frame, and handles the frame if it is complete.
+	 */
+	private void readBinary() {
+		// Read the length
+		while (frameLength < 0 && readBuffer.hasRemaining()) {
+			line[lineLength++] = readBuffer.get();
+			if (lineLength == 4) {
+				frameLength = ((line[0] & 0xff) << 24)
+						| ((line[1] & 0xff) << 16) | ((line[2] & 0xff) << 8)
+						| (line[3] & 0xff);
+				lineLength = 0;
+				if (frameLength < 0
+						|| frameLength > Utilities.MAX_FRAME_LENGTH) {
+					// Not a frame we are willing to read
+					close();
+					return;
+				}
+				ensureCapacity(frameLength);
+			}
+		}
+		if (frameLength < 0) {
+			return;
+		}
+
+		// Read the payload
+		int count = Math.min(readBuffer.remaining(), frameLength - lineLength);
+		readBuffer.get(line, lineLength, count);
+		lineLength += count;
+		if (lineLength == frameLength) {
+			String fromClient = new String(line, 0, lineLength,
+					Utilities.CHARSET);
+			lineLength = 0;
+			frameLength = -1;
+			handleLine(fromClient);
+		}
+	}
+
+	/**
+	 * Grows <code>line</code> so that it can hold a number of bytes.
+	 *
+	 * @param capacity
+	 */
+	private void ensureCapacity(int capacity) {
+		if (capacity > line.length) {
+			line = Arrays.copyOf(line, Math.max(capacity, line.length * 2));
+		}
+	}
+
+	/**
+	 * Interprets a line sent by the client depending on where it is in the
+	 * conversation.
+	 *
+	 * @param fromClient
+	 */
+	private void handleLine(String fromClient) {
+		switch (state) {
+
+		case USERNAME:
+			// Switch to the binary framing if the client accepts it
+			if (offerBinary) {
+				offerBinary = false;
+				if (fromClient.equals(Utilities.BINARY)) {
+					binaryIn = true;
+					binaryOut = true;
+					send(new Frame("Username", ""));
+					return;
+				}
+			}
+
+			if (fromClient.equals(Utilities.FORCE_EXIT)) {
+				forceExit();
+				return;
+			}
+			username = fromClient;
+			send(new Frame("Password", ""));
+			state = State.PASSWORD;
+			return;
+
+		case PASSWORD:
+			if (fromClient.equals(Utilities.FORCE_EXIT)) {
+				forceExit();
+				return;
+			}
+			authenticate(username, fromClient);
+			return;
+
+		case COMMAND:
+			// Window close action
+			if (fromClient.equals(Utilities.FORCE_EXIT)) {
+				send(new Frame("", Utilities.FORCE_EXIT));
+			}
+
+			// Interpret client data and come up with correct response. A
+			// command that needs the disk is answered later, and the client
+			// is not read from until then so the responses stay in order.
+			String toClient = server.processClientInput(fromClient, this,
+					new Server.ResponseCallback() {
+						public void completed(final String response) {
+							eventLoop.execute(new Runnable() {
+								public void run() {
+									responded(response);
+								}
+							});
+						}
+					});
+			if (toClient == null) {
+				state = State.RESPONDING;
+				updateInterestOps();
+				return;
+			}
+			send(new Frame("Command", toClient));
+			return;
+
+		case BLOCKED:
+			// Waiting for the client to go away
+			return;
+		}
+	}
+
+	/**
+	 * Hands the login over to the {@link Authenticator} and stops reading from
+	 * the client until it is done.
+	 *
+	 * @param username
+	 * @param password
+	 */
+	private void authenticate(String username, String password) {
+		state = State.AUTHENTICATING;
+		updateInterestOps();
+		server.getAuthenticator().authenticate(username, password, this,
+				new Authenticator.Callback() {
+					public void completed(final Authenticator.Result result) {
+						eventLoop.execute(new Runnable() {
+							public void run() {
+								authenticated(result);
+							}
+						});
+					}
+				});
+	}
+
+	/**
+	 * Either welcomes the user or asks for their username again, and goes on
+	 * with whatever the client sent in the meantime. Must be called from the
+	 * event loop thread.
+	 *
+	 * @param result
+	 */
+	private void authenticated(Authenticator.Result result) {
+		if (closed.get()) {
+			return;
+		}
+
+		if (result.isAuthenticated()) {
+			// User authenticated!
+
+			// Welcome the user along with their offline messages, which are
+			// read on another thread and sent a chunk at a time. Commands
+			// wait for the welcome.
+			server.deliverOfflineMessages(username, this,
+					"\nWelcome to simple chat server!\n", eventLoop,
+					new Runnable() {
+						public void run() {
+							greeted();
+						}
+					});
+			state = State.RESPONDING;
+		} else if (result.isRetryAllowed()) {
+			send(new Frame("Username", result.getMessage()));
+			state = State.USERNAME;
+		} else {
+			// Blocked
+			send(new Frame("", result.getMessage()));
+			state = State.BLOCKED;
+		}
+
+		updateInterestOps();
+		handleInput();
+	}
+
+	/**
+	 * Goes on with whatever the client sent while they were being welcomed.
+	 * Must be called from the event loop thread.
+	 */
+	private void greeted() {
+		if (closed.get()) {
+			return;
+		}
+
+		state = State.COMMAND;
+		updateInterestOps();
+		handleInput();
+	}
+
+	/**
+	 * Sends the response to a command that was processed on another thread,
+	 * and goes on with whatever the client sent in the meantime. Must be
+	 * called from the event loop thread.
+	 *
+	 * @param response
+	 */
+	private void responded(String response) {
+		if (closed.get()) {
+			return;
+		}
+
+		send(new Frame("Command", response));
+		state = State.COMMAND;
+		updateInterestOps();
+		handleInput();
+	}
+
+	/**
+	 * @return whether the client is not read from until another thread is
+	 *         done with what it sent
+	 */
+	private boolean isWaiting() {
+		return state == State.AUTHENTICATING || state == State.RESPONDING;
+	}
+
+	/**
+	 * Acknowledges a window close action and closes the connection once the
+	 * acknowledgement has been written.
+	 */
+	private void forceExit() {
+		closeAfterFlush = true;
+		send(new Frame("", Utilities.FORCE_EXIT));
+	}
+
+	/**
+	 * Queues a {@link Frame} to be written by the event loop. Can be called
+	 * from any thread and never blocks on the socket.
+	 *
+	 * @param frame
+	 */
+	public void send(Frame frame) {
+		outbox.add(frame);
+	}
+
+	/**
+	 * @return number of frames waiting to be written. Approximate when called
+	 *         from outside the event loop.
+	 */
+	public int getPendingFrames() {
+		return outbox.size() + writingCount - writingOffset;
+	}
+
+	/**
+	 * @return the {@link Outbox} of frames waiting to be written
+	 */
+	public Outbox getOutbox() {
+		return outbox;
+	}
+
+	/**
+	 * Closes the connection on the event loop. Can be called from any thread.
+	 *
+	 * @param reason
+	 */
+	public void disconnect(String reason) {
+		System.out.println("disconnecting thread #" + threadId + " at "
+				+ ipAddress + ": " + reason);
+		eventLoop.execute(new Runnable() {
+			public void run() {
+				close();
+			}
+		});
+	}
+
+	/**
+	 * Writes as much queued output as the socket accepts with gathering
+	 * writes, and waits for the socket to become writable again if it could
+	 * not write everything. Must be called from the event loop thread.
+	 */
+	void flush() {
+		if (closed.get() || key == null) {
+			return;
+		}
+
+		try {
+			while (true) {
+				// Move frames from the outbox to the gather array
+				if (writingOffset == writingCount) {
+					writingOffset = 0;
+					writingCount = 0;
+				} else if (writingCount == MAX_GATHER) {
+					System.arraycopy(writing, writingOffset, writing, 0,
+							writingCount - writingOffset);
+					writingCount -= writingOffset;
+					writingOffset = 0;
+				}
+				Frame frame;
+				while (writingCount < MAX_GATHER
+						&& (frame = outbox.poll()) != null) {
+					writing[writingCount++] = frame.getBytes(binaryOut);
+				}
+				if (writingOffset == writingCount) {
+					// Everything has been written
+					break;
+				}
+
+				channel.write(writing, writingOffset, writingCount
+						- writingOffset);
+				while (writingOffset < writingCount
+						&& !writing[writingOffset].hasRemaining()) {
+					writing[writingOffset++] = null;
+				}
+				if (writingOffset < writingCount) {
+					// Socket buffer is full
+					writePending = true;
+					updateInterestOps();
+					return;
+				}
+			}
+		} catch (IOException e) {
+			close();
+			return;
+		}
+
+		writePending = false;
+		updateInterestOps();
+		outbox.flushed();
+		if (closeAfterFlush) {
+			close();
+		}
+	}
+
+	/**
+	 * Waits for the client to send more unless a login is being checked or a
+	 * command is processed on another thread, and for the socket to become
+	 * writable if output is pending.
+	 */
+	private void updateInterestOps() {
+		if (key == null || !key.isValid()) {
+			return;
+		}
+		int ops = 0;
+		if (!isWaiting()) {
+			ops |= SelectionKey.OP_READ;
+		}
+		if (writePending) {
+			ops |= SelectionKey.OP_WRITE;
+		}
+		key.interestOps(ops);
+	}
+
+	/**
+	 * Closes the channel and removes this connection from the {@link Server}.
+	 */
+	void close() {
+		if (!closed.compareAndSet(false, true)) {
+			return;
+		}
+
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// Already closed. Don't worry about it.
+		}
+		server.removeServerThread(threadId);
+	}
+
+	/**
+	 * @return id of this <code>NioConnection</code>
+	 */
+	public String getThreadId() {
+		return this.threadId;
+	}
+
+	/**
+	 * @return ip address of the connected client
+	 */
+	public String getIpAddress() {
+		return this.ipAddress;
+	}
+
+	/**
+	 * Prints a message to the client. Can be called from any thread.
+	 *
+	 * @param message
+	 */
+	public void print(String message) {
+		send(new Frame("Command", message));
+	}
+}
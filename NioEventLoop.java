@@ -0,0 +1,133 @@
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * A single event loop thread of the {@link NioServer}. Each loop owns one
+ * {@link Selector} and serves every {@link NioConnection} registered with it,
+ * so a handful of loops can serve thousands of idle clients. Other threads
+ * hand work to the loop, such as writing a connection's {@link Outbox}, through
+ * {@link #execute(Runnable)}.
+ */
+public class NioEventLoop implements Runnable, Executor {
+	private Thread thread;
+	private Selector selector;
+
+	/**
+	 * Connections waiting to be registered with the selector.
+	 */
+	private ConcurrentLinkedQueue<NioConnection> registrations;
+
+	/**
+	 * Tasks to run on this loop, such as writing output queued by other
+	 * threads
+	 */
+	private ConcurrentLinkedQueue<Runnable> tasks;
+
+	public NioEventLoop(String name) throws IOException {
+		this.thread = new Thread(this, name);
+		this.selector = Selector.open();
+		this.registrations = new ConcurrentLinkedQueue<NioConnection>();
+		this.tasks = new ConcurrentLinkedQueue<Runnable>();
+	}
+
+	/**
+	 * Starts the event loop thread.
+	 */
+	public void start() {
+		thread.start();
+	}
+
+	/**
+	 * Hands a newly accepted {@link NioConnection} over to this event loop.
+	 *
+	 * @param connection
+	 */
+	public void register(NioConnection connection) {
+		registrations.add(connection);
+		selector.wakeup();
+	}
+
+	/**
+	 * Runs a task on this event loop. Can be called from any thread. Tasks
+	 * always run on the next turn of the loop, even when called from the loop
+	 * itself, so that everything queued during one turn is handled together.
+	 *
+	 * @param task
+	 */
+	public void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	public void run() {
+		while (true) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				Utilities.error(e.getMessage());
+			}
+
+			// Register new connections
+			NioConnection connection;
+			while ((connection = registrations.poll()) != null) {
+				try {
+					connection.register(selector);
+				} catch (RuntimeException e) {
+					closeAfterError(connection, e);
+				}
+			}
+
+			// Run tasks queued since the last turn. A task that fails must
+			// not take down every other connection of the loop.
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					System.out.println("task failed on " + thread.getName()
+							+ ": " + e);
+				}
+			}
+
+			// Handle ready connections
+			Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+			while (iter.hasNext()) {
+				SelectionKey key = iter.next();
+				iter.remove();
+
+				connection = (NioConnection) key.attachment();
+				try {
+					if (key.isValid() && key.isReadable()) {
+						connection.read();
+					}
+					if (key.isValid() && key.isWritable()) {
+						connection.flush();
+					}
+				} catch (RuntimeException e) {
+					closeAfterError(connection, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Closes a connection whose handling failed, and only that connection.
+	 *
+	 * @param connection
+	 * @param e
+	 */
+	private void closeAfterError(NioConnection connection, RuntimeException e) {
+		System.out.println("closing thread #" + connection.getThreadId()
+				+ " at " + connection.getIpAddress() + " after an error: " + e);
+		try {
+			connection.close();
+		} catch (RuntimeException closeError) {
+			System.out.println("could not close thread #"
+					+ connection.getThreadId() + ": " + closeError);
+		}
+	}
+}
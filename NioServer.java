@@ -0,0 +1,60 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.UUID;
+
+/**
+ * Non-blocking connection engine for the {@link Server}. Accepts clients on a
+ * {@link ServerSocketChannel} and spreads them over a small fixed set of
+ * {@link NioEventLoop}s instead of starting a {@link ServerThread} for each
+ * client.
+ */
+public class NioServer {
+	private Server server;
+	private int portNumber;
+	private NioEventLoop[] eventLoops;
+
+	public NioServer(Server server, int portNumber, int eventLoopCount)
+			throws IOException {
+		this.server = server;
+		this.portNumber = portNumber;
+
+		this.eventLoops = new NioEventLoop[eventLoopCount];
+		for (int i = 0; i < eventLoopCount; i++) {
+			eventLoops[i] = new NioEventLoop("nio-event-loop-" + i);
+		}
+	}
+
+	/**
+	 * Binds the port and accepts clients forever.
+	 *
+	 * @throws IOException
+	 */
+	public void listen() throws IOException {
+		ServerSocketChannel listener = ServerSocketChannel.open();
+		try {
+			listener.bind(new InetSocketAddress(portNumber));
+
+			for (NioEventLoop eventLoop : eventLoops) {
+				eventLoop.start();
+			}
+
+			// Listen for clients accepting and hand them out round robin
+			int next = 0;
+			while (true) {
+				SocketChannel channel = listener.accept();
+				String threadId = UUID.randomUUID().toString();
+				NioEventLoop eventLoop = eventLoops[next];
+				next = (next + 1) % eventLoops.length;
+
+				NioConnection connection = new NioConnection(threadId,
+						channel, server, eventLoop);
+				server.addConnection(connection);
+				eventLoop.register(connection);
+			}
+		} finally {
+			listener.close();
+		}
+	}
+}
@@ -0,0 +1,205 @@
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Sends the offline messages of a {@link User} who just logged in, a chunk at
+ * a time. The first chunk goes out along with the greeting, and every other
+ * chunk is only read from the {@link OfflineStore} once the previous one has
+ * been flushed to the client, so logging in takes as long with fifty thousand
+ * offline messages as it does with one and the {@link Outbox} never fills up.
+ *
+ * Messages are marked as delivered once the chunk they are in has been
+ * flushed. If the user logs out halfway, the rest is sent the next time they
+ * log in.
+ *
+ * The store is only read and written on a reader thread, never on the
+ * connection's writer, which may be an event loop serving many other clients.
+ */
+public class OfflineDelivery implements Runnable {
+	public static final int CHUNK_MESSAGES = 100;
+	public static final int CHUNK_LENGTH = 64 * 1024; // Characters
+
+	private OfflineStore offlineStore;
+	private SessionRegistry sessions;
+	private User user;
+	private Connection connection;
+
+	/**
+	 * Threads that read and write the {@link OfflineStore}
+	 */
+	private Executor readers;
+
+	/**
+	 * Thread chunks are sent from, or <code>null</code> to send them from the
+	 * reader thread
+	 */
+	private Executor writer;
+
+	/**
+	 * Sent before the first chunk, or <code>null</code> once it has been sent
+	 */
+	private String greeting;
+
+	/**
+	 * Run on the writer once the first chunk has been sent, or
+	 * <code>null</code> if none
+	 */
+	private Runnable greeted;
+
+	/**
+	 * Sequence of the last message in the chunk being written, or -1 if none
+	 */
+	private long lastSequence;
+
+	/**
+	 * @param offlineStore
+	 * @param sessions
+	 * @param user
+	 *            {@link User} who just logged in
+	 * @param connection
+	 *            {@link Connection} the user is logged in on
+	 * @param greeting
+	 *            text to send before the first chunk
+	 * @param readers
+	 *            threads that read and write the {@link OfflineStore}
+	 * @param writer
+	 *            thread chunks are sent from, or <code>null</code> to send
+	 *            them from the reader thread
+	 */
+	public OfflineDelivery(OfflineStore offlineStore, SessionRegistry sessions,
+			User user, Connection connection, String greeting,
+			Executor readers, Executor writer) {
+		this.offlineStore = offlineStore;
+		this.sessions = sessions;
+		this.user = user;
+		this.connection = connection;
+		this.greeting = greeting;
+		this.readers = readers;
+		this.writer = writer;
+		this.lastSequence = -1;
+	}
+
+	/**
+	 * Reads the first chunk and sends it along with the greeting, both on the
+	 * calling thread.
+	 */
+	public void start() {
+		send(readChunk());
+	}
+
+	/**
+	 * Reads the first chunk on a reader thread and sends it along with the
+	 * greeting from the writer.
+	 *
+	 * @param greeted
+	 *            run on the writer once the first chunk has been sent, even
+	 *            if it could not be read
+	 */
+	public void start(Runnable greeted) {
+		this.greeted = greeted;
+		readers.execute(reader);
+	}
+
+	/**
+	 * Called on the writer once the chunk being written has been flushed, and
+	 * has the next one read.
+	 */
+	public void run() {
+		readers.execute(reader);
+	}
+
+	/**
+	 * Reads a chunk and hands it to the writer.
+	 */
+	private Runnable reader = new Runnable() {
+		public void run() {
+			final String chunk = readChunk();
+			if (writer == null) {
+				send(chunk);
+				return;
+			}
+			writer.execute(new Runnable() {
+				public void run() {
+					send(chunk);
+				}
+			});
+		}
+	};
+
+	/**
+	 * Marks the chunk that has just been flushed as delivered and reads the
+	 * next one.
+	 *
+	 * @return text of the next chunk, or <code>null</code> if there is nothing
+	 *         left to send
+	 */
+	private String readChunk() {
+		if (sessions.getUser(connection.getThreadId()) != user) {
+			// Logged out, so the rest waits for the next login
+			return null;
+		}
+
+		String username = user.getUsername();
+		if (lastSequence >= 0) {
+			try {
+				offlineStore.markDelivered(username, lastSequence);
+			} catch (IOException e) {
+				System.out.println("could not mark offline messages to "
+						+ username + " as delivered: " + e.getMessage());
+				return null;
+			}
+			lastSequence = -1;
+		}
+
+		List<OfflineMessage> messages = offlineStore.read(username,
+				CHUNK_MESSAGES);
+		StringBuilder str = new StringBuilder();
+		if (greeting != null) {
+			str.append(greeting);
+			greeting = null;
+			if (messages.isEmpty()) {
+				str.append("No offline messages!\n\n");
+				return str.toString();
+			}
+		} else if (messages.isEmpty()) {
+			// All delivered
+			return null;
+		}
+
+		// Fill the chunk, but always with at least one message
+		int count = 0;
+		for (OfflineMessage message : messages) {
+			if (count > 0 && str.length() >= CHUNK_LENGTH) {
+				break;
+			}
+			count++;
+			str.append(message.getFromUsername()).append(" said: ")
+					.append(message.getMessage()).append('\n');
+			lastSequence = message.getSequence();
+		}
+		str.append('\n');
+		return str.toString();
+	}
+
+	/**
+	 * Sends a chunk and waits for it to be flushed if it has messages in it.
+	 *
+	 * @param chunk
+	 *            text of the chunk, or <code>null</code> if none
+	 */
+	private void send(String chunk) {
+		if (chunk != null) {
+			connection.send(new Frame("Command", chunk));
+			if (lastSequence >= 0) {
+				connection.getOutbox().whenFlushed(this);
+			}
+		}
+
+		if (greeted != null) {
+			Runnable callback = greeted;
+			greeted = null;
+			callback.run();
+		}
+	}
+}
@@ -0,0 +1,46 @@
+/**
+ * A message saved in the {@link OfflineStore} for a user who was not able to
+ * receive it right away.
+ */
+public class OfflineMessage {
+	private long sequence;
+	private long timestamp;
+	private String fromUsername;
+	private String message;
+
+	public OfflineMessage(long sequence, long timestamp, String fromUsername,
+			String message) {
+		this.sequence = sequence;
+		this.timestamp = timestamp;
+		this.fromUsername = fromUsername;
+		this.message = message;
+	}
+
+	/**
+	 * @return position of the message in the order messages were saved
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * @return timestamp of when the message was saved
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * @return username of the user who wrote the message
+	 */
+	public String getFromUsername() {
+		return fromUsername;
+	}
+
+	/**
+	 * @return the message
+	 */
+	public String getMessage() {
+		return message;
+	}
+}
@@ -0,0 +1,720 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * Durable store of offline messages. Messages are appended to a log made of
+ * fixed size segment files that are memory-mapped, so saving a message is a
+ * copy into memory and survives the server going down. An index in memory
+ * keeps where the undelivered messages of each recipient are.
+ *
+ * Every record in a segment is a length, a CRC32 of the rest of the record, a
+ * type and a payload:
+ * <ul>
+ * <li>a message: sequence, timestamp, recipient, sender and message</li>
+ * <li>a delivery: sequence and recipient, meaning every message to the
+ * recipient up to that sequence has been delivered</li>
+ * </ul>
+ * The length is written last, so a record cut short by a crash is never taken
+ * for a complete one. When the store is opened, the index is rebuilt by
+ * replaying the segments in order, and each segment ends at its first record
+ * that is incomplete or fails its checksum.
+ *
+ * Once most of the messages in a segment have been delivered, the messages
+ * that are left are copied to the end of the log and the segment is deleted.
+ * That is done by a thread of the store's own, one record at a time, so
+ * saving a message never waits for a whole segment to be copied.
+ */
+public class OfflineStore implements Runnable {
+	public static final int SEGMENT_SIZE = 16 * 1024 * 1024; // Bytes
+
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final int HEADER_LENGTH = 8; // Length and checksum
+	private static final byte MESSAGE = 1;
+	private static final byte DELIVERY = 2;
+
+	/**
+	 * A segment is compacted when less than 1/COMPACT_RATIO of it is still
+	 * undelivered messages
+	 */
+	private static final int COMPACT_RATIO = 4;
+
+	private static class Segment {
+		private int id;
+		private File file;
+		private MappedByteBuffer buffer;
+
+		/**
+		 * Where the next record goes
+		 */
+		private int end;
+
+		// Undelivered messages in this segment
+		private int liveCount;
+		private long liveBytes;
+
+		private Segment(int id, File file, MappedByteBuffer buffer) {
+			this.id = id;
+			this.file = file;
+			this.buffer = buffer;
+		}
+	}
+
+	private File directory;
+
+	/**
+	 * @key segment id, in the order the segments were written
+	 * @value <code>Segment</code>
+	 */
+	private TreeMap<Integer, Segment> segments;
+
+	/**
+	 * Segment new records are appended to, always the last one
+	 */
+	private Segment active;
+
+	/**
+	 * @key username of the recipient
+	 * @value location of each undelivered message by sequence
+	 */
+	private HashMap<String, TreeMap<Long, Long>> index;
+
+	private long nextSequence;
+	private CRC32 crc;
+
+	/**
+	 * Thread that compacts the segments, started the first time a segment
+	 * needs it
+	 */
+	private Thread compactor;
+	private boolean compactorStarted;
+
+	/**
+	 * Whether a segment may need compacting since the compactor last looked
+	 */
+	private volatile boolean compactionScheduled;
+
+	private boolean deleted;
+
+	/**
+	 * Opens the store in a directory, creating the directory if needed, and
+	 * recovers the messages that have not been delivered yet.
+	 *
+	 * @param directoryPath
+	 * @throws IOException
+	 */
+	public OfflineStore(String directoryPath) throws IOException {
+		this.directory = new File(directoryPath);
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("could not create " + directoryPath);
+		}
+
+		this.segments = new TreeMap<Integer, Segment>();
+		this.index = new HashMap<String, TreeMap<Long, Long>>();
+		this.nextSequence = 1;
+		this.crc = new CRC32();
+		this.compactor = new Thread(this, "offline-compactor-"
+				+ directory.getName());
+		this.compactor.setDaemon(true);
+		this.compactorStarted = false;
+		this.compactionScheduled = false;
+		this.deleted = false;
+
+		recover();
+	}
+
+	/**
+	 * Saves a message for a recipient.
+	 *
+	 * @param toUsername
+	 * @param fromUsername
+	 * @param message
+	 * @return true if the message was saved and false if it is too big to fit
+	 *         in a segment
+	 * @throws IOException
+	 *             if a new segment could not be created
+	 */
+	public synchronized boolean append(String toUsername,
+			String fromUsername, String message) throws IOException {
+		byte[] to = toUsername.getBytes(Utilities.CHARSET);
+		byte[] from = fromUsername.getBytes(Utilities.CHARSET);
+		byte[] text = message.getBytes(Utilities.CHARSET);
+		int length = 1 + 8 + 8 + 2 + to.length + 2 + from.length + 4
+				+ text.length;
+		if (to.length > 0xffff || from.length > 0xffff
+				|| HEADER_LENGTH + length > SEGMENT_SIZE) {
+			return false;
+		}
+
+		long sequence = nextSequence++;
+		int position = reserve(length);
+		ByteBuffer record = record(active, position, length);
+		record.put(MESSAGE);
+		record.putLong(sequence);
+		record.putLong(System.currentTimeMillis());
+		record.putShort((short) to.length);
+		record.put(to);
+		record.putShort((short) from.length);
+		record.put(from);
+		record.putInt(text.length);
+		record.put(text);
+		commit(active, position, length);
+
+		addToIndex(toUsername, sequence, location(active, position));
+		return true;
+	}
+
+	/**
+	 * Reads the oldest undelivered messages of a recipient. They stay in the
+	 * store until {@link #markDelivered(String, long)} is called.
+	 *
+	 * @param toUsername
+	 * @param max
+	 *            number of messages to read at most
+	 * @return messages in the order they were saved
+	 */
+	public synchronized List<OfflineMessage> read(String toUsername, int max) {
+		List<OfflineMessage> messages = new ArrayList<OfflineMessage>();
+		TreeMap<Long, Long> entries = index.get(toUsername);
+		if (entries == null) {
+			return messages;
+		}
+
+		Iterator<Long> iter = entries.values().iterator();
+		while (iter.hasNext() && messages.size() < max) {
+			messages.add(readMessage(iter.next()));
+		}
+		return messages;
+	}
+
+	/**
+	 * @param toUsername
+	 * @return number of undelivered messages of a recipient
+	 */
+	public synchronized int count(String toUsername) {
+		TreeMap<Long, Long> entries = index.get(toUsername);
+		return entries == null ? 0 : entries.size();
+	}
+
+	/**
+	 * Marks every message to a recipient up to a sequence as delivered. A
+	 * segment that this leaves mostly delivered is compacted later by the
+	 * compactor thread.
+	 *
+	 * @param toUsername
+	 * @param sequence
+	 *            sequence of the last message delivered
+	 * @throws IOException
+	 *             if a new segment could not be created
+	 */
+	public synchronized void markDelivered(String toUsername, long sequence)
+			throws IOException {
+		TreeMap<Long, Long> entries = index.get(toUsername);
+		if (entries == null || entries.firstKey() > sequence) {
+			// Nothing to deliver
+			return;
+		}
+
+		appendDelivery(toUsername, sequence);
+		removeFromIndex(toUsername, sequence);
+	}
+
+	/**
+	 * @return usernames of the recipients who have undelivered messages
+	 */
+	public synchronized List<String> getRecipients() {
+		return new ArrayList<String>(index.keySet());
+	}
+
+	/**
+	 * Writes the active segment back to disk.
+	 */
+	public synchronized void force() {
+		active.buffer.force();
+	}
+
+	/**
+	 * Deletes every segment, and the directory unless something else is in
+	 * it. The store must not be used afterwards.
+	 */
+	public synchronized void delete() {
+		deleted = true;
+		LockSupport.unpark(compactor);
+		for (Segment segment : segments.values()) {
+			if (!segment.file.delete()) {
+				System.out.println("could not delete offline message segment "
+						+ segment.file.getPath());
+			}
+		}
+		segments.clear();
+		index.clear();
+		directory.delete();
+	}
+
+	/**
+	 * Replays every segment in order to rebuild the index.
+	 *
+	 * @throws IOException
+	 */
+	private void recover() throws IOException {
+		File[] files = directory.listFiles();
+		TreeMap<Integer, File> ordered = new TreeMap<Integer, File>();
+		for (File file : files) {
+			String name = file.getName();
+			if (!name.endsWith(SEGMENT_SUFFIX)) {
+				continue;
+			}
+			try {
+				ordered.put(Integer.parseInt(name.substring(0, name.length()
+						- SEGMENT_SUFFIX.length())), file);
+			} catch (NumberFormatException e) {
+				// Not one of ours
+			}
+		}
+
+		for (Map.Entry<Integer, File> entry : ordered.entrySet()) {
+			Segment segment = openSegment(entry.getKey(), entry.getValue());
+			segments.put(segment.id, segment);
+			replay(segment);
+		}
+
+		if (segments.isEmpty()) {
+			active = openSegment(1, segmentFile(1));
+			segments.put(active.id, active);
+		} else {
+			active = segments.lastEntry().getValue();
+		}
+
+		int count = 0;
+		for (TreeMap<Long, Long> entries : index.values()) {
+			count += entries.size();
+		}
+		System.out.println("recovered " + count
+				+ " offline messages from " + segments.size()
+				+ " segments in " + directory.getPath());
+
+		synchronized (this) {
+			for (Segment segment : segments.values()) {
+				checkCompaction(segment);
+			}
+		}
+	}
+
+	/**
+	 * Applies every valid record of a segment to the index, and finds where
+	 * the next record goes.
+	 *
+	 * @param segment
+	 */
+	private void replay(Segment segment) {
+		MappedByteBuffer buffer = segment.buffer;
+		int position = 0;
+		while (position + HEADER_LENGTH < buffer.capacity()) {
+			int length = buffer.getInt(position);
+			if (length < 1
+					|| length > buffer.capacity() - position - HEADER_LENGTH
+					|| buffer.getInt(position + 4) != checksum(segment,
+							position, length)) {
+				// End of the segment or a record cut short by a crash
+				break;
+			}
+
+			ByteBuffer record = record(segment, position, length);
+			byte type = record.get();
+			long sequence = record.getLong();
+			if (type == MESSAGE) {
+				record.getLong(); // Timestamp
+				String toUsername = readString(record, record.getShort() & 0xffff);
+				addToIndex(toUsername, sequence, location(segment, position));
+			} else if (type == DELIVERY) {
+				String toUsername = readString(record, record.getShort() & 0xffff);
+				removeFromIndex(toUsername, sequence);
+			}
+			nextSequence = Math.max(nextSequence, sequence + 1);
+
+			position += HEADER_LENGTH + length;
+		}
+		segment.end = position;
+
+		// Clear whatever is left of a record cut short by a crash, so that it
+		// can't be mistaken for a record later
+		if (position + HEADER_LENGTH <= buffer.capacity()
+				&& buffer.getLong(position) != 0) {
+			System.out.println("truncating offline message segment "
+					+ segment.file.getPath() + " at " + position);
+			for (int i = position; i < buffer.capacity(); i++) {
+				buffer.put(i, (byte) 0);
+			}
+		}
+	}
+
+	public void run() {
+		while (true) {
+			compactionScheduled = false;
+			Segment segment;
+			while ((segment = nextToCompact()) != null) {
+				try {
+					if (!compact(segment)) {
+						// Deleted
+						return;
+					}
+				} catch (IOException e) {
+					// Try again when another segment needs compacting
+					System.out.println("could not compact offline message segment "
+							+ segment.file.getPath() + ": " + e.getMessage());
+					break;
+				}
+			}
+
+			synchronized (this) {
+				if (deleted) {
+					return;
+				}
+			}
+			if (!compactionScheduled) {
+				LockSupport.park(this);
+			}
+		}
+	}
+
+	/**
+	 * Wakes the compactor up if a segment, except the active one, is less
+	 * than 1/COMPACT_RATIO undelivered messages. Does nothing while the
+	 * segments are being replayed.
+	 *
+	 * @param segment
+	 */
+	private void checkCompaction(Segment segment) {
+		if (active == null || segment == active || deleted
+				|| segment.liveBytes * COMPACT_RATIO > segment.end) {
+			return;
+		}
+		if (!compactorStarted) {
+			compactorStarted = true;
+			compactor.start();
+		}
+		compactionScheduled = true;
+		LockSupport.unpark(compactor);
+	}
+
+	/**
+	 * @return the oldest segment that needs compacting, or <code>null</code>
+	 *         if none does
+	 */
+	private synchronized Segment nextToCompact() {
+		if (deleted) {
+			return null;
+		}
+		for (Segment segment : segments.values()) {
+			if (segment == active) {
+				break;
+			}
+			if (segment.liveBytes * COMPACT_RATIO <= segment.end) {
+				return segment;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Copies the undelivered messages of a segment to the end of the log and
+	 * deletes the segment. Unless the segment is the oldest, its deliveries
+	 * are copied as well, since they may be all that says the messages in
+	 * older segments have been delivered. Only called by the compactor.
+	 *
+	 * A segment that is not the active one never changes, so it is read
+	 * without holding the lock, which is only held to copy one message at a
+	 * time.
+	 *
+	 * @param segment
+	 * @return false if the store has been deleted
+	 * @throws IOException
+	 *             if a new segment could not be created
+	 */
+	private boolean compact(Segment segment) throws IOException {
+		boolean oldest;
+		int end;
+		synchronized (this) {
+			if (deleted) {
+				return false;
+			}
+			oldest = segment == segments.firstEntry().getValue();
+			end = segment.end;
+		}
+
+		// Latest delivery of each recipient in the segment
+		HashMap<String, Long> deliveries = new HashMap<String, Long>();
+
+		int position = 0;
+		while (position < end) {
+			int length = segment.buffer.getInt(position);
+			ByteBuffer record = record(segment, position, length);
+			byte type = record.get();
+			long sequence = record.getLong();
+			if (type == MESSAGE) {
+				record.getLong(); // Timestamp
+				String toUsername = readString(record,
+						record.getShort() & 0xffff);
+				synchronized (this) {
+					if (deleted) {
+						return false;
+					}
+					TreeMap<Long, Long> entries = index.get(toUsername);
+					Long location = entries == null ? null : entries
+							.get(sequence);
+					if (location != null
+							&& location.longValue() == location(segment,
+									position)) {
+						// Undelivered, so move it to the end of the log
+						int copy = reserve(length);
+						record(active, copy, length).put(
+								record(segment, position, length));
+						commit(active, copy, length);
+						addToIndex(toUsername, sequence,
+								location(active, copy));
+					}
+				}
+			} else if (type == DELIVERY && !oldest) {
+				String toUsername = readString(record,
+						record.getShort() & 0xffff);
+				Long delivered = deliveries.get(toUsername);
+				if (delivered == null || delivered < sequence) {
+					deliveries.put(toUsername, sequence);
+				}
+			}
+			position += HEADER_LENGTH + length;
+		}
+
+		synchronized (this) {
+			if (deleted) {
+				return false;
+			}
+			for (Map.Entry<String, Long> delivery : deliveries.entrySet()) {
+				appendDelivery(delivery.getKey(), delivery.getValue());
+			}
+			segments.remove(segment.id);
+		}
+		if (!segment.file.delete()) {
+			System.out.println("could not delete offline message segment "
+					+ segment.file.getPath());
+		}
+		return true;
+	}
+
+	/**
+	 * Appends a record that marks every message to a recipient up to a
+	 * sequence as delivered.
+	 *
+	 * @param toUsername
+	 * @param sequence
+	 * @throws IOException
+	 */
+	private void appendDelivery(String toUsername, long sequence)
+			throws IOException {
+		byte[] to = toUsername.getBytes(Utilities.CHARSET);
+		int length = 1 + 8 + 2 + to.length;
+		int position = reserve(length);
+		ByteBuffer record = record(active, position, length);
+		record.put(DELIVERY);
+		record.putLong(sequence);
+		record.putShort((short) to.length);
+		record.put(to);
+		commit(active, position, length);
+	}
+
+	/**
+	 * Makes room for a record at the end of the log, starting a new segment if
+	 * the active one is full.
+	 *
+	 * @param length
+	 *            length of the record without its header
+	 * @return position of the record in the active segment
+	 * @throws IOException
+	 */
+	private int reserve(int length) throws IOException {
+		if (active.end + HEADER_LENGTH + length > active.buffer.capacity()) {
+			active.buffer.force();
+			Segment sealed = active;
+			int id = active.id + 1;
+			active = openSegment(id, segmentFile(id));
+			segments.put(id, active);
+			checkCompaction(sealed);
+		}
+		int position = active.end;
+		active.end += HEADER_LENGTH + length;
+		return position;
+	}
+
+	/**
+	 * Writes the header of a record whose type and payload have been written,
+	 * which makes the record valid.
+	 *
+	 * @param segment
+	 * @param position
+	 * @param length
+	 */
+	private void commit(Segment segment, int position, int length) {
+		segment.buffer.putInt(position + 4,
+				checksum(segment, position, length));
+		segment.buffer.putInt(position, length);
+	}
+
+	/**
+	 * @param segment
+	 * @param position
+	 * @param length
+	 * @return CRC32 of the type and payload of a record
+	 */
+	private int checksum(Segment segment, int position, int length) {
+		crc.reset();
+		crc.update(record(segment, position, length));
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * @param segment
+	 * @param position
+	 * @param length
+	 * @return view of the type and payload of a record
+	 */
+	private static ByteBuffer record(Segment segment, int position, int length) {
+		ByteBuffer record = segment.buffer.duplicate();
+		record.position(position + HEADER_LENGTH);
+		record.limit(position + HEADER_LENGTH + length);
+		return record;
+	}
+
+	/**
+	 * @param location
+	 * @return the message record at a location
+	 */
+	private OfflineMessage readMessage(long location) {
+		Segment segment = segments.get((int) (location >>> 32));
+		int position = (int) location;
+		ByteBuffer record = record(segment, position,
+				segment.buffer.getInt(position));
+		record.get(); // Type
+		long sequence = record.getLong();
+		long timestamp = record.getLong();
+		int toLength = record.getShort() & 0xffff;
+		record.position(record.position() + toLength); // Recipient
+		String fromUsername = readString(record, record.getShort() & 0xffff);
+		String message = readString(record, record.getInt());
+		return new OfflineMessage(sequence, timestamp, fromUsername, message);
+	}
+
+	private static String readString(ByteBuffer record, int length) {
+		byte[] bytes = new byte[length];
+		record.get(bytes);
+		return new String(bytes, Utilities.CHARSET);
+	}
+
+	/**
+	 * Adds an undelivered message to the index. A message that is already in
+	 * the index was copied by a compaction that did not get to delete its
+	 * segment, and the copy wins.
+	 *
+	 * @param toUsername
+	 * @param sequence
+	 * @param location
+	 */
+	private void addToIndex(String toUsername, long sequence, long location) {
+		TreeMap<Long, Long> entries = index.get(toUsername);
+		if (entries == null) {
+			entries = new TreeMap<Long, Long>();
+			index.put(toUsername, entries);
+		}
+		Long previous = entries.put(sequence, location);
+		if (previous != null) {
+			release(previous);
+		}
+
+		Segment segment = segments.get((int) (location >>> 32));
+		segment.liveCount++;
+		segment.liveBytes += HEADER_LENGTH
+				+ segment.buffer.getInt((int) location);
+	}
+
+	/**
+	 * Removes every message to a recipient up to a sequence from the index.
+	 *
+	 * @param toUsername
+	 * @param sequence
+	 */
+	private void removeFromIndex(String toUsername, long sequence) {
+		TreeMap<Long, Long> entries = index.get(toUsername);
+		if (entries == null) {
+			return;
+		}
+
+		Iterator<Long> iter = entries.headMap(sequence, true).values()
+				.iterator();
+		while (iter.hasNext()) {
+			release(iter.next());
+			iter.remove();
+		}
+		if (entries.isEmpty()) {
+			index.remove(toUsername);
+		}
+	}
+
+	/**
+	 * Updates the segment of a message that is no longer undelivered.
+	 *
+	 * @param location
+	 */
+	private void release(long location) {
+		Segment segment = segments.get((int) (location >>> 32));
+		segment.liveCount--;
+		segment.liveBytes -= HEADER_LENGTH
+				+ segment.buffer.getInt((int) location);
+		checkCompaction(segment);
+	}
+
+	/**
+	 * @param segment
+	 * @param position
+	 * @return segment id and position of a record packed in a long
+	 */
+	private static long location(Segment segment, int position) {
+		return ((long) segment.id << 32) | position;
+	}
+
+	private File segmentFile(int id) {
+		return new File(directory, String.format("%010d", id) + SEGMENT_SUFFIX);
+	}
+
+	/**
+	 * Maps a segment file into memory, creating it if needed.
+	 *
+	 * @param id
+	 * @param file
+	 * @return <code>Segment</code>
+	 * @throws IOException
+	 */
+	private static Segment openSegment(int id, File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			if (raf.length() < SEGMENT_SIZE) {
+				raf.setLength(SEGMENT_SIZE);
+			}
+			MappedByteBuffer buffer = raf.getChannel().map(
+					FileChannel.MapMode.READ_WRITE, 0, raf.length());
+			return new Segment(id, file, buffer);
+		} finally {
+			// The mapping stays valid after the file is closed
+			raf.close();
+		}
+	}
+}
@@ -0,0 +1,202 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Queue of {@link Frame}s waiting to be written to a single
+ * {@link Connection}. Any thread can add frames without ever touching the
+ * socket; the connection's writer is scheduled on an {@link Executor} and
+ * drains everything that has piled up with a single flush.
+ * 
+ * The outbox holds roughly {@link SlowConsumers#getCapacity()} frames at most
+ * (concurrent senders may overshoot it by a few). A frame that arrives at a
+ * full outbox is handled according to the {@link SlowConsumers.Policy}.
+ */
+public class Outbox {
+	private ConcurrentLinkedQueue<Frame> frames;
+	private AtomicInteger size;
+	private AtomicBoolean scheduled;
+
+	private Executor executor;
+	private Runnable drain;
+
+	private Connection connection;
+	private SlowConsumers slowConsumers;
+	private AtomicBoolean lagging;
+	private AtomicBoolean disconnected;
+	private AtomicLong dropped;
+	private AtomicLong spilled;
+
+	/**
+	 * Runs once the writer has flushed everything added before it was set
+	 */
+	private AtomicReference<Runnable> flushCallback;
+
+	/**
+	 * Runs the writer. Clears <code>scheduled</code> first, so that a frame
+	 * added while the writer is running schedules it again rather than being
+	 * left behind.
+	 */
+	private Runnable task = new Runnable() {
+		public void run() {
+			scheduled.set(false);
+			drain.run();
+		}
+	};
+
+	/**
+	 * @param executor
+	 *            runs the writer
+	 * @param drain
+	 *            the writer, which should {@link #poll()} every frame and
+	 *            flush once
+	 * @param connection
+	 *            {@link Connection} this <code>Outbox</code> belongs to
+	 * @param slowConsumers
+	 *            what to do when the <code>Outbox</code> is full
+	 */
+	public Outbox(Executor executor, Runnable drain, Connection connection,
+			SlowConsumers slowConsumers) {
+		this.frames = new ConcurrentLinkedQueue<Frame>();
+		this.size = new AtomicInteger(0);
+		this.scheduled = new AtomicBoolean(false);
+		this.executor = executor;
+		this.drain = drain;
+
+		this.connection = connection;
+		this.slowConsumers = slowConsumers;
+		this.lagging = new AtomicBoolean(false);
+		this.disconnected = new AtomicBoolean(false);
+		this.dropped = new AtomicLong(0);
+		this.spilled = new AtomicLong(0);
+		this.flushCallback = new AtomicReference<Runnable>();
+	}
+
+	/**
+	 * Adds a {@link Frame} and schedules the writer unless it is already
+	 * scheduled. Never blocks.
+	 * 
+	 * @param frame
+	 */
+	public void add(Frame frame) {
+		int capacity = slowConsumers.getCapacity();
+		if (size.get() >= capacity) {
+			// Client can't keep up
+			switch (slowConsumers.getPolicy()) {
+			case DISCONNECT:
+				if (disconnected.compareAndSet(false, true)) {
+					slowConsumers.disconnect(connection);
+				}
+				return;
+
+			case SPILL:
+				if (frame.getOrigin() != null
+						&& slowConsumers.spill(connection, frame.getOrigin())) {
+					spilled.incrementAndGet();
+					return;
+				}
+
+				// Not a chat message, so make room for it instead
+				dropOldest();
+				break;
+
+			default:
+				dropOldest();
+			}
+		}
+
+		frames.add(frame);
+		if (size.incrementAndGet() > capacity / 2
+				&& lagging.compareAndSet(false, true)) {
+			slowConsumers.setLagging(connection, true);
+		}
+		if (scheduled.compareAndSet(false, true)) {
+			executor.execute(task);
+		}
+	}
+
+	/**
+	 * Retrieves and removes the oldest {@link Frame}.
+	 * 
+	 * @return {@link Frame} or <code>null</code> if there are none
+	 */
+	public Frame poll() {
+		Frame frame = frames.poll();
+		if (frame != null
+				&& size.decrementAndGet() <= slowConsumers.getCapacity() / 4
+				&& lagging.compareAndSet(true, false)) {
+			slowConsumers.setLagging(connection, false);
+		}
+		return frame;
+	}
+
+	/**
+	 * Runs a callback on the writer once every {@link Frame} added so far has
+	 * been written and flushed. Lets a sender pace itself to the client
+	 * instead of filling up the <code>Outbox</code>. Only one callback can be
+	 * waiting at a time.
+	 * 
+	 * @param callback
+	 */
+	public void whenFlushed(Runnable callback) {
+		flushCallback.set(callback);
+
+		// The writer may have finished before the callback was set, so make
+		// sure it runs once more
+		if (scheduled.compareAndSet(false, true)) {
+			executor.execute(task);
+		}
+	}
+
+	/**
+	 * Called by the writer after it has written and flushed every
+	 * {@link Frame} it polled.
+	 */
+	public void flushed() {
+		Runnable callback = flushCallback.getAndSet(null);
+		if (callback != null) {
+			callback.run();
+		}
+	}
+
+	/**
+	 * Drops the oldest {@link Frame} to make room for a new one.
+	 */
+	private void dropOldest() {
+		if (poll() != null) {
+			dropped.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return number of frames waiting to be written
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * @return whether more than half of the capacity is in use
+	 */
+	public boolean isLagging() {
+		return lagging.get();
+	}
+
+	/**
+	 * @return number of frames dropped because the outbox was full
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return number of chat messages saved to offline messages because the
+	 *         outbox was full
+	 */
+	public long getSpilled() {
+		return spilled.get();
+	}
+}
@@ -0,0 +1,118 @@
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Salted PBKDF2 password hashes, stored in the user database as
+ * <code>pbkdf2$iterations$salt$hash</code> with the salt and hash in Base64.
+ * Passwords that have not been migrated to this form yet are still compared
+ * as plain text.
+ */
+public class PasswordHash {
+	public static final int DEFAULT_ITERATIONS = 100000;
+
+	private static final String PREFIX = "pbkdf2$";
+	private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+	private static final int SALT_LENGTH = 16; // Bytes
+	private static final int HASH_LENGTH = 32; // Bytes
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	/**
+	 * Hash that no password matches, made the first time it is needed
+	 */
+	private static class Dummy {
+		private static final String HASH = hash(
+				Long.toString(RANDOM.nextLong()), DEFAULT_ITERATIONS);
+	}
+
+	/**
+	 * Hashes a password with a new random salt.
+	 *
+	 * @param password
+	 * @param iterations
+	 * @return the hash in the form stored in the user database
+	 */
+	public static String hash(String password, int iterations) {
+		byte[] salt = new byte[SALT_LENGTH];
+		RANDOM.nextBytes(salt);
+		byte[] hash = pbkdf2(password, salt, iterations, HASH_LENGTH);
+		return PREFIX + iterations + "$"
+				+ Base64.getEncoder().encodeToString(salt) + "$"
+				+ Base64.getEncoder().encodeToString(hash);
+	}
+
+	/**
+	 * @param stored
+	 *            password from the user database
+	 * @return whether the password has been hashed
+	 */
+	public static boolean isHashed(String stored) {
+		return stored.startsWith(PREFIX);
+	}
+
+	/**
+	 * Checks a password against the one in the user database. Takes as long
+	 * as hashing it, so this should not run on a connection's I/O thread.
+	 *
+	 * @param stored
+	 *            password from the user database, hashed or not
+	 * @param password
+	 *            password to check
+	 * @return true if the password matches and false otherwise
+	 */
+	public static boolean verify(String stored, String password) {
+		if (!isHashed(stored)) {
+			return MessageDigest.isEqual(stored.getBytes(Utilities.CHARSET),
+					password.getBytes(Utilities.CHARSET));
+		}
+
+		String[] parts = stored.split("\\$");
+		if (parts.length != 4) {
+			return false;
+		}
+		try {
+			int iterations = Integer.parseInt(parts[1]);
+			byte[] salt = Base64.getDecoder().decode(parts[2]);
+			byte[] hash = Base64.getDecoder().decode(parts[3]);
+			if (iterations < 1 || hash.length == 0) {
+				return false;
+			}
+			return MessageDigest.isEqual(hash,
+					pbkdf2(password, salt, iterations, hash.length));
+		} catch (IllegalArgumentException e) {
+			// Not a number or not Base64
+			return false;
+		}
+	}
+
+	/**
+	 * Checks a password against a hash it never matches, for a user that
+	 * doesn't exist. Takes as long as checking a password hashed with
+	 * {@link #DEFAULT_ITERATIONS}, so how long a login takes doesn't tell
+	 * whether the username exists.
+	 *
+	 * @param password
+	 */
+	public static void verifyDummy(String password) {
+		verify(Dummy.HASH, password);
+	}
+
+	private static byte[] pbkdf2(String password, byte[] salt, int iterations,
+			int length) {
+		PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt,
+				iterations, length * 8);
+		try {
+			return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec)
+					.getEncoded();
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(ALGORITHM + " is not available", e);
+		} finally {
+			spec.clearPassword();
+		}
+	}
+}
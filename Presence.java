@@ -0,0 +1,62 @@
+import java.util.LinkedHashSet;
+
+/**
+ * The set of {@link User}s that are currently online. Kept up to date by
+ * {@link User#setOnline(String)} and {@link User#setOffline(String)}, and handed out
+ * as an immutable {@link PresenceSnapshot} that is reused until somebody logs
+ * in or out.
+ */
+public class Presence {
+	private LinkedHashSet<User> onlineUsers;
+
+	/**
+	 * Snapshot of the users online now, or <code>null</code> if it has not
+	 * been built since somebody logged in or out
+	 */
+	private volatile PresenceSnapshot snapshot;
+
+	public Presence() {
+		this.onlineUsers = new LinkedHashSet<User>();
+		this.snapshot = null;
+	}
+
+	/**
+	 * Marks a {@link User} as online.
+	 * 
+	 * @param user
+	 */
+	public synchronized void add(User user) {
+		if (onlineUsers.add(user)) {
+			snapshot = null;
+		}
+	}
+
+	/**
+	 * Marks a {@link User} as offline.
+	 * 
+	 * @param user
+	 */
+	public synchronized void remove(User user) {
+		if (onlineUsers.remove(user)) {
+			snapshot = null;
+		}
+	}
+
+	/**
+	 * @return a {@link PresenceSnapshot} of the users who are online right now
+	 */
+	public PresenceSnapshot getSnapshot() {
+		PresenceSnapshot current = snapshot;
+		if (current != null) {
+			return current;
+		}
+
+		synchronized (this) {
+			if (snapshot == null) {
+				snapshot = new PresenceSnapshot(onlineUsers
+						.toArray(new User[onlineUsers.size()]));
+			}
+			return snapshot;
+		}
+	}
+}
@@ -0,0 +1,56 @@
+import java.util.IdentityHashMap;
+
+/**
+ * An immutable list of the {@link User}s that were online at one moment,
+ * taken by the {@link Presence}. Holds everything WHOELSE and BROADCAST need
+ * so it can be shared by every command until presence changes.
+ */
+public class PresenceSnapshot {
+	private User[] users;
+
+	/**
+	 * Usernames of all users, one per line
+	 */
+	private String usernames;
+
+	/**
+	 * @key <code>User</code>
+	 * @value index of the user's line in <code>usernames</code>
+	 */
+	private IdentityHashMap<User, Integer> lineStarts;
+
+	public PresenceSnapshot(User[] users) {
+		this.users = users;
+		this.lineStarts = new IdentityHashMap<User, Integer>();
+
+		StringBuilder builder = new StringBuilder();
+		for (User user : users) {
+			lineStarts.put(user, builder.length());
+			builder.append(user.getUsername()).append('\n');
+		}
+		this.usernames = builder.toString();
+	}
+
+	/**
+	 * @return all online {@link User}s. Shared, so must not be modified.
+	 */
+	public User[] getUsers() {
+		return users;
+	}
+
+	/**
+	 * Lists the usernames of everybody online except one user.
+	 * 
+	 * @param user
+	 *            {@link User} to leave out
+	 * @return usernames, one per line
+	 */
+	public String getUsernamesExcept(User user) {
+		Integer start = lineStarts.get(user);
+		if (start == null) {
+			return usernames;
+		}
+		int end = start + user.getUsername().length() + 1;
+		return usernames.substring(0, start) + usernames.substring(end);
+	}
+}
@@ -1,119 +1,543 @@
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.ServerSocket;
-import java.util.HashMap;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.Scanner;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Server {
 
 	public enum Command {
-		WHOELSE, WHOLASTHR, BROADCAST, MESSAGE, BLOCK, UNBLOCK, LOGOUT;
+		WHOELSE, WHOLASTHR, BROADCAST, MESSAGE, BLOCK, UNBLOCK, LOGOUT, STATS, HISTORY;
+	}
+
+	/**
+	 * Receives the response to a command that was processed on another
+	 * thread.
+	 */
+	public interface ResponseCallback {
+
+		/**
+		 * @param response
+		 *            response from the <code>Server</code>
+		 */
+		public void completed(String response);
+	}
+
+	/**
+	 * How client connections are served: one {@link ServerThread} per client on
+	 * a platform thread or on a virtual thread, or a few {@link NioEventLoop}s
+	 * shared by all clients.
+	 */
+	public enum Engine {
+		THREAD, VIRTUAL, NIO;
 	}
 
 	public static final int BLOCK_TIME = 60; // Seconds
 	public static final int LAST_HOUR = 60 * 60; // Seconds
 	public static final int TIME_OUT = 60 * 30; // Seconds
+	public static final int SHUTDOWN_GRACE = 1000; // Milliseconds
+	public static final int OUTBOX_CAPACITY = 1024; // Frames
+	public static final int AUTH_QUEUE_CAPACITY = 1024; // Logins
+	public static final int LOGIN_THROTTLE_STRIPES = 64;
+	public static final int HISTORY_LIMIT = 100; // Messages
+	public static final int HISTORY_WAIT = 1000; // Milliseconds
 
+	private static final String USAGE = "usage: java Server <server_port_no> [--engine=thread|virtual|nio]"
+			+ " [--slow-consumer=drop-oldest|spill|disconnect] [--outbox-capacity=<frames>]"
+			+ " [--shards=<n>] [--node=<name> --cluster=<name>@<host>:<port>,... [--cluster-secret=<file>]] [--admins=<user>,...]";
 	private static final String USER_DATABASE_PATH = "user_pass.txt";
+	private static final String OFFLINE_STORE_PATH = "offline";
+	private static final String HISTORY_STORE_PATH = "history";
+	private static final String BLOCK_LIST_PATH = "blocks.dat";
+	private static final String CLUSTER_SECRET_PATH = "cluster_secret.txt";
+	private static final int NIO_EVENT_LOOPS = Runtime.getRuntime()
+			.availableProcessors();
+	private static final int AUTH_WORKERS = Runtime.getRuntime()
+			.availableProcessors();
+	private static final int SHARDS = Runtime.getRuntime()
+			.availableProcessors();
+	private static final int OFFLINE_READERS = Runtime.getRuntime()
+			.availableProcessors();
+	private static final String SHARD_DIRECTORY_PREFIX = "shard-";
+	private static final String HISTORY_TIME_FORMAT = "yyyy-MM-dd HH:mm:ss";
+	private static final String[] HISTORY_SINCE_FORMATS = {
+			"yyyy-MM-dd HH:mm:ss.SSS", "yyyy-MM-dd HH:mm:ss",
+			"yyyy-MM-dd HH:mm", "yyyy-MM-dd" };
+	private static final String UNKNOWN_COMMAND = "Sorry! I have no idea what you're trying to say. Please try again.\n\n";
+
+	/**
+	 * Registered users, loaded as they are looked up
+	 */
+	private UserStore userDatabase;
+
+	/**
+	 * Users who are online right now
+	 */
+	private Presence presence;
+
+	/**
+	 * Kicks off users who have been inactive for too long
+	 */
+	private TimeoutWheel timeouts;
+
+	/**
+	 * Handles clients that can't keep up with the frames sent to them
+	 */
+	private SlowConsumers slowConsumers;
+
+	/**
+	 * Open connections and the users logged in on them, by thread id
+	 */
+	private SessionRegistry sessions;
+
+	/**
+	 * Partitions of the users, which deliver their messages and keep their
+	 * offline messages
+	 */
+	private Shard[] shards;
+
+	/**
+	 * Read and mark offline messages as delivered off the connection threads
+	 */
+	private ExecutorService offlineReaders;
+
+	/**
+	 * Every message sent, by conversation
+	 */
+	private HistoryStore history;
+
+	/**
+	 * Checks logins off the connection threads
+	 */
+	private Authenticator authenticator;
+
+	/**
+	 * Blocks ip addresses after too many failed logins
+	 */
+	private LoginThrottle loginThrottle;
+
+	/**
+	 * Who has blocked whom
+	 */
+	private BlockTable blockTable;
+
+	/**
+	 * The other nodes, or <code>null</code> if this server runs on its own
+	 */
+	private Cluster cluster;
+
+	/**
+	 * Counts commands, messages, connections and logins
+	 */
+	private Metrics metrics;
+
+	/**
+	 * Usernames of the users who may see the metrics
+	 */
+	private Set<String> admins;
+
+	public Server() {
+		this(USER_DATABASE_PATH);
+	}
+
+	public Server(String userDatabasePath) {
+		this(userDatabasePath, OFFLINE_STORE_PATH);
+	}
+
+	/**
+	 * Loads the user database and the offline messages. Call
+	 * {@link #start(int, Engine)} to start accepting clients.
+	 * 
+	 * @param userDatabasePath
+	 *            path of the file with a username and password on every line
+	 * @param offlineStorePath
+	 *            path of the directory with the offline messages
+	 */
+	public Server(String userDatabasePath, String offlineStorePath) {
+		this(userDatabasePath, offlineStorePath, BLOCK_LIST_PATH);
+	}
+
+	/**
+	 * Loads the user database, the offline messages and the block lists. Call
+	 * {@link #start(int, Engine)} to start accepting clients.
+	 * 
+	 * @param userDatabasePath
+	 *            path of the file with a username and password on every line
+	 * @param offlineStorePath
+	 *            path of the directory with the offline messages
+	 * @param blockListPath
+	 *            path of the file with the block lists
+	 */
+	public Server(String userDatabasePath, String offlineStorePath,
+			String blockListPath) {
+		this(userDatabasePath, offlineStorePath, blockListPath, SHARDS);
+	}
 
 	/**
-	 * @key username
-	 * @value <code>User</code>
+	 * Loads the user database, the offline messages and the block lists, and
+	 * splits the users into shards. The history is kept in a directory next
+	 * to the one with the offline messages. Call {@link #start(int, Engine)}
+	 * to start accepting clients.
+	 * 
+	 * @param userDatabasePath
+	 *            path of the file with a username and password on every line
+	 * @param offlineStorePath
+	 *            path of the directory with the offline messages
+	 * @param blockListPath
+	 *            path of the file with the block lists
+	 * @param shardCount
+	 *            number of {@link Shard}s, usually one per core
 	 */
-	private HashMap<String, User> userDatabase;
+	public Server(String userDatabasePath, String offlineStorePath,
+			String blockListPath, int shardCount) {
+		this(userDatabasePath, offlineStorePath, blockListPath, new File(
+				new File(offlineStorePath).getAbsoluteFile().getParentFile(),
+				HISTORY_STORE_PATH).getPath(), shardCount);
+	}
 
 	/**
-	 * @key threadId
-	 * @value <code>ServerThread</code>
+	 * Loads the user database, the offline messages, the block lists and the
+	 * history, and splits the users into shards. Call
+	 * {@link #start(int, Engine)} to start accepting clients.
+	 * 
+	 * @param userDatabasePath
+	 *            path of the file with a username and password on every line
+	 * @param offlineStorePath
+	 *            path of the directory with the offline messages
+	 * @param blockListPath
+	 *            path of the file with the block lists
+	 * @param historyStorePath
+	 *            path of the directory with the history
+	 * @param shardCount
+	 *            number of {@link Shard}s, usually one per core
 	 */
-	private HashMap<String, ServerThread> onlineThreads;
+	public Server(String userDatabasePath, String offlineStorePath,
+			String blockListPath, String historyStorePath, int shardCount) {
+		// Open the user database
+		presence = new Presence();
+		try {
+			userDatabase = new UserStore(userDatabasePath, presence);
+		} catch (IOException e) {
+			Utilities.error(e.getMessage());
+		}
 
-	public Server(int portNumber) {
-		// Retrieve and populate user database
-		userDatabase = new HashMap<String, User>();
+		// Recover offline messages
 		try {
-			Scanner userDatabaseScanner = new Scanner(new File(
-					USER_DATABASE_PATH));
-			while (userDatabaseScanner.hasNextLine()) {
-				String[] userPassword = userDatabaseScanner.nextLine().split(
-						" ");
-				userDatabase.put(userPassword[0], new User(userPassword[0],
-						userPassword[1]));
-			}
-		} catch (FileNotFoundException e) {
+			openShards(offlineStorePath, shardCount);
+		} catch (IOException e) {
 			Utilities.error(e.getMessage());
-		} catch (IndexOutOfBoundsException e) {
+		}
+
+		// Load block lists
+		try {
+			blockTable = new BlockTable(blockListPath, userDatabase);
+		} catch (IOException e) {
 			Utilities.error(e.getMessage());
 		}
 
-		// Start server listener
-		onlineThreads = new HashMap<String, ServerThread>();
+		// Open the history
 		try {
-			ServerSocket listener = new ServerSocket(portNumber);
+			history = new HistoryStore(historyStorePath);
+		} catch (IOException e) {
+			Utilities.error(e.getMessage());
+		}
+
+		sessions = new SessionRegistry();
+		metrics = new Metrics(this, sessions, presence);
+		admins = Collections.emptySet();
+		timeouts = new TimeoutWheel(sessions, TIME_OUT);
+		slowConsumers = new SlowConsumers(this, SlowConsumers.Policy.SPILL,
+				OUTBOX_CAPACITY);
+		authenticator = new Authenticator(this, AUTH_WORKERS,
+				AUTH_QUEUE_CAPACITY);
+		loginThrottle = new LoginThrottle(LOGIN_THROTTLE_STRIPES);
+
+		final AtomicInteger offlineReaderCount = new AtomicInteger(0);
+		offlineReaders = Executors.newFixedThreadPool(OFFLINE_READERS,
+				new ThreadFactory() {
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "offline-reader-"
+								+ offlineReaderCount.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+
+		for (Shard shard : shards) {
+			shard.start();
+		}
+		history.start();
+		blockTable.start();
+	}
+
+	/**
+	 * Opens the offline messages of every {@link Shard}, each in a directory
+	 * of its own. Messages saved with a different number of shards, or before
+	 * there were shards at all, are moved to the shard their recipient
+	 * belongs to now.
+	 * 
+	 * @param offlineStorePath
+	 * @param shardCount
+	 * @throws IOException
+	 */
+	private void openShards(String offlineStorePath, int shardCount)
+			throws IOException {
+		File directory = new File(offlineStorePath);
+		shards = new Shard[shardCount];
+		for (int i = 0; i < shardCount; i++) {
+			shards[i] = new Shard(i, this, new OfflineStore(new File(directory,
+					SHARD_DIRECTORY_PREFIX + i).getPath()));
+		}
+
+		for (Shard shard : shards) {
+			moveOfflineMessages(shard.getOfflineStore(), shard);
+		}
+
+		// Segments from before there were shards
+		File[] files = directory.listFiles();
+		for (File file : files) {
+			if (file.isFile() && file.getName().endsWith(".seg")) {
+				OfflineStore store = new OfflineStore(directory.getPath());
+				moveOfflineMessages(store, null);
+				store.delete();
+				break;
+			}
+		}
+
+		// Shards that are gone
+		for (File file : files) {
+			String name = file.getName();
+			if (!file.isDirectory() || !name.startsWith(SHARD_DIRECTORY_PREFIX)) {
+				continue;
+			}
+			try {
+				if (Integer.parseInt(name.substring(SHARD_DIRECTORY_PREFIX
+						.length())) < shardCount) {
+					continue;
+				}
+			} catch (NumberFormatException e) {
+				// Not one of ours
+				continue;
+			}
+			OfflineStore store = new OfflineStore(file.getPath());
+			moveOfflineMessages(store, null);
+			store.delete();
+		}
+	}
 
+	/**
+	 * Moves the offline messages in a store whose recipients belong to
+	 * another {@link Shard} to that shard.
+	 * 
+	 * @param store
+	 * @param owner
+	 *            {@link Shard} the store belongs to, or <code>null</code> if
+	 *            none
+	 * @throws IOException
+	 */
+	private void moveOfflineMessages(OfflineStore store, Shard owner)
+			throws IOException {
+		for (String toUsername : store.getRecipients()) {
+			Shard shard = getShard(toUsername);
+			if (shard == owner) {
+				continue;
+			}
+			while (true) {
+				List<OfflineMessage> messages = store.read(toUsername,
+						OfflineDelivery.CHUNK_MESSAGES);
+				if (messages.isEmpty()) {
+					break;
+				}
+				for (OfflineMessage message : messages) {
+					shard.getOfflineStore().append(toUsername,
+							message.getFromUsername(), message.getMessage());
+				}
+				store.markDelivered(toUsername,
+						messages.get(messages.size() - 1).getSequence());
+			}
+		}
+	}
+
+	/**
+	 * @param username
+	 * @return the {@link Shard} a user belongs to
+	 */
+	public Shard getShard(String username) {
+		// The same every time the server starts, so offline messages stay
+		// where they were saved
+		return shards[(username.hashCode() & 0x7fffffff) % shards.length];
+	}
+
+	/**
+	 * Waits until the {@link Shard}s have delivered every message sent so far.
+	 * 
+	 * @param timeout
+	 *            milliseconds to wait at most
+	 * @return false if the time ran out first
+	 * @throws InterruptedException
+	 */
+	public boolean awaitDelivery(long timeout) throws InterruptedException {
+		final CountDownLatch latch = new CountDownLatch(shards.length);
+		for (Shard shard : shards) {
+			shard.whenDelivered(new Runnable() {
+				public void run() {
+					latch.countDown();
+				}
+			});
+		}
+		return latch.await(timeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Sets what happens when a client can't keep up with the frames sent to
+	 * it. Must be called before {@link #start(int, Engine)}.
+	 * 
+	 * @param policy
+	 * @param capacity
+	 *            number of frames waiting to be written to a client at most
+	 */
+	public void setSlowConsumerPolicy(SlowConsumers.Policy policy, int capacity) {
+		slowConsumers = new SlowConsumers(this, policy, capacity);
+	}
+
+	/**
+	 * @return what happens when a client can't keep up, and which clients are
+	 *         lagging
+	 */
+	public SlowConsumers getSlowConsumers() {
+		return slowConsumers;
+	}
+
+	/**
+	 * @return the {@link Authenticator} that checks logins
+	 */
+	public Authenticator getAuthenticator() {
+		return authenticator;
+	}
+
+	/**
+	 * @return what the server has done so far
+	 */
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Lets some users see the metrics of the server with the STATS command.
+	 * 
+	 * @param usernames
+	 */
+	public void setAdmins(Collection<String> usernames) {
+		admins = Collections.unmodifiableSet(new HashSet<String>(usernames));
+	}
+
+	/**
+	 * Makes this server a node of a {@link Cluster}. Must be called before
+	 * {@link #start(int, Engine)}.
+	 * 
+	 * @param transport
+	 *            connects to the other nodes
+	 */
+	public void joinCluster(ClusterTransport transport) {
+		cluster = new Cluster(this, presence, transport);
+	}
+
+	/**
+	 * Starts the server listener and serves clients forever.
+	 * 
+	 * @param portNumber
+	 * @param engine
+	 *            how to serve client connections
+	 */
+	public void start(int portNumber, Engine engine) {
+		try {
 			// Handle control+C signal
 			Runtime.getRuntime().addShutdownHook(new Thread() {
 				public void run() {
+					// Deliver the messages the shards have not got to yet
+					long deadline = System.currentTimeMillis() + SHUTDOWN_GRACE;
+					try {
+						awaitDelivery(SHUTDOWN_GRACE);
+					} catch (InterruptedException e) {
+						return;
+					}
+
 					// Send EXIT to clients
-					Iterator<ServerThread> iter = onlineThreads.values().iterator();
+					Iterator<Session> iter = sessions.getSessions().iterator();
 					while (iter.hasNext()) {
-						ServerThread serverThread = iter.next();
-						serverThread.print("Server is shutting down" + Utilities.EXIT);
+						Connection connection = iter.next().getConnection();
+						connection.print("Server is shutting down" + Utilities.EXIT);
 					}
-				}
-			});
-
-			try {
-				// Create a thread that checks for time out
-				Thread timeoutCheckerThread = new Thread() {
-					public void run() {
-						while (true) {
-							// Check for inactive users
-							Iterator<User> iter = userDatabase.values()
-									.iterator();
-							while (iter.hasNext()) {
-								User user = iter.next();
-								if (user.isOnline() && user.getLastActive() > 0) {
-									// Check the last time this user was active
-									int timeSinceLastActive = (int) ((System
-											.currentTimeMillis() - user
-											.getLastActive()) / 1000);
-									if (timeSinceLastActive > TIME_OUT) {
-										// Kick user off
-										ServerThread serverThread = onlineThreads
-												.get(user.getThreadId());
-										serverThread
-												.print("Sorry! You have been inactive for too long"
-														+ Utilities.EXIT);
-									}
-								}
-							}
 
-							// Timeout for a second
+					// Give the writers a moment to get it out
+					iter = sessions.getSessions().iterator();
+					while (iter.hasNext()
+							&& System.currentTimeMillis() < deadline) {
+						Connection connection = iter.next().getConnection();
+						while (connection.getPendingFrames() > 0
+								&& System.currentTimeMillis() < deadline) {
 							try {
-								Thread.sleep(1000);
+								Thread.sleep(10);
 							} catch (InterruptedException e) {
-								Utilities.error(e.getMessage());
+								return;
 							}
 						}
 					}
-				};
-				timeoutCheckerThread.start();
-
-				// Listen for clients accepting
-				while (true) {
-					String threadId = UUID.randomUUID().toString();
-					ServerThread thread = new ServerThread(threadId,
-							listener.accept(), this);
-					onlineThreads.put(threadId, thread);
-					thread.start();
+
+					// Make sure offline messages, history and block lists are
+					// on disk
+					for (Shard shard : shards) {
+						shard.getOfflineStore().force();
+					}
+					try {
+						history.force(SHUTDOWN_GRACE);
+						blockTable.awaitSaved(SHUTDOWN_GRACE);
+					} catch (InterruptedException e) {
+						return;
+					}
 				}
-			} finally {
-				listener.close();
+			});
+
+			// Start checking for inactive users
+			timeouts.start();
+
+			// Show the metrics through JMX
+			metrics.register(portNumber);
+
+			// Join the other nodes
+			if (cluster != null) {
+				cluster.start();
+			}
+
+			switch (engine) {
+			case NIO:
+				new NioServer(this, portNumber, NIO_EVENT_LOOPS).listen();
+				break;
+			case VIRTUAL:
+				listen(portNumber, newVirtualThreadFactory());
+				break;
+			default:
+				listen(portNumber, new ThreadFactory() {
+					public Thread newThread(Runnable runnable) {
+						return new Thread(runnable);
+					}
+				});
 			}
 		} catch (IOException e) {
 			Utilities.error(e.getMessage());
@@ -121,18 +545,85 @@ public class Server {
 	}
 
 	/**
-	 * Removes a closed connection {@link ServerThread} from {@link HashMap} of
-	 * server threads.
+	 * Binds the port and starts a {@link ServerThread} for every client that
+	 * connects.
+	 * 
+	 * @param portNumber
+	 * @param threadFactory
+	 *            creates the threads that run each {@link ServerThread} and
+	 *            write to its client
+	 * @throws IOException
 	 */
-	public void removeServerThread(String threadId) {
-		String ipAddress = onlineThreads.get(threadId).getIpAddress();
-		onlineThreads.remove(threadId);
+	private void listen(int portNumber, ThreadFactory threadFactory)
+			throws IOException {
+		// Writers drain the outboxes of the ServerThreads, so that a thread
+		// sending to another client never blocks on that client's socket
+		ExecutorService writers = Executors.newCachedThreadPool(threadFactory);
+
+		ServerSocket listener = new ServerSocket(portNumber);
+		try {
+			// Listen for clients accepting
+			while (true) {
+				String threadId = UUID.randomUUID().toString();
+				ServerThread thread = new ServerThread(threadId,
+						listener.accept(), this, writers);
+				addConnection(thread);
+				threadFactory.newThread(thread).start();
+			}
+		} finally {
+			listener.close();
+		}
+	}
 
+	/**
+	 * Creates a {@link ThreadFactory} for virtual threads. Looked up
+	 * reflectively so that the server still compiles and runs the other
+	 * engines on JDKs without virtual threads.
+	 * 
+	 * @return factory of virtual threads
+	 */
+	private static ThreadFactory newVirtualThreadFactory() {
 		try {
-			User user = getUserFromThreadId(threadId);
-			user.setOffline();
-		} catch (NullPointerException e) {
-			// Wasn't connected to a user. Don't worry about it.
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class
+					.forName("java.lang.Thread$Builder$OfVirtual");
+			builder = builderClass.getMethod("name", String.class, long.class)
+					.invoke(builder, "virtual-server-thread-", 0L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(
+					builder);
+		} catch (ReflectiveOperationException e) {
+			Utilities.error("virtual threads are not supported by this JVM");
+			return null;
+		}
+	}
+
+	/**
+	 * Adds a newly opened {@link Connection} to the {@link SessionRegistry}.
+	 * 
+	 * @param connection
+	 */
+	public void addConnection(Connection connection) {
+		sessions.open(connection);
+		metrics.connectionOpened();
+	}
+
+	/**
+	 * Removes a closed {@link Connection} from the {@link SessionRegistry} and
+	 * sets the {@link User} logged in on it offline.
+	 */
+	public void removeServerThread(String threadId) {
+		slowConsumers.remove(threadId);
+		Session session = sessions.close(threadId);
+		if (session == null) {
+			// Already removed
+			return;
+		}
+		metrics.connectionClosed();
+		String ipAddress = session.getConnection().getIpAddress();
+
+		User user = session.getUser();
+		if (user != null && user.setOffline(threadId) && cluster != null) {
+			cluster.userOffline(user);
 		}
 
 		System.out.println("connection closed for thread #" + threadId + " at "
@@ -141,41 +632,66 @@ public class Server {
 
 	/**
 	 * Processes what the client has sent to the <code>Server</code> and returns
-	 * a {@link String} with the appropriate response.
+	 * a {@link String} with the appropriate response. Waits for the disk if
+	 * the command needs to.
 	 * 
 	 * @param clientInput
 	 *            {@link String} from the client
 	 * @param thread
-	 *            {@link SeverThread} from which the client is connecting to
+	 *            {@link Connection} from which the client is connecting to
 	 * @return response from the <code>Server</code>
 	 */
-	public String processClientInput(String clientInput, ServerThread thread) {
-		// Set default error message
-		String defaultErrorMessage = "Sorry! I have no idea what you're trying to say. Please try again.\n\n";
+	public String processClientInput(String clientInput, Connection thread) {
+		return processClientInput(clientInput, thread, null);
+	}
+
+	/**
+	 * Processes what the client has sent to the <code>Server</code>. For
+	 * threads that must never wait for the disk, such as an event loop: a
+	 * command that has to read from it is processed on another thread, and its
+	 * response is passed to a callback instead.
+	 * 
+	 * @param clientInput
+	 *            {@link String} from the client
+	 * @param thread
+	 *            {@link Connection} from which the client is connecting to
+	 * @param callback
+	 *            receives the response if it isn't returned, or
+	 *            <code>null</code> to wait for the disk instead
+	 * @return response from the <code>Server</code>, or <code>null</code> if
+	 *         it will be passed to the callback
+	 */
+	public String processClientInput(String clientInput, Connection thread,
+			ResponseCallback callback) {
+		long start = System.nanoTime();
 
 		// Get current user
-		User currentUser = getUserFromThreadId(thread.getThreadId());
+		User currentUser = sessions.getUser(thread.getThreadId());
 
 		// Update last active for current user
 		currentUser.updateLastActive();
 
 		// Get command
-		String[] clientInputArray = clientInput.split(" ");
-		try {
-			Command command = Command
-					.valueOf(clientInputArray[0].toUpperCase());
+		CommandLine commandLine = new CommandLine(clientInput);
+		Command command = commandLine.getCommand();
+		if (command == null) {
+			// Could not understand client input
+			metrics.unknownCommand();
+			return UNKNOWN_COMMAND;
+		}
 
-			String str = "";
+		String str = "";
+		try {
 			switch (command) {
 
 			case WHOELSE: // Displays name of other connected users
-				Iterator<User> iter = userDatabase.values().iterator();
-				while (iter.hasNext()) {
-					User user = iter.next();
-					if (user.isOnline()
-							&& !user.getUsername().equals(
-									currentUser.getUsername())) {
-						str += user.getUsername() + "\n";
+				str = presence.getSnapshot().getUsernamesExcept(currentUser);
+				if (cluster != null) {
+					// And the users connected to the other nodes
+					for (String username : cluster.getRemoteUsernames()) {
+						if (!username.equals(currentUser.getUsername())) {
+							str += username + "\n";
+						}
 					}
 				}
 
@@ -186,8 +702,11 @@ public class Server {
 				return str + "\n";
 
 			case WHOLASTHR: // Displays name of only those users that connected
-							// within the last hour
-				iter = userDatabase.values().iterator();
+							// within the last hour. Users who have not been
+							// loaded have not logged in since the server
+							// started.
+				Iterator<User> iter = userDatabase.getLoadedUsers()
+						.iterator();
 				while (iter.hasNext()) {
 					User user = iter.next();
 					int timePassedSinceLogin = (int) ((System
@@ -196,10 +715,20 @@ public class Server {
 							.currentTimeMillis() - user.getLastActive()) / 1000);
 					if ((user.isOnline() || timePassedSinceLogin < LAST_HOUR || timeSinceLastActive < LAST_HOUR)
 							&& !user.getUsername().equals(
-									currentUser.getUsername())) {
+									currentUser.getUsername())
+							&& (cluster == null || cluster.locate(user
+									.getUsername()) == null)) {
 						str += user.getUsername() + "\n";
 					}
 				}
+				if (cluster != null) {
+					// Users connected to the other nodes are online
+					for (String username : cluster.getRemoteUsernames()) {
+						if (!username.equals(currentUser.getUsername())) {
+							str += username + "\n";
+						}
+					}
+				}
 
 				if (str.length() == 0) {
 					str = "Nobody was here within the last " + LAST_HOUR
@@ -209,50 +738,36 @@ public class Server {
 				return str + "\n";
 
 			case BROADCAST: // Broadcasts <message> to all connected users
-				if (clientInputArray.length < 2) {
+				if (!commandLine.hasArgument()) {
 					// Not the right arguments
 					str = "usage: broadcast <message>\nPlease try again.\n";
 				} else {
 					// Create message
-					String messageStr = clientInputArray[1];
-					for (int i = 2; i < clientInputArray.length; i++) {
-						messageStr += " " + clientInputArray[i];
-					}
+					String messageStr = commandLine.getText();
 
-					// Find all online users
-					LinkedList<User> onlineUsers = new LinkedList<User>();
-					iter = userDatabase.values().iterator();
-					while (iter.hasNext()) {
-						User user = iter.next();
-						if (user.isOnline()
-								&& !user.getUsername().equals(
-										currentUser.getUsername())) {
-							onlineUsers.add(user);
-						}
-					}
+					// Send to all online users, which sendMessage will skip
+					// the current user in
 					Message message = new Message(messageStr, currentUser,
-							onlineUsers.toArray(new User[0]));
+							presence.getSnapshot().getUsers(), true);
 					sendMessage(message);
 				}
 
 				return str + "\n";
 
 			case MESSAGE:
-				if (clientInputArray.length < 3) {
+				if (!commandLine.hasTextAfterArgument()) {
 					// Not the right arguments
 					str = "usage: message <user> <message>\nPlease try again.\n";
 				} else {
 					// Check if user exists
-					User toUser = userDatabase.get(clientInputArray[1]);
+					String username = commandLine.getArgument();
+					User toUser = userDatabase.get(username);
 					if (toUser == null) {
-						str = clientInputArray[1]
+						str = username
 								+ " is not a valid user.\nPlease try again.\n";
 					} else {
 						// Send the message
-						String messageStr = clientInputArray[2];
-						for (int i = 3; i < clientInputArray.length; i++) {
-							messageStr += " " + clientInputArray[i];
-						}
+						String messageStr = commandLine.getTextAfterArgument();
 
 						Message message = new Message(messageStr, currentUser,
 								new User[] { toUser });
@@ -262,14 +777,15 @@ public class Server {
 				return str + "\n";
 
 			case BLOCK:
-				if (clientInputArray.length < 2) {
+				if (!commandLine.hasArgument()) {
 					// Not the right arguments
 					str = "usage: block <user>";
 				} else {
 					// Check if the user exists
-					User user = userDatabase.get(clientInputArray[1]);
+					String username = commandLine.getArgument();
+					User user = userDatabase.get(username);
 					if (user == null) {
-						str = clientInputArray[1]
+						str = username
 								+ " is not a valid user.\nPlease try again.\n";
 					} else if (user.getUsername().equals(
 							currentUser.getUsername())) {
@@ -277,9 +793,11 @@ public class Server {
 						str = "You cannot block yourself, silly!\n";
 					} else {
 						// Block user
-						currentUser.blockUser(user);
+						if (blockTable.block(currentUser, user) && cluster != null) {
+							cluster.blockChanged(currentUser, user, true);
+						}
 						str = "You have successfully blocked "
-								+ clientInputArray[1]
+								+ username
 								+ " from sending you messages.\n";
 					}
 				}
@@ -287,14 +805,15 @@ public class Server {
 				return str + "\n";
 
 			case UNBLOCK:
-				if (clientInputArray.length < 2) {
+				if (!commandLine.hasArgument()) {
 					// Not the right arguments
 					str = "usage: unblock <user>";
 				} else {
 					// Check if the user exists
-					User user = userDatabase.get(clientInputArray[1]);
+					String username = commandLine.getArgument();
+					User user = userDatabase.get(username);
 					if (user == null) {
-						str = clientInputArray[1]
+						str = username
 								+ " is not a valid user.\nPlease try again.\n";
 					} else if (user.getUsername().equals(
 							currentUser.getUsername())) {
@@ -302,12 +821,16 @@ public class Server {
 						str = "Error! You cannot block yourself!\n";
 					} else {
 						// Unblock user
-						boolean unblocked = currentUser.unblockUser(user);
+						boolean unblocked = blockTable.unblock(currentUser,
+								user);
+						if (unblocked && cluster != null) {
+							cluster.blockChanged(currentUser, user, false);
+						}
 						if (unblocked) {
 							str = "You have successfully unblocked "
-									+ clientInputArray[1] + ".\n";
+									+ username + ".\n";
 						} else {
-							str = "You didn't block " + clientInputArray[1]
+							str = "You didn't block " + username
 									+ " to begin with!\n";
 						}
 					}
@@ -318,130 +841,805 @@ public class Server {
 			case LOGOUT:
 				return "Goodbye" + Utilities.EXIT;
 
+			case STATS: // Displays the metrics of the server to administrators
+				if (!admins.contains(currentUser.getUsername())) {
+					return "Sorry! Only administrators can see the stats.\n\n";
+				}
+				return metrics.getReport() + "\n";
+
+			case HISTORY: // Displays the messages between the current user and
+							// <user>, or the broadcasts with *
+				if (!commandLine.hasArgument()) {
+					// Not the right arguments
+					str = "usage: history <user>|* [since]\nPlease try again.\n";
+				} else {
+					str = getHistory(currentUser, commandLine.getArgument(),
+							commandLine.hasTextAfterArgument() ? commandLine
+									.getTextAfterArgument() : null, callback);
+				}
+
+				return str == null ? null : str + "\n";
+
 			default:
-				return defaultErrorMessage;
+				return UNKNOWN_COMMAND;
 			}
+		} finally {
+			metrics.commandProcessed(command, System.nanoTime() - start);
+		}
+	}
 
-		} catch (Exception e) {
-			// Could not understand client input
-			return defaultErrorMessage;
+	/**
+	 * Shows the messages between a {@link User} and another user, or the
+	 * broadcasts from users they have not blocked: the latest ones, or the
+	 * first ones since some time.
+	 * 
+	 * @param currentUser
+	 * @param username
+	 *            the other user, or * for the broadcasts
+	 * @param sinceStr
+	 *            time to show the messages since, or <code>null</code> for
+	 *            the latest messages
+	 * @param callback
+	 *            receives the response once the history has been read on the
+	 *            history thread, or <code>null</code> to read it here
+	 * @return response to the HISTORY command, or <code>null</code> if it
+	 *         will be passed to the callback
+	 */
+	private String getHistory(final User currentUser, final String username,
+			final String sinceStr, final ResponseCallback callback) {
+		// Check if the user exists
+		String otherUsername = null;
+		if (!username.equals("*")) {
+			User user = userDatabase.get(username);
+			if (user == null) {
+				return username + " is not a valid user.\nPlease try again.\n";
+			}
+			otherUsername = user.getUsername();
+		}
+
+		long since = 0;
+		if (sinceStr != null) {
+			since = parseSince(sinceStr);
+			if (since == Long.MIN_VALUE) {
+				return "usage: history <user>|* [yyyy-MM-dd [HH:mm[:ss]] | <n>s|m|h|d]\nPlease try again.\n";
+			}
+		}
+
+		if (callback != null) {
+			// The history thread reads once the messages sent so far have
+			// reached the history
+			final String finalOtherUsername = otherUsername;
+			HistoryStore.ReadCallback read = new HistoryStore.ReadCallback() {
+				public void completed(List<HistoryStore.Entry> entries,
+						IOException error) {
+					callback.completed(formatHistory(currentUser, username,
+							finalOtherUsername, sinceStr, entries, error)
+							+ "\n");
+				}
+			};
+			if (sinceStr == null) {
+				history.readLatest(currentUser.getUsername(), otherUsername,
+						HISTORY_LIMIT, read);
+			} else {
+				history.read(currentUser.getUsername(), otherUsername, since,
+						HISTORY_LIMIT, read);
+			}
+			return null;
+		}
+
+		// Let the messages sent so far reach the history
+		try {
+			history.awaitAppends(HISTORY_WAIT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		List<HistoryStore.Entry> entries = null;
+		IOException error = null;
+		try {
+			entries = sinceStr == null ? history.readLatest(
+					currentUser.getUsername(), otherUsername, HISTORY_LIMIT)
+					: history.read(currentUser.getUsername(), otherUsername,
+							since, HISTORY_LIMIT);
+		} catch (IOException e) {
+			error = e;
+		}
+		return formatHistory(currentUser, username, otherUsername, sinceStr,
+				entries, error);
+	}
+
+	/**
+	 * @param currentUser
+	 * @param username
+	 *            the other user as given, or * for the broadcasts
+	 * @param otherUsername
+	 *            the other user, or <code>null</code> for the broadcasts
+	 * @param sinceStr
+	 *            time the messages were read since, or <code>null</code>
+	 * @param entries
+	 *            messages read from the history, or <code>null</code>
+	 * @param error
+	 *            why the messages could not be read, or <code>null</code>
+	 * @return response to the HISTORY command
+	 */
+	private String formatHistory(User currentUser, String username,
+			String otherUsername, String sinceStr,
+			List<HistoryStore.Entry> entries, IOException error) {
+		if (error != null) {
+			System.out.println("could not read history of "
+					+ currentUser.getUsername() + ": " + error.getMessage());
+			return "Sorry! The history could not be read. Please try again.\n";
+		}
+
+		SimpleDateFormat format = new SimpleDateFormat(HISTORY_TIME_FORMAT);
+		StringBuilder str = new StringBuilder();
+		for (HistoryStore.Entry entry : entries) {
+			if (otherUsername == null) {
+				// Skip broadcasts from users the current user has blocked
+				User fromUser = userDatabase.get(entry.getFromUsername());
+				if (fromUser != null
+						&& blockTable.hasBlocked(currentUser, fromUser)) {
+					continue;
+				}
+			}
+			str.append(format.format(new Date(entry.getTimestamp())))
+					.append(' ').append(entry.getFromUsername())
+					.append(" said: ").append(entry.getMessage())
+					.append('\n');
+		}
+
+		if (str.length() == 0) {
+			str.append(otherUsername == null ? "No broadcasts"
+					: "No messages with " + otherUsername);
+			if (sinceStr != null) {
+				str.append(" since ").append(sinceStr);
+			}
+			str.append(".\n");
+		} else if (sinceStr != null && entries.size() == HISTORY_LIMIT) {
+			// Timestamps are unique within a conversation, so this carries on
+			// right after the last message
+			format = new SimpleDateFormat(HISTORY_SINCE_FORMATS[0]);
+			str.append("To see more: history ").append(username).append(' ')
+					.append(format.format(new Date(entries.get(
+							entries.size() - 1).getTimestamp() + 1)))
+					.append('\n');
 		}
+		return str.toString();
 	}
 
 	/**
-	 * Sends a {@link Message}.
+	 * @param text
+	 *            a date and time, e.g. 2014-03-01 18:30, or how long ago,
+	 *            e.g. 2h
+	 * @return milliseconds since the epoch, or Long.MIN_VALUE if the text is
+	 *         neither
+	 */
+	private static long parseSince(String text) {
+		text = text.trim();
+
+		// How long ago, in seconds, minutes, hours or days
+		char unit = text.length() < 2 ? ' ' : Character.toLowerCase(text
+				.charAt(text.length() - 1));
+		long seconds = unit == 's' ? 1 : unit == 'm' ? 60 : unit == 'h' ? 60 * 60
+				: unit == 'd' ? 24 * 60 * 60 : 0;
+		if (seconds > 0) {
+			try {
+				long amount = Long.parseLong(text.substring(0,
+						text.length() - 1));
+				if (amount >= 0 && amount <= Long.MAX_VALUE / 1000 / seconds) {
+					return System.currentTimeMillis() - amount * seconds * 1000;
+				}
+			} catch (NumberFormatException e) {
+				// Not a number
+			}
+			return Long.MIN_VALUE;
+		}
+
+		for (String pattern : HISTORY_SINCE_FORMATS) {
+			SimpleDateFormat format = new SimpleDateFormat(pattern);
+			format.setLenient(false);
+			ParsePosition position = new ParsePosition(0);
+			Date date = format.parse(text, position);
+			if (date != null && position.getIndex() == text.length()) {
+				return date.getTime();
+			}
+		}
+		return Long.MIN_VALUE;
+	}
+
+	/**
+	 * Sends a {@link Message}. Tells the sender right away about recipients
+	 * who have blocked them, and hands the other recipients to their
+	 * {@link Shard}s.
 	 * 
 	 * @param message
 	 */
 	public void sendMessage(Message message) {
+		// Encode the message once for all recipients
+		Frame frame = new Frame("Command", message.getFromUser().getUsername()
+				+ " says: " + message.getMessage() + "\n\n", message);
+
+		// Look up who has blocked the sender once for all recipients
+		User fromUser = message.getFromUser();
+		IdSet blockers = blockTable.getBlockers(fromUser);
+		Connection fromThread = null;
+
+		// Shard of every recipient, or -1 if they don't get it
 		User[] toUsers = message.getToUsers();
-		for (User toUser : toUsers) {
+		int[] toShards = new int[toUsers.length];
+		int[] counts = new int[shards.length];
+		for (int i = 0; i < toUsers.length; i++) {
+			User toUser = toUsers[i];
+			toShards[i] = -1;
+
+			// Don't send broadcasts back to the sender
+			if (message.isBroadcast() && toUser == fromUser) {
+				continue;
+			}
+
 			// Check if toUser has blocked fromUser
-			if (toUser.hasBlocked(message.getFromUser())) {
+			if (!blockers.isEmpty() && blockers.contains(toUser.getId())) {
+				metrics.messageBlocked();
+
 				// Alert the fromUser that message could not be sent
-				ServerThread thread = onlineThreads.get(message.getFromUser()
-						.getThreadId());
-				thread.print("You cannot send any messages to "
-						+ toUser.getUsername()
-						+ ". You have been blocked by the user.\n");
+				if (fromThread == null) {
+					fromThread = sessions.getConnection(fromUser);
+				}
+				if (fromThread != null) {
+					fromThread.print("You cannot send any messages to "
+							+ toUser.getUsername()
+							+ ". You have been blocked by the user.\n");
+				}
 				continue;
 			}
 
-			if (toUser.isOnline()) {
-				// User is online, so send the message immediately
-				ServerThread thread = onlineThreads.get(toUser.getThreadId());
-				thread.print(message.getFromUser().getUsername() + " says: "
-						+ message.getMessage() + "\n\n");
+			toShards[i] = getShard(toUser.getUsername()).getIndex();
+			counts[toShards[i]]++;
+		}
+		deliver(frame, message, toShards, counts, true);
+
+		// Hand it to the history thread, stamped with the time it was sent
+		long timestamp = System.currentTimeMillis();
+		if (message.isBroadcast()) {
+			history.appendBroadcast(fromUser.getUsername(),
+					message.getMessage(), timestamp);
+		} else {
+			for (int i = 0; i < toUsers.length; i++) {
+				if (toShards[i] >= 0) {
+					history.appendMessage(fromUser.getUsername(),
+							toUsers[i].getUsername(), message.getMessage(),
+							timestamp);
+				}
+			}
+		}
+
+		if (message.isBroadcast() && cluster != null) {
+			// Alert the fromUser about users on other nodes who have
+			// blocked them, who the other nodes will skip
+			if (!blockers.isEmpty()) {
+				for (String username : cluster.getRemoteUsernames()) {
+					User toUser = userDatabase.get(username);
+					if (toUser != null && blockers.contains(toUser.getId())) {
+						if (fromThread == null) {
+							fromThread = sessions.getConnection(fromUser);
+						}
+						if (fromThread != null) {
+							fromThread.print("You cannot send any messages to "
+									+ toUser.getUsername()
+									+ ". You have been blocked by the user.\n");
+						}
+					}
+				}
+			}
+			cluster.broadcast(fromUser.getUsername(), message.getMessage());
+		}
+	}
+
+	/**
+	 * Hands the recipients of a message to their {@link Shard}s, one batch per
+	 * shard.
+	 * 
+	 * @param frame
+	 * @param message
+	 * @param toShards
+	 *            shard of every recipient of the message, or -1 to skip them
+	 * @param counts
+	 *            number of recipients in every shard
+	 * @param forward
+	 *            whether to forward the message to recipients who are online
+	 *            on another node
+	 */
+	private void deliver(Frame frame, Message message, int[] toShards,
+			int[] counts, boolean forward) {
+		User[] toUsers = message.getToUsers();
+		User[][] batches = new User[shards.length][];
+		for (int i = 0; i < shards.length; i++) {
+			if (counts[i] > 0) {
+				batches[i] = new User[counts[i]];
+				counts[i] = 0;
+			}
+		}
+		for (int i = 0; i < toUsers.length; i++) {
+			int shard = toShards[i];
+			if (shard >= 0) {
+				batches[shard][counts[shard]++] = toUsers[i];
+			}
+		}
+		for (int i = 0; i < shards.length; i++) {
+			if (batches[i] != null) {
+				shards[i].deliver(frame, message, batches[i], forward);
+			}
+		}
+	}
+
+	/**
+	 * Delivers a message to one of its recipients: sends it if they are online
+	 * here, forwards it if they are online on another node, and saves it as an
+	 * offline message otherwise. Called by the {@link Shard} of the recipient.
+	 * 
+	 * @param toUser
+	 * @param frame
+	 *            the message, encoded
+	 * @param message
+	 * @param forward
+	 *            whether the message may be forwarded to another node
+	 */
+	public void deliver(User toUser, Frame frame, Message message,
+			boolean forward) {
+		// Look the connection up once, since the user may log out at any
+		// moment
+		Connection thread = sessions.getConnection(toUser);
+		if (thread != null) {
+			// User is online, so send the message immediately
+			thread.send(frame);
+			metrics.messageDelivered();
+			return;
+		}
+
+		String node = forward && cluster != null ? cluster.locate(toUser
+				.getUsername()) : null;
+		if (node != null
+				&& cluster.forward(node, message.getFromUser().getUsername(),
+						message.getMessage(), Collections
+								.singletonList(toUser))) {
+			// User is online on another node
+			metrics.messageForwarded();
+			return;
+		}
+
+		// Save message for offline messages
+		saveOfflineMessage(toUser, message);
+		metrics.messageSavedOffline();
+	}
+
+	/**
+	 * Delivers a message forwarded by another node of the {@link Cluster} to
+	 * users on this node. Users who have logged out since get it as an
+	 * offline message.
+	 * 
+	 * @param fromUsername
+	 * @param text
+	 * @param toUsernames
+	 */
+	public void receiveMessage(String fromUsername, String text,
+			List<String> toUsernames) {
+		User fromUser = userDatabase.get(fromUsername);
+		if (fromUser == null) {
+			return;
+		}
+		User[] toUsers = new User[toUsernames.size()];
+		int[] toShards = new int[toUsers.length];
+		int[] counts = new int[shards.length];
+		for (int i = 0; i < toUsers.length; i++) {
+			toUsers[i] = userDatabase.get(toUsernames.get(i));
+			toShards[i] = toUsers[i] == null ? -1 : getShard(
+					toUsers[i].getUsername()).getIndex();
+			if (toShards[i] >= 0) {
+				counts[toShards[i]]++;
+			}
+		}
+		Message message = new Message(text, fromUser, toUsers);
+		Frame frame = new Frame("Command", fromUsername + " says: " + text
+				+ "\n\n", message);
+
+		// Never forward it again, so it can't bounce between nodes
+		deliver(frame, message, toShards, counts, false);
+
+		long timestamp = System.currentTimeMillis();
+		for (User toUser : toUsers) {
+			if (toUser != null) {
+				history.appendMessage(fromUsername, toUser.getUsername(), text,
+						timestamp);
+			}
+		}
+	}
+
+	/**
+	 * Delivers a broadcast forwarded by another node of the {@link Cluster} to
+	 * every user on this node who has not blocked the sender.
+	 * 
+	 * @param fromUsername
+	 * @param text
+	 */
+	public void receiveBroadcast(String fromUsername, String text) {
+		User fromUser = userDatabase.get(fromUsername);
+		if (fromUser == null) {
+			return;
+		}
+		IdSet blockers = blockTable.getBlockers(fromUser);
+		User[] toUsers = presence.getSnapshot().getUsers();
+		int[] toShards = new int[toUsers.length];
+		int[] counts = new int[shards.length];
+		for (int i = 0; i < toUsers.length; i++) {
+			User toUser = toUsers[i];
+			if (toUser == fromUser || blockers.contains(toUser.getId())) {
+				toShards[i] = -1;
 			} else {
-				// Save message for offline messages
-				toUser.addMessage(message);
+				toShards[i] = getShard(toUser.getUsername()).getIndex();
+				counts[toShards[i]]++;
+			}
+		}
+		Message message = new Message(text, fromUser, toUsers, true);
+		Frame frame = new Frame("Command", fromUsername + " says: " + text
+				+ "\n\n", message);
+		deliver(frame, message, toShards, counts, false);
+
+		history.appendBroadcast(fromUsername, text, System.currentTimeMillis());
+	}
+
+	/**
+	 * Delivers offline messages that another node of the {@link Cluster} had
+	 * saved for a user who has logged in on this node, or saves them here if
+	 * the user has logged out again.
+	 * 
+	 * @param toUsername
+	 * @param messages
+	 *            username of the sender and text of every message
+	 */
+	public void receiveOfflineMessages(String toUsername,
+			List<String[]> messages) {
+		User toUser = userDatabase.get(toUsername);
+		if (toUser == null) {
+			return;
+		}
+		Connection thread = sessions.getConnection(toUser);
+		if (thread == null) {
+			for (String[] message : messages) {
+				saveOfflineMessage(toUsername, message[0], message[1]);
 			}
+			return;
+		}
+
+		StringBuilder str = new StringBuilder();
+		for (String[] message : messages) {
+			str.append(message[0]).append(" said: ").append(message[1])
+					.append('\n');
+		}
+		str.append('\n');
+		thread.send(new Frame("Command", str.toString()));
+	}
+
+	/**
+	 * Applies a block or unblock made on another node of the {@link Cluster}.
+	 * 
+	 * @param blockerUsername
+	 * @param username
+	 * @param blocked
+	 *            true if the user was blocked and false if unblocked
+	 */
+	public void receiveBlockChange(String blockerUsername, String username,
+			boolean blocked) {
+		User blocker = userDatabase.get(blockerUsername);
+		User user = userDatabase.get(username);
+		if (blocker == null || user == null) {
+			return;
+		}
+		if (blocked) {
+			blockTable.block(blocker, user);
+		} else {
+			blockTable.unblock(blocker, user);
 		}
 	}
 
 	/**
-	 * Retrives offline messages for a given username.
+	 * Called when a user has logged in on another node of the {@link Cluster}.
+	 * If they are also logged in here, the node whose name comes first keeps
+	 * them. The offline messages saved here for them are forwarded to the
+	 * other node.
 	 * 
 	 * @param username
-	 * @return all offline messages formatted in a {@link String}
+	 * @param node
 	 */
-	public String getOfflineMessages(String username) {
+	public void loggedInElsewhere(String username, String node) {
 		User user = userDatabase.get(username);
+		if (user == null) {
+			return;
+		}
 
-		String str = "";
-		Message message = user.popMessage();
-		while (message != null) {
-			str += message.getFromUser().getUsername() + " said: "
-					+ message.getMessage() + "\n";
-			message = user.popMessage();
+		Connection connection = sessions.getConnection(user);
+		if (connection != null && node.compareTo(cluster.getNode()) < 0) {
+			connection.disconnect(username + " logged in on cluster node "
+					+ node);
+		}
+
+		// Forward the offline messages a chunk at a time
+		OfflineStore offlineStore = getShard(username).getOfflineStore();
+		while (true) {
+			List<OfflineMessage> messages = offlineStore.read(username,
+					OfflineDelivery.CHUNK_MESSAGES);
+			if (messages.isEmpty()
+					|| !cluster.forwardOffline(node, username, messages)) {
+				return;
+			}
+			try {
+				offlineStore.markDelivered(username,
+						messages.get(messages.size() - 1).getSequence());
+			} catch (IOException e) {
+				System.out.println("could not mark offline messages to "
+						+ username + " as delivered: " + e.getMessage());
+				return;
+			}
 		}
+	}
 
-		return str.length() == 0 ? "No offline messages!\n\n" : str + "\n";
+	/**
+	 * Saves a {@link Message} for an online {@link User} whose connection
+	 * can't keep up, so that it is delivered as an offline message.
+	 * 
+	 * @param threadId
+	 *            id of the thread the user is logged in on
+	 * @param message
+	 * @return true if the message was saved and false if nobody is logged in
+	 *         on the thread
+	 */
+	public boolean spillMessage(String threadId, Message message) {
+		User user = sessions.getUser(threadId);
+		if (user == null) {
+			return false;
+		}
+		saveOfflineMessage(user, message);
+		metrics.messageSpilled();
+		return true;
+	}
+
+	/**
+	 * Saves a {@link Message} in the {@link OfflineStore}.
+	 * 
+	 * @param toUser
+	 * @param message
+	 */
+	private void saveOfflineMessage(User toUser, Message message) {
+		saveOfflineMessage(toUser.getUsername(), message.getFromUser()
+				.getUsername(), message.getMessage());
+	}
+
+	/**
+	 * Saves a message in the {@link OfflineStore}, such as one that could not
+	 * be forwarded to another node of the {@link Cluster} after all.
+	 * 
+	 * @param toUsername
+	 * @param fromUsername
+	 * @param text
+	 */
+	public void saveOfflineMessage(String toUsername, String fromUsername,
+			String text) {
+		try {
+			if (!getShard(toUsername).getOfflineStore().append(toUsername,
+					fromUsername, text)) {
+				System.out.println("offline message to " + toUsername
+						+ " is too long to save");
+			}
+		} catch (IOException e) {
+			System.out.println("could not save offline message to "
+					+ toUsername + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Sends the offline messages of a {@link User} who just logged in, a chunk
+	 * at a time, and marks them as delivered as they are flushed. The first
+	 * chunk is read and sent on the calling thread.
+	 * 
+	 * @param username
+	 * @param connection
+	 *            {@link Connection} the user is logged in on
+	 * @param greeting
+	 *            text to send along with the first chunk
+	 */
+	public void deliverOfflineMessages(String username, Connection connection,
+			String greeting) {
+		new OfflineDelivery(getShard(username).getOfflineStore(), sessions,
+				userDatabase.get(username), connection, greeting,
+				offlineReaders, null).start();
+	}
+
+	/**
+	 * Sends the offline messages of a {@link User} who just logged in, a chunk
+	 * at a time, and marks them as delivered as they are flushed. Every chunk
+	 * is read on another thread and sent from the writer, so a user with many
+	 * offline messages doesn't hold up the writer.
+	 * 
+	 * @param username
+	 * @param connection
+	 *            {@link Connection} the user is logged in on
+	 * @param greeting
+	 *            text to send along with the first chunk
+	 * @param writer
+	 *            thread the chunks are sent from
+	 * @param greeted
+	 *            run on the writer once the first chunk has been sent
+	 */
+	public void deliverOfflineMessages(String username, Connection connection,
+			String greeting, Executor writer, Runnable greeted) {
+		new OfflineDelivery(getShard(username).getOfflineStore(), sessions,
+				userDatabase.get(username), connection, greeting,
+				offlineReaders, writer).start(greeted);
 	}
 
 	/**
 	 * Checks if a username and password combination exists in the {@link User}
-	 * database. Also associates the {@link User} with the {@link ServerThread}.
+	 * database. Also associates the {@link User} with the {@link Connection}.
+	 * Verifying a hashed password is slow, so connections go through the
+	 * {@link Authenticator} rather than calling this directly.
 	 * 
 	 * @param username
 	 * @param password
 	 * @param thread
-	 *            {@link SeverThread} from which the client is connecting to
+	 *            {@link Connection} from which the client is connecting to
 	 * @return true if the username-password combination exists and false
 	 *         otherwise
 	 * @throws UserAlreadyLoggedInException
 	 * @throws User.IpAddressBlockedException
 	 */
 	public boolean authenticateUser(String username, String password,
-			ServerThread thread) throws User.UserAlreadyLoggedInException,
+			Connection thread) throws User.UserAlreadyLoggedInException,
 			User.IpAddressBlockedException {
 
-		if (!userDatabase.containsKey(username)) {
-			// Username does not exist
-			return false;
+		// Check if this ip address is blocked
+		String ipAddress = thread.getIpAddress();
+		int secondsBlocked = loginThrottle.getSecondsBlocked(ipAddress,
+				username);
+		if (secondsBlocked > 0) {
+			metrics.loginThrottled();
+			throw new User.IpAddressBlockedException(secondsBlocked);
 		}
 
-		// Get user
+		// Get user. Check the password even if the user doesn't exist, so
+		// that both take as long.
 		User user = userDatabase.get(username);
-
-		if (!user.matchUsernamePassword(username, password,
-				thread.getIpAddress())) {
-			// Password is incorrect
+		if (user == null) {
+			PasswordHash.verifyDummy(password);
+		}
+		if (user == null || !user.matchUsernamePassword(username, password)) {
+			// Username does not exist or password is incorrect
+			metrics.loginFailed();
+			secondsBlocked = loginThrottle.loginFailed(ipAddress, username,
+					user != null);
+			if (secondsBlocked > 0) {
+				throw new User.IpAddressBlockedException(secondsBlocked);
+			}
 			return false;
 		}
 
-		// Associate User with ServerThread
-		user.setOnline(thread.getThreadId());
-		return true;
-	}
+		secondsBlocked = loginThrottle.loginSucceeded(ipAddress, username);
+		if (secondsBlocked > 0) {
+			throw new User.IpAddressBlockedException(secondsBlocked);
+		}
 
-	/**
-	 * Retrieves a {@link User} object from a thread id.
-	 * 
-	 * @param threadId
-	 *            id of the thread that the user has logged in
-	 * @return {@link User} connected to the thread
-	 */
-	private User getUserFromThreadId(String threadId) {
-		Iterator<User> iter = userDatabase.values().iterator();
-		while (iter.hasNext()) {
-			User user = iter.next();
-			if (threadId.equals(user.getThreadId())) {
-				return user;
-			}
+		// A user can only be logged in on one node
+		if (cluster != null && cluster.locate(username) != null) {
+			throw new User.UserAlreadyLoggedInException();
 		}
-		return null;
+
+		// Associate User with Connection
+		user.setOnline(thread.getThreadId());
+		if (!sessions.login(thread.getThreadId(), user)) {
+			// Connection closed while logging in
+			user.setOffline(thread.getThreadId());
+			return false;
+		}
+		if (cluster != null) {
+			cluster.userOnline(user);
+		}
+		timeouts.schedule(user, thread.getThreadId());
+		metrics.loginSucceeded();
+		return true;
 	}
 
 	public static void main(String[] args) {
 		if (args.length < 1) {
-			Utilities.error("usage: java Server <server_port_no>");
+			Utilities.error(USAGE);
 		}
 
 		// Get port number
 		int portNumber = Utilities.parsePortNumber(args[0]);
 
-		// Create server
-		new Server(portNumber);
+		// Get options
+		Engine engine = Engine.THREAD;
+		SlowConsumers.Policy slowConsumerPolicy = SlowConsumers.Policy.SPILL;
+		int outboxCapacity = OUTBOX_CAPACITY;
+		int shardCount = SHARDS;
+		String node = null;
+		String clusterNodes = null;
+		String clusterSecretPath = CLUSTER_SECRET_PATH;
+		List<String> admins = Collections.emptyList();
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].startsWith("--engine=")) {
+				try {
+					engine = Engine.valueOf(args[i].substring(
+							"--engine=".length()).toUpperCase());
+				} catch (IllegalArgumentException e) {
+					Utilities.error("engine must be one of: thread, virtual, nio");
+				}
+			} else if (args[i].startsWith("--slow-consumer=")) {
+				try {
+					slowConsumerPolicy = SlowConsumers.Policy.valueOf(args[i]
+							.substring("--slow-consumer=".length())
+							.toUpperCase().replace('-', '_'));
+				} catch (IllegalArgumentException e) {
+					Utilities.error("slow consumer policy must be one of: drop-oldest, spill, disconnect");
+				}
+			} else if (args[i].startsWith("--outbox-capacity=")) {
+				try {
+					outboxCapacity = Integer.parseInt(args[i]
+							.substring("--outbox-capacity=".length()));
+				} catch (NumberFormatException e) {
+					outboxCapacity = -1;
+				}
+				if (outboxCapacity < 1) {
+					Utilities.error("outbox capacity must be a positive integer");
+				}
+			} else if (args[i].startsWith("--shards=")) {
+				try {
+					shardCount = Integer.parseInt(args[i]
+							.substring("--shards=".length()));
+				} catch (NumberFormatException e) {
+					shardCount = -1;
+				}
+				if (shardCount < 1) {
+					Utilities.error("number of shards must be a positive integer");
+				}
+			} else if (args[i].startsWith("--node=")) {
+				node = args[i].substring("--node=".length());
+			} else if (args[i].startsWith("--cluster=")) {
+				clusterNodes = args[i].substring("--cluster=".length());
+			} else if (args[i].startsWith("--cluster-secret=")) {
+				clusterSecretPath = args[i].substring("--cluster-secret="
+						.length());
+			} else if (args[i].startsWith("--admins=")) {
+				admins = Arrays.asList(args[i].substring("--admins=".length())
+						.split(","));
+			} else {
+				Utilities.error(USAGE);
+			}
+		}
+		if ((node == null) != (clusterNodes == null)) {
+			Utilities.error("--node and --cluster go together");
+		}
+
+		// Create server. Nodes running in the same directory keep their own
+		// offline messages, block lists and history.
+		Server server;
+		if (node == null) {
+			server = new Server(USER_DATABASE_PATH, OFFLINE_STORE_PATH,
+					BLOCK_LIST_PATH, shardCount);
+		} else {
+			server = new Server(USER_DATABASE_PATH, OFFLINE_STORE_PATH + "-"
+					+ node, "blocks-" + node + ".dat", HISTORY_STORE_PATH
+					+ "-" + node, shardCount);
+			try {
+				server.joinCluster(new TcpClusterTransport(node,
+						TcpClusterTransport.parseNodes(clusterNodes),
+						TcpClusterTransport.readSecret(clusterSecretPath)));
+			} catch (IOException e) {
+				Utilities.error("could not read cluster secret from "
+						+ clusterSecretPath);
+			} catch (IllegalArgumentException e) {
+				Utilities.error(e.getMessage());
+			}
+		}
+		server.setSlowConsumerPolicy(slowConsumerPolicy, outboxCapacity);
+		server.setAdmins(admins);
+		server.start(portNumber, engine);
 	}
 }
\ No newline at end of file
@@ -1,24 +1,62 @@
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Handles the communication with a single Client using blocking I/O. The
+ * {@link Server} decides whether {@link #run()} runs on a platform thread or on
+ * a virtual thread.
+ */
+public class ServerThread implements Runnable, Connection {
+	private static final int OUT_BUFFER_SIZE = 64 * 1024;
 
-public class ServerThread extends Thread {
 	private String threadId;
 	private Socket socket;
 	private Server server;
 
 	private String ipAddress;
 
-	private BufferedReader in;
-	private PrintWriter out;
+	private FrameReader in;
+	private OutputStream out;
+	private Outbox outbox;
 
-	public ServerThread(String threadId, Socket socket, Server server) {
+	/**
+	 * Whether the client has switched to the binary framing. Only changed
+	 * while holding <code>outLock</code>.
+	 */
+	private volatile boolean binary;
+
+	/**
+	 * Guards <code>out</code>, so that only one writer at a time drains the
+	 * <code>outbox</code>. A {@link ReentrantLock} rather than
+	 * <code>synchronized</code> so that a virtual thread blocked on the socket
+	 * does not pin its carrier.
+	 */
+	private ReentrantLock outLock;
+
+	/**
+	 * @param threadId
+	 * @param socket
+	 * @param server
+	 * @param writers
+	 *            runs the writer that drains the {@link Outbox} of this
+	 *            <code>ServerThread</code>
+	 */
+	public ServerThread(String threadId, Socket socket, Server server,
+			Executor writers) {
 		this.threadId = threadId;
 		this.socket = socket;
 		this.server = server;
 		this.ipAddress = socket.getInetAddress().getHostAddress();
+		this.outLock = new ReentrantLock();
+		this.outbox = new Outbox(writers, new Runnable() {
+			public void run() {
+				drain();
+			}
+		}, this, server.getSlowConsumers());
 
 		System.out.println("connection opened for thread #" + threadId + " at "
 				+ ipAddress);
@@ -27,70 +65,83 @@ public class ServerThread extends Thread {
 	public void run() {
 		try {
 			// Set up input and output from socket
-			this.in = new BufferedReader(new InputStreamReader(
-					socket.getInputStream()));
-			this.out = new PrintWriter(socket.getOutputStream(), true);
+			this.in = new FrameReader(socket.getInputStream());
+			outLock.lock();
+			try {
+				this.out = new BufferedOutputStream(socket.getOutputStream(),
+						OUT_BUFFER_SIZE);
+			} finally {
+				outLock.unlock();
+			}
 
 			// User authentication
 			String str = "";
 			boolean authenticated = false;
+			boolean offerBinary = true;
 			do {
 				authenticated = true;
 				
 				String username = null, password = null;
 				while (username == null || password == null) {
-					out.println(Utilities.encodeMessage("Username", str));
+					if (offerBinary) {
+						send(Frame.binaryOffer("Username", str));
+					} else {
+						send(new Frame("Username", str));
+					}
 					username = in.readLine();
-					if (username != null && username.equals(Utilities.FORCE_EXIT)) {
-						out.println(Utilities.encodeMessage("", Utilities.FORCE_EXIT));
+					if (username == null) {
+						// Client went away
+						return;
+					}
+
+					// Switch to the binary framing if the client accepts it
+					if (offerBinary) {
+						offerBinary = false;
+						if (Utilities.BINARY.equals(username)) {
+							switchToBinary();
+							username = null;
+							continue;
+						}
+					}
+
+					if (username.equals(Utilities.FORCE_EXIT)) {
+						send(new Frame("", Utilities.FORCE_EXIT));
 						authenticated = true;
 						return;
 					}
 					
-					out.println(Utilities.encodeMessage("Password", ""));
+					send(new Frame("Password", ""));
 					password = in.readLine();
-					if (password != null && password.equals(Utilities.FORCE_EXIT)) {
-						out.println(Utilities.encodeMessage("", Utilities.FORCE_EXIT));
+					if (password == null) {
+						// Client went away
+						return;
+					}
+					if (password.equals(Utilities.FORCE_EXIT)) {
+						send(new Frame("", Utilities.FORCE_EXIT));
 						authenticated = true;
 						return;
 					}
 				}
 
-				try {
-					authenticated = server.authenticateUser(username, password,
-							this);
-
-					if (authenticated) {
-						// User authenticated!
-						
-						// Get offline messages if any
-						String offlineMessages = server.getOfflineMessages(username);
-						
-						out.println(Utilities.encodeMessage("Command",
-								"\nWelcome to simple chat server!\n" + offlineMessages));						
-					} else {
-						// User not authenticated
-						str = "Sorry! Incorrect username and password combination.";
-						authenticated = false;
-					}
+				// Check the login on the Authenticator and wait for it
+				Authenticator.Result result = server.getAuthenticator()
+						.authenticate(username, password, this);
+				authenticated = result.isAuthenticated();
+				if (authenticated) {
+					// User authenticated!
 
-				} catch (User.UserAlreadyLoggedInException e) {
-					str = username + " is already logged in!";
-					authenticated = false;
-				} catch (User.IpAddressBlockedException e) {
-					str = "Sorry! " + username
-							+ " has been blocked from ip address " + ipAddress
-							+ ".\nPlease wait " + e.getSecondsLeft()
-							+ " seconds before attempting to login again"
-							+ Utilities.EXIT;
-					out.println(Utilities.encodeMessage("", str));
+					// Welcome the user along with their offline messages,
+					// which are sent a chunk at a time
+					server.deliverOfflineMessages(username, this,
+							"\nWelcome to simple chat server!\n");
+				} else if (result.isRetryAllowed()) {
+					str = result.getMessage();
+				} else {
+					// Blocked
+					send(new Frame("", result.getMessage()));
 					break;
 				}
 
-				if (!authenticated) {
-					str += " Please try again!\n\n";
-				}
-
 			} while (!authenticated);
 
 			// Communicate with client
@@ -98,26 +149,48 @@ public class ServerThread extends Thread {
 			while ((fromClient = in.readLine()) != null) {
 				// Window close action
 				if (fromClient.equals(Utilities.FORCE_EXIT)) {
-					out.println(Utilities.encodeMessage("", Utilities.FORCE_EXIT));
+					send(new Frame("", Utilities.FORCE_EXIT));
 				}
 				
 				// Interpret client data and come up with correct response
 				String toClient = server.processClientInput(fromClient, this);
-				out.println(Utilities.encodeMessage("Command", toClient));
+				send(new Frame("Command", toClient));
 			}
 
+		} catch (InterruptedException e) {
+			// Shutting down
 		} catch (IOException e) {
-			Utilities.error(e.getMessage());
+			// Connection reset or disconnected by the server. Only this
+			// client is affected, so don't bring the whole server down.
+			if (!socket.isClosed()) {
+				System.out.println("connection error for thread #" + threadId
+						+ " at " + ipAddress + ": " + e.getMessage());
+			}
 		} finally {
+			// Write whatever is left before closing
+			drain();
 			try {
 				socket.close();
 			} catch (IOException e) {
-				Utilities.error(e.getMessage());
+				// Already closed. Don't worry about it.
 			}
 			server.removeServerThread(threadId);
 		}
 	}
 
+	/**
+	 * Reads and writes binary frames from now on.
+	 */
+	private void switchToBinary() {
+		outLock.lock();
+		try {
+			binary = true;
+			in.setBinary(true);
+		} finally {
+			outLock.unlock();
+		}
+	}
+
 	/**
 	 * @return id of this <code>ServerThread</code>
 	 */
@@ -145,6 +218,75 @@ public class ServerThread extends Thread {
 	 * @param message
 	 */
 	public void print(String message) {
-		out.println(Utilities.encodeMessage("Command", message));
+		send(new Frame("Command", message));
+	}
+
+	/**
+	 * Queues a {@link Frame} to be written to <code>out</code>. Never blocks on
+	 * the socket.
+	 * 
+	 * @param frame
+	 */
+	public void send(Frame frame) {
+		outbox.add(frame);
+	}
+
+	/**
+	 * @return number of frames waiting to be written
+	 */
+	public int getPendingFrames() {
+		return outbox.size();
+	}
+
+	/**
+	 * @return the {@link Outbox} of frames waiting to be written
+	 */
+	public Outbox getOutbox() {
+		return outbox;
+	}
+
+	/**
+	 * Closes the socket, which makes the thread reading from it finish up.
+	 * 
+	 * @param reason
+	 */
+	public void disconnect(String reason) {
+		System.out.println("disconnecting thread #" + threadId + " at "
+				+ ipAddress + ": " + reason);
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// Already closed. Don't worry about it.
+		}
+	}
+
+	/**
+	 * Writes every queued {@link Frame} to <code>out</code> and flushes once.
+	 * Like a {@link java.io.PrintWriter}, errors are swallowed; a broken socket
+	 * is noticed by the reading side.
+	 */
+	private void drain() {
+		boolean flushed = false;
+		outLock.lock();
+		try {
+			if (out == null) {
+				// Not set up yet
+				return;
+			}
+			Frame frame;
+			while ((frame = outbox.poll()) != null) {
+				frame.writeTo(out, binary);
+			}
+			out.flush();
+			flushed = true;
+		} catch (IOException e) {
+			// Client is gone. Don't worry about it.
+		} finally {
+			outLock.unlock();
+		}
+
+		if (flushed) {
+			outbox.flushed();
+		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,29 @@
+/**
+ * A {@link Connection} together with the {@link User} that has logged in on
+ * it, if any. Immutable, so that a {@link SessionRegistry} can swap sessions
+ * atomically.
+ */
+public class Session {
+	private Connection connection;
+	private User user;
+
+	public Session(Connection connection, User user) {
+		this.connection = connection;
+		this.user = user;
+	}
+
+	/**
+	 * @return the {@link Connection} of this <code>Session</code>
+	 */
+	public Connection getConnection() {
+		return connection;
+	}
+
+	/**
+	 * @return the {@link User} logged in on this <code>Session</code> or
+	 *         <code>null</code> if nobody has logged in yet
+	 */
+	public User getUser() {
+		return user;
+	}
+}
@@ -0,0 +1,94 @@
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of all open {@link Session}s by thread id, so that looking up
+ * the {@link User} or {@link Connection} behind a thread id takes constant
+ * time no matter how many users are registered.
+ */
+public class SessionRegistry {
+
+	/**
+	 * @key threadId
+	 * @value <code>Session</code>
+	 */
+	private ConcurrentHashMap<String, Session> sessions;
+
+	public SessionRegistry() {
+		this.sessions = new ConcurrentHashMap<String, Session>();
+	}
+
+	/**
+	 * Adds a newly opened {@link Connection} that nobody has logged in on yet.
+	 * 
+	 * @param connection
+	 */
+	public void open(Connection connection) {
+		sessions.put(connection.getThreadId(), new Session(connection, null));
+	}
+
+	/**
+	 * Associates a {@link User} with an open {@link Connection}.
+	 * 
+	 * @param threadId
+	 * @param user
+	 * @return true if the user was associated and false if the connection has
+	 *         already been closed
+	 */
+	public boolean login(String threadId, User user) {
+		Session session = sessions.get(threadId);
+		if (session == null) {
+			return false;
+		}
+		return sessions.replace(threadId, session,
+				new Session(session.getConnection(), user));
+	}
+
+	/**
+	 * Removes a closed {@link Connection}.
+	 * 
+	 * @param threadId
+	 * @return the removed {@link Session} or <code>null</code> if there was
+	 *         none
+	 */
+	public Session close(String threadId) {
+		return sessions.remove(threadId);
+	}
+
+	/**
+	 * @param threadId
+	 * @return {@link User} logged in on the thread or <code>null</code> if
+	 *         there is none
+	 */
+	public User getUser(String threadId) {
+		Session session = sessions.get(threadId);
+		return session == null ? null : session.getUser();
+	}
+
+	/**
+	 * @param threadId
+	 * @return {@link Connection} with the thread id or <code>null</code> if it
+	 *         has been closed
+	 */
+	public Connection getConnection(String threadId) {
+		Session session = sessions.get(threadId);
+		return session == null ? null : session.getConnection();
+	}
+
+	/**
+	 * @param user
+	 * @return {@link Connection} the user is logged in on or <code>null</code>
+	 *         if they are offline
+	 */
+	public Connection getConnection(User user) {
+		String threadId = user.getThreadId();
+		return threadId == null ? null : getConnection(threadId);
+	}
+
+	/**
+	 * @return all open {@link Session}s
+	 */
+	public Collection<Session> getSessions() {
+		return sessions.values();
+	}
+}
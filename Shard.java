@@ -0,0 +1,155 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One of the partitions of the users of a {@link Server}, with a thread of its
+ * own. Every user belongs to one shard by username, and only that shard's
+ * thread delivers messages to them and saves the messages they can't receive
+ * in the shard's own {@link OfflineStore}.
+ *
+ * Senders never touch the recipients themselves. They hand each shard the
+ * recipients it owns through a lock-free mailbox, so a broadcast is fanned
+ * out by every shard at once and senders on different threads never wait on
+ * the same lock.
+ */
+public class Shard implements Runnable {
+
+	/**
+	 * A message for some of the users of a shard
+	 */
+	private static class Delivery {
+		private Frame frame;
+		private Message message;
+		private User[] toUsers;
+		private boolean forward;
+
+		/**
+		 * Runs once the delivery is done instead, if not <code>null</code>
+		 */
+		private Runnable callback;
+
+		private Delivery(Frame frame, Message message, User[] toUsers,
+				boolean forward, Runnable callback) {
+			this.frame = frame;
+			this.message = message;
+			this.toUsers = toUsers;
+			this.forward = forward;
+			this.callback = callback;
+		}
+	}
+
+	private int index;
+	private Server server;
+	private OfflineStore offlineStore;
+	private Thread thread;
+	private ConcurrentLinkedQueue<Delivery> mailbox;
+
+	/**
+	 * Whether the thread may be parked waiting for the mailbox
+	 */
+	private volatile boolean idle;
+
+	/**
+	 * @param index
+	 *            position of the shard among the shards of the server
+	 * @param server
+	 * @param offlineStore
+	 *            offline messages of the users of this shard
+	 */
+	public Shard(int index, Server server, OfflineStore offlineStore) {
+		this.index = index;
+		this.server = server;
+		this.offlineStore = offlineStore;
+		this.thread = new Thread(this, "shard-" + index);
+		this.thread.setDaemon(true);
+		this.mailbox = new ConcurrentLinkedQueue<Delivery>();
+		this.idle = false;
+	}
+
+	/**
+	 * Starts the shard thread.
+	 */
+	public void start() {
+		thread.start();
+	}
+
+	/**
+	 * @return position of the shard among the shards of the server
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	/**
+	 * @return offline messages of the users of this shard
+	 */
+	public OfflineStore getOfflineStore() {
+		return offlineStore;
+	}
+
+	/**
+	 * Hands a message to the shard to deliver to some of its users. Can be
+	 * called from any thread and never blocks.
+	 *
+	 * @param frame
+	 *            the message, encoded
+	 * @param message
+	 * @param toUsers
+	 *            users of this shard, which must not be changed afterwards
+	 * @param forward
+	 *            whether to forward the message to users who are online on
+	 *            another node of the {@link Cluster}
+	 */
+	public void deliver(Frame frame, Message message, User[] toUsers,
+			boolean forward) {
+		post(new Delivery(frame, message, toUsers, forward, null));
+	}
+
+	/**
+	 * Runs a callback on the shard thread once everything handed to the shard
+	 * so far has been delivered.
+	 *
+	 * @param callback
+	 */
+	public void whenDelivered(Runnable callback) {
+		post(new Delivery(null, null, null, false, callback));
+	}
+
+	private void post(Delivery delivery) {
+		mailbox.add(delivery);
+		if (idle) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	public void run() {
+		while (true) {
+			Delivery delivery = mailbox.poll();
+			if (delivery == null) {
+				// Check once more after saying we're idle, so that a delivery
+				// posted in between isn't left waiting
+				idle = true;
+				if (mailbox.isEmpty()) {
+					LockSupport.park(this);
+				}
+				idle = false;
+				continue;
+			}
+
+			if (delivery.callback != null) {
+				delivery.callback.run();
+				continue;
+			}
+			for (User toUser : delivery.toUsers) {
+				try {
+					server.deliver(toUser, delivery.frame, delivery.message,
+							delivery.forward);
+				} catch (RuntimeException e) {
+					// Don't let one recipient take the shard down
+					System.out.println("could not deliver a message to "
+							+ toUser.getUsername() + ": " + e);
+				}
+			}
+		}
+	}
+}
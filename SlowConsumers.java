@@ -0,0 +1,121 @@
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decides what happens when a {@link Connection} can't keep up with the
+ * frames sent to it, and keeps track of which connections are lagging. Every
+ * {@link Outbox} holds at most <code>capacity</code> frames; when a frame
+ * arrives at a full outbox, the {@link Policy} kicks in.
+ */
+public class SlowConsumers {
+
+	public enum Policy {
+		/**
+		 * Drop the oldest frame to make room for the new one
+		 */
+		DROP_OLDEST,
+
+		/**
+		 * Save chat messages to the recipient's offline messages instead, and
+		 * drop the oldest frame for anything else
+		 */
+		SPILL,
+
+		/**
+		 * Disconnect the client
+		 */
+		DISCONNECT;
+	}
+
+	private Server server;
+	private Policy policy;
+	private int capacity;
+
+	/**
+	 * @key threadId
+	 * @value <code>Connection</code> whose outbox is more than half full
+	 */
+	private ConcurrentHashMap<String, Connection> lagging;
+
+	public SlowConsumers(Server server, Policy policy, int capacity) {
+		this.server = server;
+		this.policy = policy;
+		this.capacity = capacity;
+		this.lagging = new ConcurrentHashMap<String, Connection>();
+	}
+
+	/**
+	 * @return what to do when an {@link Outbox} is full
+	 */
+	public Policy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * @return number of frames an {@link Outbox} holds at most
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Saves a chat message that could not be queued for an online user to
+	 * that user's offline messages.
+	 * 
+	 * @param connection
+	 *            {@link Connection} the message could not be queued for
+	 * @param message
+	 * @return true if the message was saved
+	 */
+	public boolean spill(Connection connection, Message message) {
+		return server.spillMessage(connection.getThreadId(), message);
+	}
+
+	/**
+	 * Disconnects a client whose outbox is full.
+	 * 
+	 * @param connection
+	 */
+	public void disconnect(Connection connection) {
+		connection.disconnect("too far behind on " + capacity
+				+ " queued frames");
+	}
+
+	/**
+	 * Marks a {@link Connection} as lagging or caught up.
+	 * 
+	 * @param connection
+	 * @param isLagging
+	 */
+	public void setLagging(Connection connection, boolean isLagging) {
+		if (isLagging) {
+			if (lagging.put(connection.getThreadId(), connection) == null) {
+				System.out.println("connection lagging for thread #"
+						+ connection.getThreadId() + " at "
+						+ connection.getIpAddress());
+			}
+		} else {
+			if (lagging.remove(connection.getThreadId()) != null) {
+				System.out.println("connection caught up for thread #"
+						+ connection.getThreadId() + " at "
+						+ connection.getIpAddress());
+			}
+		}
+	}
+
+	/**
+	 * Forgets a closed {@link Connection}.
+	 * 
+	 * @param threadId
+	 */
+	public void remove(String threadId) {
+		lagging.remove(threadId);
+	}
+
+	/**
+	 * @return the connections whose outbox is more than half full
+	 */
+	public Collection<Connection> getLaggingConnections() {
+		return lagging.values();
+	}
+}
@@ -0,0 +1,450 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A {@link ClusterTransport} over TCP. Every node listens on its own address
+ * and port and opens one connection to every other node, which it only sends
+ * on, so a pair of nodes talks over two connections. A connection starts
+ * with the name of the node that opened it, followed by messages that are
+ * each prefixed with their length.
+ *
+ * Before any message is sent, both ends of a connection prove that they know
+ * the secret shared by the nodes of the cluster: each sends a random
+ * challenge, and each answers the other's with an HMAC-SHA256 of both
+ * challenges and both node names keyed with the secret. A connection that
+ * can't answer is closed without a single message being read from it.
+ *
+ * Every outgoing connection has its own queue and writer thread. The writer
+ * takes whatever has been queued since its last write, up to
+ * {@link #MAX_BATCH} messages, and writes it with a single flush, so
+ * messages are batched under load without ever waiting for a batch to fill
+ * up. While a node can't be reached, nothing is queued for it and the writer
+ * tries to connect again every {@link #RECONNECT_DELAY} milliseconds.
+ *
+ * When a connection fails, the messages still queued for it, and those of
+ * the batch it was writing, are handed back to the receiver as undelivered.
+ * Messages of earlier batches have only been flushed to the operating
+ * system, so they are lost if the other node goes away before reading them.
+ */
+public class TcpClusterTransport implements ClusterTransport {
+	public static final int QUEUE_CAPACITY = 64 * 1024; // Messages per node
+	public static final int MAX_BATCH = 1024; // Messages
+	public static final int MAX_MESSAGE_LENGTH = 16 * 1024 * 1024; // Bytes
+	public static final int RECONNECT_DELAY = 500; // Milliseconds
+	public static final int HANDSHAKE_TIMEOUT = 5000; // Milliseconds
+	public static final int MIN_SECRET_LENGTH = 16; // Bytes
+	public static final int LISTEN_BACKLOG = 50; // Connections
+
+	private static final int CHALLENGE_LENGTH = 16; // Bytes
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+
+	/**
+	 * Queued to make a writer drop its connection
+	 */
+	private static final byte[] RESET = new byte[0];
+
+	/**
+	 * Outgoing connection to another node
+	 */
+	private class Link extends Thread {
+		private String peer;
+		private InetSocketAddress address;
+		private LinkedBlockingQueue<byte[]> queue;
+		private volatile Socket socket;
+		private volatile boolean connected;
+
+		private Link(String peer, InetSocketAddress address) {
+			super("cluster-link-" + peer);
+			setDaemon(true);
+			this.peer = peer;
+			this.address = address;
+			this.queue = new LinkedBlockingQueue<byte[]>(QUEUE_CAPACITY);
+			this.connected = false;
+		}
+
+		private boolean send(byte[] message) {
+			if (!connected) {
+				return false;
+			}
+			if (!queue.offer(message)) {
+				System.out.println("cluster queue to " + peer
+						+ " is full, dropping a message");
+				return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Drops the connection and connects again, for when the other node
+		 * has gone away. Nothing is written on an idle connection, so the
+		 * writer would not notice on its own.
+		 */
+		private void reset() {
+			Socket current = socket;
+			if (current != null) {
+				try {
+					current.close();
+				} catch (IOException e) {
+					// Don't worry about it
+				}
+			}
+			if (connected) {
+				queue.offer(RESET);
+			}
+		}
+
+		public void run() {
+			List<byte[]> batch = new ArrayList<byte[]>();
+			boolean reported = false;
+			while (true) {
+				socket = new Socket();
+				try {
+					socket.setTcpNoDelay(true);
+					socket.connect(address);
+					DataOutputStream out = new DataOutputStream(
+							new BufferedOutputStream(socket.getOutputStream()));
+					DataInputStream in = new DataInputStream(
+							new BufferedInputStream(socket.getInputStream()));
+
+					// Prove that both ends know the secret
+					socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+					byte[] challenge = challenge();
+					out.writeUTF(node);
+					out.write(challenge);
+					out.flush();
+					byte[] peerChallenge = new byte[CHALLENGE_LENGTH];
+					in.readFully(peerChallenge);
+					byte[] answer = new byte[mac(peer, node, challenge,
+							peerChallenge).length];
+					in.readFully(answer);
+					if (!MessageDigest.isEqual(answer, mac(peer, node,
+							challenge, peerChallenge))) {
+						throw new IOException("wrong cluster secret");
+					}
+					out.write(mac(node, node, challenge, peerChallenge));
+					out.flush();
+					socket.setSoTimeout(0);
+
+					System.out.println("linked to cluster node " + peer
+							+ " at " + address);
+					reported = false;
+					connected = true;
+					receiver.linked(peer);
+
+					while (true) {
+						batch.add(queue.take());
+						queue.drainTo(batch, MAX_BATCH - 1);
+						for (byte[] message : batch) {
+							if (message == RESET) {
+								throw new IOException("connection reset");
+							}
+							out.writeInt(message.length);
+							out.write(message);
+						}
+						out.flush();
+						batch.clear();
+					}
+				} catch (IOException e) {
+					if (connected || !reported) {
+						System.out.println("cannot reach cluster node " + peer
+								+ " at " + address + ": " + e.getMessage());
+						reported = true;
+					}
+				} catch (InterruptedException e) {
+					return;
+				} finally {
+					connected = false;
+
+					// Nothing of the batch was flushed, and nothing queued
+					// will be sent on the next connection
+					queue.drainTo(batch);
+					for (byte[] message : batch) {
+						if (message != RESET) {
+							receiver.undelivered(peer, message);
+						}
+					}
+					batch.clear();
+					try {
+						socket.close();
+					} catch (IOException e) {
+						// Don't worry about it
+					}
+				}
+
+				try {
+					Thread.sleep(RECONNECT_DELAY);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	private String node;
+	private byte[] secret;
+	private SecureRandom random;
+	private Map<String, InetSocketAddress> addresses;
+	private Map<String, Link> links;
+	private Receiver receiver;
+
+	/**
+	 * @key name of a node
+	 * @value incoming connection from it
+	 */
+	private ConcurrentHashMap<String, Socket> incoming;
+
+	/**
+	 * @param node
+	 *            name of this node
+	 * @param addresses
+	 *            addresses of every node in the cluster by name, including
+	 *            this one
+	 * @param secret
+	 *            shared by every node in the cluster
+	 */
+	public TcpClusterTransport(String node,
+			Map<String, InetSocketAddress> addresses, byte[] secret) {
+		if (!addresses.containsKey(node)) {
+			throw new IllegalArgumentException("node " + node
+					+ " is not in the cluster");
+		}
+		if (secret.length < MIN_SECRET_LENGTH) {
+			throw new IllegalArgumentException("cluster secret must be at least "
+					+ MIN_SECRET_LENGTH + " bytes long");
+		}
+		this.node = node;
+		this.secret = secret.clone();
+		this.random = new SecureRandom();
+		this.addresses = addresses;
+		this.links = new LinkedHashMap<String, Link>();
+		for (Map.Entry<String, InetSocketAddress> entry : addresses.entrySet()) {
+			if (!entry.getKey().equals(node)) {
+				links.put(entry.getKey(), new Link(entry.getKey(), entry
+						.getValue()));
+			}
+		}
+		this.incoming = new ConcurrentHashMap<String, Socket>();
+	}
+
+	/**
+	 * @param nodes
+	 *            comma separated list of
+	 *            <code>&lt;name&gt;@&lt;host&gt;:&lt;port&gt;</code>
+	 * @return addresses of the nodes by name, in order
+	 * @throws IllegalArgumentException
+	 *             if the list is malformed
+	 */
+	public static Map<String, InetSocketAddress> parseNodes(String nodes) {
+		Map<String, InetSocketAddress> addresses = new LinkedHashMap<String, InetSocketAddress>();
+		for (String spec : nodes.split(",")) {
+			int at = spec.indexOf('@');
+			int colon = spec.lastIndexOf(':');
+			if (at <= 0 || colon <= at + 1) {
+				throw new IllegalArgumentException("cluster nodes must look like <name>@<host>:<port>, not "
+						+ spec);
+			}
+			String name = spec.substring(0, at);
+			String host = spec.substring(at + 1, colon);
+			int port = Utilities.parsePortNumber(spec.substring(colon + 1));
+			if (addresses.put(name, new InetSocketAddress(host, port)) != null) {
+				throw new IllegalArgumentException("cluster node " + name
+						+ " is listed twice");
+			}
+		}
+		return addresses;
+	}
+
+	/**
+	 * @param path
+	 *            file with the secret shared by the nodes of a cluster
+	 * @return the secret, without the whitespace around it
+	 * @throws IOException
+	 *             if the file can't be read
+	 */
+	public static byte[] readSecret(String path) throws IOException {
+		return new String(Files.readAllBytes(new File(path).toPath()),
+				Utilities.CHARSET).trim().getBytes(Utilities.CHARSET);
+	}
+
+	public void start(Receiver receiver) throws IOException {
+		this.receiver = receiver;
+
+		// Only listen on the address the other nodes know this node by
+		InetSocketAddress address = addresses.get(node);
+		final ServerSocket listener = new ServerSocket(address.getPort(),
+				LISTEN_BACKLOG, address.getAddress());
+		Thread acceptor = new Thread("cluster-acceptor") {
+			public void run() {
+				while (true) {
+					try {
+						accept(listener.accept());
+					} catch (IOException e) {
+						System.out.println("cluster listener error: "
+								+ e.getMessage());
+						return;
+					}
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		for (Link link : links.values()) {
+			link.start();
+		}
+	}
+
+	/**
+	 * Reads the messages of an incoming connection on a thread of its own.
+	 *
+	 * @param socket
+	 */
+	private void accept(final Socket socket) {
+		Thread reader = new Thread("cluster-reader") {
+			public void run() {
+				String peer = null;
+				try {
+					socket.setTcpNoDelay(true);
+					DataInputStream in = new DataInputStream(
+							new BufferedInputStream(socket.getInputStream()));
+					DataOutputStream out = new DataOutputStream(
+							new BufferedOutputStream(socket.getOutputStream()));
+
+					// Prove that both ends know the secret before reading a
+					// single message
+					socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+					String name = in.readUTF();
+					if (!links.containsKey(name)) {
+						System.out.println("unknown cluster node " + name
+								+ " at " + socket.getInetAddress());
+						return;
+					}
+					byte[] peerChallenge = new byte[CHALLENGE_LENGTH];
+					in.readFully(peerChallenge);
+					byte[] challenge = challenge();
+					byte[] expected = mac(name, name, peerChallenge, challenge);
+					out.write(challenge);
+					out.write(mac(node, name, peerChallenge, challenge));
+					out.flush();
+					byte[] answer = new byte[expected.length];
+					in.readFully(answer);
+					if (!MessageDigest.isEqual(answer, expected)) {
+						System.out.println("cluster node " + name + " at "
+								+ socket.getInetAddress()
+								+ " does not know the cluster secret");
+						return;
+					}
+					socket.setSoTimeout(0);
+					peer = name;
+
+					Socket previous = incoming.put(peer, socket);
+					if (previous != null) {
+						// The node has started over, so what it said before
+						// no longer holds
+						previous.close();
+						receiver.lost(peer);
+						links.get(peer).reset();
+					}
+
+					while (true) {
+						int length = in.readInt();
+						if (length < 0 || length > MAX_MESSAGE_LENGTH) {
+							throw new IOException("bad message length "
+									+ length);
+						}
+						byte[] message = new byte[length];
+						in.readFully(message);
+						receiver.received(peer, message);
+					}
+				} catch (IOException e) {
+					// Connection closed
+				} finally {
+					try {
+						socket.close();
+					} catch (IOException e) {
+						// Don't worry about it
+					}
+					if (peer != null && incoming.remove(peer, socket)) {
+						System.out.println("lost cluster node " + peer);
+						receiver.lost(peer);
+						links.get(peer).reset();
+					}
+				}
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * @return a new random challenge
+	 */
+	private byte[] challenge() {
+		byte[] challenge = new byte[CHALLENGE_LENGTH];
+		random.nextBytes(challenge);
+		return challenge;
+	}
+
+	/**
+	 * @param author
+	 *            node that answers the challenge, so that an answer can't be
+	 *            sent back to the node it came from
+	 * @param client
+	 *            node that opened the connection
+	 * @param clientChallenge
+	 * @param serverChallenge
+	 * @return HMAC of a handshake, keyed with the cluster secret
+	 */
+	private byte[] mac(String author, String client, byte[] clientChallenge,
+			byte[] serverChallenge) {
+		try {
+			Mac mac = Mac.getInstance(MAC_ALGORITHM);
+			mac.init(new SecretKeySpec(secret, MAC_ALGORITHM));
+			mac.update(author.getBytes(Utilities.CHARSET));
+			mac.update((byte) 0);
+			mac.update(client.getBytes(Utilities.CHARSET));
+			mac.update((byte) 0);
+			mac.update(clientChallenge);
+			mac.update(serverChallenge);
+			return mac.doFinal();
+		} catch (GeneralSecurityException e) {
+			// Every JVM has HmacSHA256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public String getNode() {
+		return node;
+	}
+
+	public Collection<String> getPeers() {
+		return Collections.unmodifiableCollection(links.keySet());
+	}
+
+	public boolean send(String node, byte[] message) {
+		Link link = links.get(node);
+		return link != null && link.send(message);
+	}
+}
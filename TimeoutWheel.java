@@ -0,0 +1,166 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Kicks off {@link User}s who have been inactive for too long. Logged in users
+ * are put in the slot of a hashed timing wheel that matches the second their
+ * time out would expire. Every second only the users in the current slot are
+ * looked at: those who were active in the meantime are moved to the slot of
+ * their new deadline, and the rest are kicked off.
+ */
+public class TimeoutWheel implements Runnable {
+	private static final long TICK = 1000; // Milliseconds
+
+	/**
+	 * A logged in {@link User} waiting in a slot. Goes stale once the user
+	 * logs out, since the thread id no longer matches.
+	 */
+	private static class Entry {
+		private User user;
+		private String threadId;
+
+		/**
+		 * Whether the user has been told they are kicked off
+		 */
+		private boolean notified;
+
+		private Entry(User user, String threadId) {
+			this.user = user;
+			this.threadId = threadId;
+			this.notified = false;
+		}
+	}
+
+	private SessionRegistry sessions;
+	private long timeOut; // Milliseconds
+
+	private ConcurrentLinkedQueue<Entry>[] slots;
+	private int mask;
+
+	/**
+	 * Last tick that has been processed
+	 */
+	private volatile long currentTick;
+
+	/**
+	 * @param sessions
+	 *            {@link SessionRegistry} to find the connections of users to
+	 *            kick off in
+	 * @param timeOut
+	 *            seconds of inactivity before a user is kicked off
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public TimeoutWheel(SessionRegistry sessions, int timeOut) {
+		this.sessions = sessions;
+		this.timeOut = timeOut * 1000L;
+
+		// Make the wheel go around once per time out at most, so that a user
+		// who stays active is only looked at once per time out
+		int size = Integer.highestOneBit(timeOut + 1) << 1;
+		this.slots = new ConcurrentLinkedQueue[size];
+		for (int i = 0; i < size; i++) {
+			slots[i] = new ConcurrentLinkedQueue<Entry>();
+		}
+		this.mask = size - 1;
+		this.currentTick = System.currentTimeMillis() / TICK;
+	}
+
+	/**
+	 * Starts the thread that advances the wheel.
+	 */
+	public void start() {
+		Thread thread = new Thread(this, "timeout-checker");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Starts watching a {@link User} who has just logged in.
+	 * 
+	 * @param user
+	 * @param threadId
+	 *            id of the thread the user logged in on
+	 */
+	public void schedule(User user, String threadId) {
+		schedule(new Entry(user, threadId));
+	}
+
+	/**
+	 * Puts an entry in the slot of the tick its user's time out expires at.
+	 * 
+	 * @param entry
+	 */
+	private void schedule(Entry entry) {
+		long deadlineTick = (entry.user.getLastActive() + timeOut) / TICK + 1;
+		long tick = Math.max(deadlineTick, currentTick + 1);
+		slots[(int) (tick & mask)].add(entry);
+	}
+
+	public void run() {
+		while (true) {
+			// Timeout for a tick
+			try {
+				Thread.sleep(TICK - System.currentTimeMillis() % TICK);
+			} catch (InterruptedException e) {
+				Utilities.error(e.getMessage());
+			}
+
+			// Catch up on every tick since the last one
+			long now = System.currentTimeMillis();
+			while (currentTick < now / TICK) {
+				currentTick++;
+				expire(slots[(int) (currentTick & mask)], now);
+			}
+		}
+	}
+
+	/**
+	 * Looks at the entries in a slot, kicking off the users who have been
+	 * inactive for too long and rescheduling the rest. A user who is kicked
+	 * off is told so first, and disconnected a tick later.
+	 * 
+	 * @param slot
+	 * @param now
+	 *            current timestamp
+	 */
+	private void expire(ConcurrentLinkedQueue<Entry> slot, long now) {
+		// Only look at entries that were in the slot when we started, since
+		// rescheduled entries may land in this slot again
+		for (int count = slot.size(); count > 0; count--) {
+			Entry entry = slot.poll();
+			if (entry == null) {
+				break;
+			}
+
+			User user = entry.user;
+			if (!entry.threadId.equals(user.getThreadId())) {
+				// User has logged out
+				continue;
+			}
+
+			if (entry.notified) {
+				// User was given a tick to leave on their own
+				Connection connection = sessions.getConnection(entry.threadId);
+				if (connection != null) {
+					connection.disconnect("inactive for too long");
+				}
+				continue;
+			}
+
+			if (now - user.getLastActive() <= timeOut) {
+				// User was active in the meantime
+				schedule(entry);
+				continue;
+			}
+
+			// Kick user off. Give the client a tick to read the notice and
+			// leave, then close the connection whether it did or not.
+			Connection connection = sessions.getConnection(entry.threadId);
+			if (connection != null) {
+				connection.print("Sorry! You have been inactive for too long"
+						+ Utilities.EXIT);
+				entry.notified = true;
+				slots[(int) ((currentTick + 1) & mask)].add(entry);
+			}
+		}
+	}
+}
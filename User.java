@@ -1,38 +1,31 @@
-import java.util.Date;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
-
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A registered user. Whether the user is online is decided by a single
+ * compare-and-set on the thread id they are logged in on, so two connections
+ * logging in as the same user at once can't both succeed, and a connection
+ * closing late can't log out a newer one.
+ */
 public class User {
+	private int id;
 	private String username;
 	private String password;
 
-	private boolean isOnline;
-	private long lastLoggedIn;
-	private long lastActive;
-	private String threadId;
-
-	/**
-	 * @key ip address
-	 * @value timestamp of blocked time
-	 */
-	private HashMap<String, Date> blockedIpAddresses;
+	private volatile long lastLoggedIn;
+	private volatile long lastActive;
 
 	/**
-	 * @key ip address
-	 * @value number of attempts
+	 * Id of the thread this user is logged in on, or <code>null</code> if
+	 * they are offline
 	 */
-	private HashMap<String, Integer> loginAttempts;
-	private final static int MAX_LOGIN_ATTEMPTS = 3;
+	private AtomicReference<String> threadId;
+	private Presence presence;
 
-	private LinkedList<Message> messages;
-	private HashSet<User> blockedUsers;
-
-	public class UserAlreadyLoggedInException extends Exception {
+	public static class UserAlreadyLoggedInException extends Exception {
 		private static final long serialVersionUID = 1L;
 	}
 
-	public class IpAddressBlockedException extends Exception {
+	public static class IpAddressBlockedException extends Exception {
 		private static final long serialVersionUID = 1L;
 
 		private int secondsLeft;
@@ -49,20 +42,30 @@ public class User {
 		}
 	}
 
-	public User(String username, String password) {
+	/**
+	 * @param id
+	 *            dense id, see {@link UserStore}
+	 * @param username
+	 * @param password
+	 * @param presence
+	 */
+	public User(int id, String username, String password, Presence presence) {
+		this.id = id;
 		this.username = username;
 		this.password = password;
+		this.presence = presence;
 
-		this.isOnline = false;
 		this.lastLoggedIn = -1;
 		this.lastActive = -1;
-		this.threadId = null;
+		this.threadId = new AtomicReference<String>(null);
 
-		blockedIpAddresses = new HashMap<String, Date>();
-		loginAttempts = new HashMap<String, Integer>();
+	}
 
-		this.messages = new LinkedList<Message>();
-		this.blockedUsers = new HashSet<User>();
+	/**
+	 * @return the id
+	 */
+	public int getId() {
+		return id;
 	}
 
 	/**
@@ -74,68 +77,17 @@ public class User {
 
 	/**
 	 * Checks if this <code>User</code> matches the given username and password.
-	 * Updates loginAttempts and blockedIpAddresses.
+	 * Failed attempts are tracked by the {@link LoginThrottle}.
 	 * 
 	 * @param username
 	 *            the username to match
 	 * @param password
 	 *            the password to match
-	 * @param ipAddress
-	 *            the ip address that this request to match username and
-	 *            password is from
 	 * @return true if there is a match and false otherwise
 	 */
-	public boolean matchUsernamePassword(String username, String password,
-			String ipAddress) throws IpAddressBlockedException {
-		// Check if this ip address is blocked
-		if (blockedIpAddresses.containsKey(ipAddress)) {
-			// Check if blocked time has expired
-			int timePassedSinceBlock = (int) ((System.currentTimeMillis() - blockedIpAddresses
-					.get(ipAddress).getTime()) / 1000);
-			if (timePassedSinceBlock < Server.BLOCK_TIME) {
-				// Still blocked
-				throw new IpAddressBlockedException(Server.BLOCK_TIME
-						- timePassedSinceBlock);
-			} else {
-				// No longer blocked
-				blockedIpAddresses.remove(ipAddress);
-			}
-		}
-
-		boolean match = this.username.equals(username)
-				&& this.password.equals(password);
-
-		if (match) {
-			if (loginAttempts.containsKey(ipAddress)) {
-				int attempts = loginAttempts.get(ipAddress);
-				
-				// Reset counter in loginAttempts
-				loginAttempts.remove(ipAddress);
-				
-				if (attempts == MAX_LOGIN_ATTEMPTS) {
-					// Already attempted max times
-					blockedIpAddresses.put(ipAddress, new Date());
-					throw new IpAddressBlockedException(Server.BLOCK_TIME);
-				}
-			}
-
-			return match;
-		}
-
-		// Password doesn't match, so update loginAttempts
-		if (loginAttempts.containsKey(ipAddress)) {
-			int attempts = loginAttempts.get(ipAddress).intValue();
-			loginAttempts.put(ipAddress, attempts + 1);
-
-			// Block ip address
-			if (attempts == MAX_LOGIN_ATTEMPTS) {
-				blockedIpAddresses.put(ipAddress, new Date());
-				throw new IpAddressBlockedException(Server.BLOCK_TIME);
-			}
-		} else {
-			loginAttempts.put(ipAddress, 1);
-		}
-		return false;
+	public boolean matchUsernamePassword(String username, String password) {
+		return this.username.equals(username)
+				&& PasswordHash.verify(this.password, password);
 	}
 
 	/**
@@ -143,35 +95,47 @@ public class User {
 	 *         {@link Server}
 	 */
 	public boolean isOnline() {
-		return isOnline;
+		return threadId.get() != null;
 	}
 
 	/**
 	 * Sets this <code>User</code> as online and sets the last logged in
-	 * timestamp as the time that this method was called.
+	 * timestamp as the time that this method was called. Also adds this
+	 * <code>User</code> to the {@link Presence}.
 	 * 
 	 * @param threadId
 	 *            of the <code>ServerThread</code> associated with this
 	 *            <code>User</code>
 	 */
 	public void setOnline(String threadId) throws UserAlreadyLoggedInException {
-		if (isOnline) {
+		if (!this.threadId.compareAndSet(null, threadId)) {
 			throw new UserAlreadyLoggedInException();
 		}
 
-		this.isOnline = true;
 		this.lastLoggedIn = System.currentTimeMillis();
-		this.threadId = threadId;
 		updateLastActive();
+		presence.add(this);
 	}
 
 	/**
-	 * Sets this <code>User</code> as offline.
+	 * Sets this <code>User</code> as offline and removes it from the
+	 * {@link Presence}, unless they have logged in on another thread since.
+	 * 
+	 * @param threadId
+	 *            of the <code>ServerThread</code> the user is logging out of
+	 * @return true if the user was set offline and false if they were not
+	 *         logged in on the thread
 	 */
-	public void setOffline() {
-		this.isOnline = false;
-		this.threadId = null;
+	public boolean setOffline(String threadId) {
+		if (!threadId.equals(this.threadId.get())) {
+			return false;
+		}
+
+		// Nobody else can log in until the thread id is cleared, so the
+		// user is out of the presence before anybody can add them back
+		presence.remove(this);
 		updateLastActive();
+		return this.threadId.compareAndSet(threadId, null);
 	}
 
 	/**
@@ -179,7 +143,7 @@ public class User {
 	 *         <code>User</code>
 	 */
 	public String getThreadId() {
-		return this.threadId;
+		return this.threadId.get();
 	}
 
 	/**
@@ -189,57 +153,6 @@ public class User {
 		return lastLoggedIn;
 	}
 
-	/**
-	 * Retrieves a {@link Message} from the list of messages and deletes the
-	 * {@link Message} from the list.
-	 * 
-	 * @return {@link Message} if it exists and <code>null</code> if there are
-	 *         no messages
-	 */
-	public Message popMessage() {
-		return this.messages.size() > 0 ? this.messages.pop() : null;
-	}
-
-	/**
-	 * Adds a {@link Message} to list of messages.
-	 * 
-	 * @param message
-	 *            {@link Message} to add
-	 */
-	public void addMessage(Message message) {
-		messages.add(message);
-	}
-
-	/**
-	 * Adds a <code>User</code> to list of blocked users.
-	 * 
-	 * @param user
-	 */
-	public void blockUser(User user) {
-		blockedUsers.add(user);
-	}
-
-	/**
-	 * Removes a <code>User</code> from list of blocked users.
-	 * 
-	 * @param user
-	 * @return true if successfully unblocked, false if user wasn't in the
-	 *         blocked list to begin with
-	 */
-	public boolean unblockUser(User user) {
-		return blockedUsers.remove(user);
-	}
-	
-	/**
-	 * Checks if a user has been blocked.
-	 * 
-	 * @param user
-	 * @return true if user has been blocked, false otherwise
-	 */
-	public boolean hasBlocked(User user) {
-		return blockedUsers.contains(user);
-	}
-	
 	/**
 	 * Updates last active with current timestamp.
 	 */
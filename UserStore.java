@@ -0,0 +1,372 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The user database. Instead of creating a {@link User} for every line of the
+ * user database file up front, the file is memory-mapped along with a hash
+ * index of where each username's line starts, and a <code>User</code> is only
+ * created the first time somebody looks it up.
+ *
+ * The index is saved next to the user database file (with ".idx" appended)
+ * and reused as long as the user database file does not change, so starting
+ * the server does not even have to read the user database. Each slot of the
+ * index is the offset of a line plus one (0 for an empty slot) and the hash of
+ * the username on it. Lines that are not a username and a password separated
+ * by a space are skipped.
+ */
+public class UserStore {
+	private static final int MAGIC = 0x55494458; // "UIDX"
+	private static final int VERSION = 1;
+	private static final int HEADER_LENGTH = 4 + 4 + 8 + 8 + 4 + 4;
+	private static final int SLOT_LENGTH = 4 + 4;
+	private static final String INDEX_SUFFIX = ".idx";
+
+	private String path;
+	private Presence presence;
+
+	/**
+	 * The user database file
+	 */
+	private MappedByteBuffer source;
+
+	/**
+	 * Header followed by the slots of the hash index
+	 */
+	private ByteBuffer index;
+	private int mask;
+	private int userCount;
+
+	/**
+	 * @key username
+	 * @value <code>User</code> that has been looked up at least once
+	 */
+	private ConcurrentHashMap<String, User> users;
+
+	/**
+	 * Loaded users by id. Ids are handed out in the order users are loaded,
+	 * so they are dense.
+	 */
+	private ArrayList<User> usersById;
+
+	/**
+	 * Maps the user database and loads its index, building the index if it is
+	 * missing or out of date.
+	 *
+	 * @param path
+	 *            path of the file with a username and password on every line
+	 * @param presence
+	 *            {@link Presence} of the users
+	 * @throws IOException
+	 */
+	public UserStore(String path, Presence presence) throws IOException {
+		this.path = path;
+		this.presence = presence;
+		this.users = new ConcurrentHashMap<String, User>();
+		this.usersById = new ArrayList<User>();
+
+		File file = new File(path);
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			this.source = raf.getChannel().map(FileChannel.MapMode.READ_ONLY,
+					0, raf.length());
+		} finally {
+			// The mapping stays valid after the file is closed
+			raf.close();
+		}
+
+		File indexFile = new File(path + INDEX_SUFFIX);
+		this.index = loadIndex(indexFile, file);
+		if (index == null) {
+			this.index = buildIndex(file);
+			saveIndex(indexFile);
+		}
+		this.mask = (index.capacity() - HEADER_LENGTH) / SLOT_LENGTH - 1;
+		this.userCount = index.getInt(HEADER_LENGTH - 4);
+	}
+
+	/**
+	 * Looks up a {@link User}, creating it and giving it the next id the first
+	 * time.
+	 *
+	 * @param username
+	 * @return <code>User</code> or <code>null</code> if there is no such user
+	 */
+	public User get(String username) {
+		User user = users.get(username);
+		if (user != null) {
+			return user;
+		}
+
+		byte[] name = username.getBytes(Utilities.CHARSET);
+		int offset = find(name);
+		if (offset < 0) {
+			return null;
+		}
+
+		String password = readPassword(offset + name.length + 1);
+		synchronized (this) {
+			user = users.get(username);
+			if (user == null) {
+				user = new User(usersById.size(), username, password, presence);
+				usersById.add(user);
+				users.put(username, user);
+			}
+			return user;
+		}
+	}
+
+	/**
+	 * @param id
+	 * @return the loaded {@link User} with an id
+	 */
+	public synchronized User get(int id) {
+		return usersById.get(id);
+	}
+
+	/**
+	 * @return the {@link User}s that have been looked up so far. Users that
+	 *         have not been looked up have not logged in since the server
+	 *         started.
+	 */
+	public Collection<User> getLoadedUsers() {
+		return users.values();
+	}
+
+	/**
+	 * @return number of users in the user database
+	 */
+	public int size() {
+		return userCount;
+	}
+
+	/**
+	 * @param name
+	 *            username encoded in UTF-8
+	 * @return offset of the line of a username, or -1 if there is none. Like
+	 *         when every line was put in a map, the last line wins if a
+	 *         username is on several lines.
+	 */
+	private int find(byte[] name) {
+		int hash = hash(ByteBuffer.wrap(name), 0, name.length);
+		int found = -1;
+		int slot = hash & mask;
+		while (true) {
+			int position = HEADER_LENGTH + slot * SLOT_LENGTH;
+			int offset = index.getInt(position) - 1;
+			if (offset < 0) {
+				return found;
+			}
+			if (index.getInt(position + 4) == hash && matches(offset, name)) {
+				found = offset;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	/**
+	 * @param offset
+	 * @param name
+	 * @return whether the line at an offset is for a username
+	 */
+	private boolean matches(int offset, byte[] name) {
+		if (offset + name.length >= source.capacity()
+				|| source.get(offset + name.length) != ' ') {
+			return false;
+		}
+		for (int i = 0; i < name.length; i++) {
+			if (source.get(offset + i) != name[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param offset
+	 *            where the password starts
+	 * @return the password, up to the next space or the end of the line
+	 */
+	private String readPassword(int offset) {
+		int end = offset;
+		while (end < source.capacity()) {
+			byte b = source.get(end);
+			if (b == ' ' || b == '\n' || b == '\r') {
+				break;
+			}
+			end++;
+		}
+
+		byte[] password = new byte[end - offset];
+		for (int i = 0; i < password.length; i++) {
+			password[i] = source.get(offset + i);
+		}
+		return new String(password, Utilities.CHARSET);
+	}
+
+	/**
+	 * Builds the hash index by scanning every line of the user database once.
+	 *
+	 * @param file
+	 *            the user database file
+	 * @return the index
+	 */
+	private ByteBuffer buildIndex(File file) {
+		int capacity = source.capacity();
+		int[] offsets = new int[64];
+		int[] hashes = new int[64];
+		int count = 0;
+		int malformed = 0;
+		int firstMalformed = 0;
+
+		int lineNumber = 0;
+		int start = 0;
+		while (start < capacity) {
+			lineNumber++;
+			int end = start;
+			int space = -1;
+			while (end < capacity && source.get(end) != '\n') {
+				if (space < 0 && source.get(end) == ' ') {
+					space = end;
+				}
+				end++;
+			}
+			int lineEnd = end;
+			if (lineEnd > start && source.get(lineEnd - 1) == '\r') {
+				lineEnd--;
+			}
+
+			if (space > start && space + 1 < lineEnd
+					&& source.get(space + 1) != ' ') {
+				if (count == offsets.length) {
+					offsets = Arrays.copyOf(offsets, count * 2);
+					hashes = Arrays.copyOf(hashes, count * 2);
+				}
+				offsets[count] = start;
+				hashes[count] = hash(source, start, space - start);
+				count++;
+			} else if (lineEnd > start) {
+				// Not a username and a password
+				if (malformed++ == 0) {
+					firstMalformed = lineNumber;
+				}
+			}
+			start = end + 1;
+		}
+		if (malformed > 0) {
+			System.out.println("skipped " + malformed
+					+ " malformed lines in " + path + ", the first on line "
+					+ firstMalformed);
+		}
+
+		// Keep the table at most half full
+		int slots = Integer.highestOneBit(Math.max(count, 1) * 2) * 2;
+		ByteBuffer index = ByteBuffer.allocate(HEADER_LENGTH + slots
+				* SLOT_LENGTH);
+		index.putInt(0, MAGIC);
+		index.putInt(4, VERSION);
+		index.putLong(8, file.length());
+		index.putLong(16, file.lastModified());
+		index.putInt(24, slots);
+		index.putInt(28, count);
+		for (int i = 0; i < count; i++) {
+			int slot = hashes[i] & (slots - 1);
+			while (index.getInt(HEADER_LENGTH + slot * SLOT_LENGTH) != 0) {
+				slot = (slot + 1) & (slots - 1);
+			}
+			index.putInt(HEADER_LENGTH + slot * SLOT_LENGTH, offsets[i] + 1);
+			index.putInt(HEADER_LENGTH + slot * SLOT_LENGTH + 4, hashes[i]);
+		}
+		return index;
+	}
+
+	/**
+	 * Saves the index so that the next start can reuse it. The server works
+	 * without it, so failing to save it is not an error.
+	 *
+	 * @param indexFile
+	 */
+	private void saveIndex(File indexFile) {
+		File temporary = null;
+		try {
+			// A temporary file of its own, since the nodes of a cluster may
+			// start in the same directory at the same time
+			temporary = File.createTempFile(indexFile.getName(), ".tmp",
+					indexFile.getAbsoluteFile().getParentFile());
+			FileOutputStream out = new FileOutputStream(temporary);
+			try {
+				out.getChannel().write(index.duplicate());
+			} finally {
+				out.close();
+			}
+			if (!temporary.renameTo(indexFile)) {
+				throw new IOException("could not rename " + temporary);
+			}
+		} catch (IOException e) {
+			System.out.println("could not save user index " + indexFile
+					+ ": " + e.getMessage());
+			if (temporary != null) {
+				temporary.delete();
+			}
+		}
+	}
+
+	/**
+	 * Maps a saved index if it was built from the current user database.
+	 *
+	 * @param indexFile
+	 * @param file
+	 *            the user database file
+	 * @return the index or <code>null</code> if it has to be rebuilt
+	 */
+	private static ByteBuffer loadIndex(File indexFile, File file) {
+		if (!indexFile.isFile() || indexFile.length() < HEADER_LENGTH) {
+			return null;
+		}
+		try {
+			RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+			try {
+				MappedByteBuffer index = raf.getChannel().map(
+						FileChannel.MapMode.READ_ONLY, 0, raf.length());
+				int slots = index.getInt(24);
+				if (index.getInt(0) != MAGIC || index.getInt(4) != VERSION
+						|| index.getLong(8) != file.length()
+						|| index.getLong(16) != file.lastModified()
+						|| slots <= 0 || Integer.bitCount(slots) != 1
+						|| index.capacity() != HEADER_LENGTH + (long) slots
+								* SLOT_LENGTH) {
+					// Out of date
+					return null;
+				}
+				return index;
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 * @return FNV-1a hash of some bytes
+	 */
+	private static int hash(ByteBuffer buffer, int offset, int length) {
+		int hash = 0x811c9dc5;
+		for (int i = offset; i < offset + length; i++) {
+			hash ^= buffer.get(i) & 0xff;
+			hash *= 0x01000193;
+		}
+		return hash;
+	}
+}
@@ -1,8 +1,25 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
 public class Utilities {
+	public static final Charset CHARSET = StandardCharsets.UTF_8;
 	public static final String EXIT = "<exit>";
 	public static final String FORCE_EXIT = "<force_exit>";
 	public static final String NEWLINE = "<br>";
 
+	/**
+	 * Appended by the <code>Server</code> to its first message to offer the
+	 * binary framing, and sent back by a <code>Client</code> that accepts it.
+	 */
+	public static final String BINARY = "<binary>";
+
+	/**
+	 * Largest payload of a binary frame, or line of the text framing, in bytes
+	 */
+	public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
 	/**
 	 * Encodes a message from the <code>Server</code> to the <code>Client</code>
 	 * .
@@ -12,7 +29,7 @@ public class Utilities {
 	 * @return encoded message
 	 */
 	public static String encodeMessage(String prompt, String message) {
-		message = message.replaceAll("\n", NEWLINE);
+		message = message.replace("\n", NEWLINE);
 		return "<prompt>" + prompt + "</prompt><message>" + message
 				+ "</message>";
 	}
@@ -39,11 +56,113 @@ public class Utilities {
 		int endMessageIndex = encodedMessage.indexOf("</message>",
 				startMessageIndex);
 		String message = encodedMessage.substring(startMessageIndex,
-				endMessageIndex).replaceAll(NEWLINE, "\n");
+				endMessageIndex).replace(NEWLINE, "\n");
 
 		return new String[] { prompt, message };
 	}
 
+	/**
+	 * Writes a line from the <code>Client</code> to the <code>Server</code>,
+	 * either followed by a newline or as a length prefixed binary frame.
+	 * 
+	 * @param out
+	 * @param line
+	 * @param binary
+	 *            whether to use the binary framing
+	 * @throws IOException
+	 */
+	public static void writeLine(OutputStream out, String line, boolean binary)
+			throws IOException {
+		if (!binary) {
+			out.write((line + "\n").getBytes(CHARSET));
+			return;
+		}
+
+		int length = utf8Length(line);
+		byte[] bytes = new byte[4 + length];
+		putInt(bytes, 0, length);
+		encodeUtf8(line, bytes, 4);
+		out.write(bytes);
+	}
+
+	/**
+	 * Writes an integer into a byte array, most significant byte first.
+	 * 
+	 * @param bytes
+	 * @param offset
+	 * @param value
+	 */
+	public static void putInt(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte) (value >>> 24);
+		bytes[offset + 1] = (byte) (value >>> 16);
+		bytes[offset + 2] = (byte) (value >>> 8);
+		bytes[offset + 3] = (byte) value;
+	}
+
+	/**
+	 * Counts the bytes a {@link String} takes up in UTF-8 without encoding it.
+	 * 
+	 * @param str
+	 * @return length in bytes
+	 */
+	public static int utf8Length(String str) {
+		int length = 0;
+		for (int i = 0; i < str.length(); i++) {
+			char c = str.charAt(i);
+			if (c < 0x80) {
+				length++;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < str.length()
+					&& Character.isLowSurrogate(str.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else if (Character.isSurrogate(c)) {
+				// Unpaired surrogate is replaced with '?'
+				length++;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Encodes a {@link String} as UTF-8 straight into a byte array, which must
+	 * have room for {@link #utf8Length(String)} bytes.
+	 * 
+	 * @param str
+	 * @param bytes
+	 * @param offset
+	 *            where to start writing in <code>bytes</code>
+	 * @return offset just past the last byte written
+	 */
+	public static int encodeUtf8(String str, byte[] bytes, int offset) {
+		for (int i = 0; i < str.length(); i++) {
+			char c = str.charAt(i);
+			if (c < 0x80) {
+				bytes[offset++] = (byte) c;
+			} else if (c < 0x800) {
+				bytes[offset++] = (byte) (0xc0 | (c >> 6));
+				bytes[offset++] = (byte) (0x80 | (c & 0x3f));
+			} else if (Character.isHighSurrogate(c) && i + 1 < str.length()
+					&& Character.isLowSurrogate(str.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, str.charAt(++i));
+				bytes[offset++] = (byte) (0xf0 | (codePoint >> 18));
+				bytes[offset++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+				bytes[offset++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+				bytes[offset++] = (byte) (0x80 | (codePoint & 0x3f));
+			} else if (Character.isSurrogate(c)) {
+				bytes[offset++] = (byte) '?';
+			} else {
+				bytes[offset++] = (byte) (0xe0 | (c >> 12));
+				bytes[offset++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				bytes[offset++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+		return offset;
+	}
+
 	/**
 	 * Parses a port number in the form of a {@link String} into an integer.
 	 * 
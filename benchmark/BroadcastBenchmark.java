@@ -0,0 +1,180 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures how many bytes are allocated per broadcast, comparing the old
+ * fan-out (every recipient encodes the text again and writes it through its
+ * own autoflushing {@link PrintWriter}) with {@link Server#sendMessage(Message)}
+ * (the text is encoded once into a shared {@link Frame}). Counts the bytes
+ * allocated by every thread, since the {@link Shard}s deliver the broadcast.
+ * 
+ * Run from the project root: make bench
+ */
+public class BroadcastBenchmark {
+	private static final int[] RECIPIENTS = { 1000, 10000 };
+	private static final int WARMUP = 200;
+	private static final int ITERATIONS = 200;
+	private static final String TEXT = "Hello there everybody! :)";
+
+	/**
+	 * Throws away everything written to it.
+	 */
+	private static final OutputStream NULL_STREAM = new OutputStream() {
+		public void write(int b) {
+		}
+
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+
+	/**
+	 * A {@link Connection} that writes frames to nowhere.
+	 */
+	private static class NullConnection implements Connection {
+		private String threadId;
+
+		private NullConnection(String threadId) {
+			this.threadId = threadId;
+		}
+
+		public String getThreadId() {
+			return threadId;
+		}
+
+		public String getIpAddress() {
+			return "127.0.0.1";
+		}
+
+		public void print(String message) {
+			send(new Frame("Command", message));
+		}
+
+		public void send(Frame frame) {
+			try {
+				frame.writeTo(NULL_STREAM, false);
+			} catch (IOException e) {
+				Utilities.error(e.getMessage());
+			}
+		}
+
+		public int getPendingFrames() {
+			return 0;
+		}
+
+		public Outbox getOutbox() {
+			return null;
+		}
+
+		public void disconnect(String reason) {
+		}
+	}
+
+	public static void main(String[] args) {
+		System.out.println("recipients  before (bytes/broadcast)  after (bytes/broadcast)");
+		for (int recipients : RECIPIENTS) {
+			long before = measureLegacy(recipients);
+			long after = measureSendMessage(recipients);
+			System.out.printf("%10d  %29d  %23d%n", recipients, before, after);
+		}
+	}
+
+	/**
+	 * @param recipients
+	 * @return bytes allocated per broadcast by the old fan-out
+	 */
+	private static long measureLegacy(int recipients) {
+		final PrintWriter[] writers = new PrintWriter[recipients];
+		for (int i = 0; i < recipients; i++) {
+			writers[i] = new PrintWriter(new OutputStreamWriter(NULL_STREAM,
+					Utilities.CHARSET), true);
+		}
+
+		return measure(new Runnable() {
+			public void run() {
+				for (PrintWriter writer : writers) {
+					String message = ("sender says: " + TEXT + "\n\n")
+							.replaceAll("\n", Utilities.NEWLINE);
+					writer.println("<prompt>Command</prompt><message>"
+							+ message + "</message>");
+				}
+			}
+		});
+	}
+
+	/**
+	 * @param recipients
+	 * @return bytes allocated per broadcast by
+	 *         {@link Server#sendMessage(Message)}
+	 */
+	private static long measureSendMessage(int recipients) {
+		final Server server = new Server("user_pass.txt");
+		Presence presence = new Presence();
+		final User sender = new User(recipients, "sender", "password",
+				presence);
+		final User[] toUsers = new User[recipients];
+		try {
+			for (int i = 0; i < recipients; i++) {
+				String threadId = "thread-" + i;
+				toUsers[i] = new User(i, "user" + i, "password", presence);
+				toUsers[i].setOnline(threadId);
+				server.addConnection(new NullConnection(threadId));
+			}
+		} catch (User.UserAlreadyLoggedInException e) {
+			Utilities.error(e.getMessage());
+		}
+
+		return measure(new Runnable() {
+			public void run() {
+				server.sendMessage(new Message(TEXT, sender, toUsers, true));
+				try {
+					server.awaitDelivery(Long.MAX_VALUE);
+				} catch (InterruptedException e) {
+					Utilities.error(e.getMessage());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Runs a broadcast a number of times and measures the bytes allocated by
+	 * every thread.
+	 * 
+	 * @param broadcast
+	 * @return average bytes allocated per run
+	 */
+	private static long measure(Runnable broadcast) {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+
+		for (int i = 0; i < WARMUP; i++) {
+			broadcast.run();
+		}
+
+		long[] threadIds = threads.getAllThreadIds();
+		long start = sum(threads.getThreadAllocatedBytes(threadIds));
+		for (int i = 0; i < ITERATIONS; i++) {
+			broadcast.run();
+		}
+		return (sum(threads.getThreadAllocatedBytes(threadIds)) - start)
+				/ ITERATIONS;
+	}
+
+	/**
+	 * @param bytes
+	 *            bytes allocated by each thread, or -1 for a thread that is
+	 *            gone
+	 * @return bytes allocated by all threads
+	 */
+	private static long sum(long[] bytes) {
+		long sum = 0;
+		for (long b : bytes) {
+			if (b > 0) {
+				sum += b;
+			}
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,277 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Starts a {@link Cluster} of two {@link Server}s in JVMs of their own and
+ * compares messages between users on the same node with messages between
+ * users on different nodes: the latency of one message at a time, and the
+ * throughput of many senders at once, which is where the
+ * {@link TcpClusterTransport} batches.
+ *
+ * Run from the project root: make bench
+ */
+public class ClusterBenchmark {
+	private static final int PINGS = 2000;
+	private static final int SENDERS = 8;
+	private static final int MESSAGES = 5000; // Per sender
+
+	/**
+	 * A client speaking the text framing.
+	 */
+	private static class ChatClient {
+		private Socket socket;
+		private BufferedReader in;
+		private OutputStream out;
+
+		private ChatClient(int port, String username, String password)
+				throws IOException {
+			this.socket = new Socket("127.0.0.1", port);
+			this.in = new BufferedReader(new InputStreamReader(
+					socket.getInputStream(), Utilities.CHARSET));
+			this.out = socket.getOutputStream();
+			in.readLine(); // Username prompt
+			write(username);
+			in.readLine(); // Password prompt
+			write(password);
+			String reply = in.readLine();
+			if (reply == null || !reply.contains("Welcome")) {
+				throw new IOException("could not log in " + username + ": "
+						+ reply);
+			}
+		}
+
+		private void write(String line) throws IOException {
+			out.write((line + "\n").getBytes(Utilities.CHARSET));
+		}
+
+		/**
+		 * @return the next line that is a chat message
+		 */
+		private String readMessage() throws IOException {
+			String line;
+			do {
+				line = in.readLine();
+				if (line == null) {
+					throw new IOException("connection closed");
+				}
+			} while (!line.contains(" says: "));
+			return line;
+		}
+
+		private void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Don't worry about it
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		File directory = File.createTempFile("cluster", "");
+		directory.delete();
+		directory.mkdirs();
+
+		PrintWriter writer = new PrintWriter(new File(directory,
+				"user_pass.txt"), "UTF-8");
+		for (int i = 0; i < 3 + 4 * SENDERS; i++) {
+			writer.println("user" + i + " password" + i);
+		}
+		writer.close();
+		writer = new PrintWriter(new File(directory, "cluster_secret.txt"),
+				"UTF-8");
+		writer.println("benchmark-cluster-secret");
+		writer.close();
+
+		int[] ports = freePorts(4);
+		String nodes = "a@127.0.0.1:" + ports[2] + ",b@127.0.0.1:" + ports[3];
+		List<Process> processes = new ArrayList<Process>();
+		try {
+			processes.add(startNode(directory, ports[0], "a", nodes));
+			processes.add(startNode(directory, ports[1], "b", nodes));
+			waitForPort(ports[0], processes.get(0));
+			waitForPort(ports[1], processes.get(1));
+
+			ChatClient sender = new ChatClient(ports[0], "user0", "password0");
+			ChatClient local = new ChatClient(ports[0], "user1", "password1");
+			ChatClient remote = new ChatClient(ports[1], "user2", "password2");
+			// Wait for the nodes to hear about each other's users
+			Thread.sleep(1000);
+
+			System.out.println("route       pings  p50 (ms)  p99 (ms)  max (ms)");
+			ping("same node", sender, local, "user1");
+			ping("cross node", sender, remote, "user2");
+			sender.close();
+			local.close();
+			remote.close();
+
+			System.out.println();
+			System.out.println("route       senders  messages  time (ms)  messages/s");
+			throughput("same node", ports[0], ports[0], 3);
+			throughput("cross node", ports[0], ports[1], 3 + 2 * SENDERS);
+		} finally {
+			for (Process process : processes) {
+				process.destroy();
+			}
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Sends one message at a time and waits for it to arrive.
+	 */
+	private static void ping(String route, ChatClient sender,
+			ChatClient receiver, String receiverName) throws IOException {
+		long[] times = new long[PINGS];
+		for (int i = 0; i < PINGS; i++) {
+			long start = System.nanoTime();
+			sender.write("message " + receiverName + " ping " + i);
+			receiver.readMessage();
+			times[i] = System.nanoTime() - start;
+			sender.in.readLine(); // Reply to the sender
+		}
+		Arrays.sort(times);
+		System.out.printf("%-10s  %5d  %8.3f  %8.3f  %8.3f%n", route, PINGS,
+				times[PINGS / 2] / 1e6, times[PINGS * 99 / 100] / 1e6,
+				times[PINGS - 1] / 1e6);
+	}
+
+	/**
+	 * Has every sender send its messages as fast as it can, each to a
+	 * receiver of its own, and waits for all of them to arrive.
+	 */
+	private static void throughput(String route, int senderPort,
+			int receiverPort, int firstUser) throws Exception {
+		ChatClient[] senders = new ChatClient[SENDERS];
+		final ChatClient[] receivers = new ChatClient[SENDERS];
+		for (int i = 0; i < SENDERS; i++) {
+			int user = firstUser + 2 * i;
+			senders[i] = new ChatClient(senderPort, "user" + user, "password"
+					+ user);
+			receivers[i] = new ChatClient(receiverPort, "user" + (user + 1),
+					"password" + (user + 1));
+		}
+		Thread.sleep(1000);
+
+		List<Thread> threads = new ArrayList<Thread>();
+		long start = System.nanoTime();
+		for (int i = 0; i < SENDERS; i++) {
+			final ChatClient sender = senders[i];
+			final ChatClient receiver = receivers[i];
+			final String receiverName = "user" + (firstUser + 2 * i + 1);
+			Thread send = new Thread() {
+				public void run() {
+					try {
+						StringBuilder batch = new StringBuilder();
+						for (int m = 0; m < MESSAGES; m++) {
+							batch.append("message ").append(receiverName)
+									.append(" hello ").append(m).append('\n');
+							if (batch.length() > 8192 || m == MESSAGES - 1) {
+								sender.out.write(batch.toString().getBytes(
+										Utilities.CHARSET));
+								batch.setLength(0);
+							}
+						}
+						// Replies to the sender
+						for (int m = 0; m < MESSAGES; m++) {
+							sender.in.readLine();
+						}
+					} catch (IOException e) {
+						System.out.println(e.getMessage());
+					}
+				}
+			};
+			Thread receive = new Thread() {
+				public void run() {
+					try {
+						for (int m = 0; m < MESSAGES; m++) {
+							receiver.readMessage();
+						}
+					} catch (IOException e) {
+						System.out.println(e.getMessage());
+					}
+				}
+			};
+			threads.add(send);
+			threads.add(receive);
+			send.start();
+			receive.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		long time = System.nanoTime() - start;
+
+		System.out.printf("%-10s  %7d  %8d  %9d  %10.0f%n", route, SENDERS,
+				SENDERS * MESSAGES, time / 1000000, SENDERS * MESSAGES
+						/ (time / 1e9));
+		for (int i = 0; i < SENDERS; i++) {
+			senders[i].close();
+			receivers[i].close();
+		}
+		Thread.sleep(500);
+	}
+
+	private static Process startNode(File directory, int port, String node,
+			String nodes) throws IOException {
+		// The node runs in another directory, so the class path must not be
+		// relative
+		StringBuilder classPath = new StringBuilder();
+		for (String entry : System.getProperty("java.class.path").split(
+				File.pathSeparator)) {
+			if (classPath.length() > 0) {
+				classPath.append(File.pathSeparator);
+			}
+			classPath.append(new File(entry).getAbsolutePath());
+		}
+		// Senders don't wait for their messages to arrive, so make room for
+		// all of them rather than spill them to lagging receivers
+		ProcessBuilder builder = new ProcessBuilder("java", "-cp", classPath
+				.toString(), "Server", String.valueOf(port), "--node=" + node,
+				"--cluster=" + nodes, "--outbox-capacity="
+						+ (2 * SENDERS * MESSAGES));
+		builder.directory(directory);
+		builder.redirectErrorStream(true);
+		builder.redirectOutput(new File(directory, "node-" + node + ".log"));
+		return builder.start();
+	}
+
+	private static int[] freePorts(int count) throws IOException {
+		ServerSocket[] sockets = new ServerSocket[count];
+		int[] ports = new int[count];
+		for (int i = 0; i < count; i++) {
+			sockets[i] = new ServerSocket(0);
+			ports[i] = sockets[i].getLocalPort();
+		}
+		for (ServerSocket socket : sockets) {
+			socket.close();
+		}
+		return ports;
+	}
+
+	private static void waitForPort(int port, Process process)
+			throws IOException, InterruptedException {
+		while (true) {
+			try {
+				new Socket("127.0.0.1", port).close();
+				return;
+			} catch (IOException e) {
+				try {
+					throw new IOException("node on port " + port
+							+ " exited with " + process.exitValue());
+				} catch (IllegalThreadStateException running) {
+					Thread.sleep(50);
+				}
+			}
+		}
+	}
+}
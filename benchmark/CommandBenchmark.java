@@ -0,0 +1,111 @@
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures the time and bytes allocated to work out the command, recipient
+ * and text of a line sent by a client, comparing the old parser (split the
+ * line, look the command up with valueOf and catch unknown commands, glue the
+ * text back together) with {@link CommandLine}.
+ *
+ * Run from the project root: make bench
+ */
+public class CommandBenchmark {
+	private static final int WARMUP = 1000000;
+	private static final int ITERATIONS = 5000000;
+	private static final String[] LINES = {
+			"message windows Hello there, how are you doing today? :)",
+			"broadcast Hello there everybody, how are you all doing today? :)" };
+
+	/**
+	 * Parses a line the way that is being measured.
+	 */
+	private interface Parser {
+		/**
+		 * @return something that depends on the whole result, so that the
+		 *         work can't be skipped
+		 */
+		int parse(String line);
+	}
+
+	public static void main(String[] args) {
+		Parser legacy = new Parser() {
+			public int parse(String line) {
+				String[] clientInputArray = line.split(" ");
+				Server.Command command;
+				try {
+					command = Server.Command.valueOf(clientInputArray[0]
+							.toUpperCase());
+				} catch (IllegalArgumentException e) {
+					return 0;
+				}
+
+				int first = command == Server.Command.MESSAGE ? 2 : 1;
+				String messageStr = clientInputArray[first];
+				for (int i = first + 1; i < clientInputArray.length; i++) {
+					messageStr += " " + clientInputArray[i];
+				}
+				return command.ordinal() + messageStr.length()
+						+ (first == 2 ? clientInputArray[1].length() : 0);
+			}
+		};
+		Parser commandLine = new Parser() {
+			public int parse(String line) {
+				CommandLine commandLine = new CommandLine(line);
+				Server.Command command = commandLine.getCommand();
+				if (command == null) {
+					return 0;
+				}
+
+				if (command == Server.Command.MESSAGE) {
+					return command.ordinal()
+							+ commandLine.getArgument().length()
+							+ commandLine.getTextAfterArgument().length();
+				}
+				return command.ordinal() + commandLine.getText().length();
+			}
+		};
+
+		System.out.println("command    before (ns)  after (ns)  before (bytes)  after (bytes)");
+		for (String line : LINES) {
+			long[] before = measure(legacy, line);
+			long[] after = measure(commandLine, line);
+			System.out.printf("%-9s  %11.1f  %10.1f  %14d  %13d%n",
+					line.substring(0, line.indexOf(' ')), before[0]
+							/ (double) ITERATIONS, after[0]
+							/ (double) ITERATIONS, before[1] / ITERATIONS,
+					after[1] / ITERATIONS);
+		}
+	}
+
+	/**
+	 * Parses a line a number of times and measures the time it takes and the
+	 * bytes allocated by the current thread.
+	 *
+	 * @param parser
+	 * @param line
+	 * @return total nanoseconds and bytes allocated
+	 */
+	private static long[] measure(Parser parser, String line) {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+
+		int sink = 0;
+		for (int i = 0; i < WARMUP; i++) {
+			sink += parser.parse(line);
+		}
+
+		long bytes = threads.getThreadAllocatedBytes(threadId);
+		long start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++) {
+			sink += parser.parse(line);
+		}
+		long time = System.nanoTime() - start;
+		bytes = threads.getThreadAllocatedBytes(threadId) - bytes;
+
+		if (sink == 42) {
+			// Never true, but the compiler can't tell
+			System.out.println();
+		}
+		return new long[] { time, bytes };
+	}
+}
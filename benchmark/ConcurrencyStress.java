@@ -0,0 +1,267 @@
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hammers the shared state of a {@link Server} from many threads at once: a
+ * few users log in and out on fresh connections over and over, racing each
+ * other for the same usernames, and send messages and broadcasts to each
+ * other while they are online. Checks that a user is never logged in on two
+ * connections at once, that nothing throws, and that everybody is offline
+ * and out of the {@link Presence} at the end. Also looks the same users up
+ * from many threads at once in a fresh {@link UserStore}, and checks that
+ * every thread gets the same {@link User} with its own id.
+ *
+ * Run from the project root: make stress
+ */
+public class ConcurrencyStress {
+	private static final int THREADS = 8;
+	private static final int USERS = 16;
+	private static final int DURATION = 5000; // Milliseconds
+	private static final int COMMANDS_PER_LOGIN = 4;
+
+	/**
+	 * Throws away everything written to it.
+	 */
+	private static final OutputStream NULL_STREAM = new OutputStream() {
+		public void write(int b) {
+		}
+
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+
+	/**
+	 * A {@link Connection} that counts the frames sent to it.
+	 */
+	private static class CountingConnection implements Connection {
+		private static final AtomicLong frames = new AtomicLong(0);
+
+		private String threadId;
+
+		private CountingConnection(String threadId) {
+			this.threadId = threadId;
+		}
+
+		public String getThreadId() {
+			return threadId;
+		}
+
+		public String getIpAddress() {
+			return "127.0.0.1";
+		}
+
+		public void print(String message) {
+			frames.incrementAndGet();
+		}
+
+		public void send(Frame frame) {
+			frames.incrementAndGet();
+		}
+
+		public int getPendingFrames() {
+			return 0;
+		}
+
+		public Outbox getOutbox() {
+			return null;
+		}
+
+		public void disconnect(String reason) {
+		}
+	}
+
+	private static final AtomicInteger failures = new AtomicInteger(0);
+
+	public static void main(String[] args) throws Exception {
+		File directory = File.createTempFile("stress", "");
+		directory.delete();
+		directory.mkdirs();
+
+		File users = new File(directory, "user_pass.txt");
+		PrintWriter writer = new PrintWriter(users, "UTF-8");
+		for (int i = 0; i < USERS; i++) {
+			writer.println("user" + i + " password" + i);
+		}
+		writer.close();
+
+		checkUserStore(users);
+		checkLogins(users, directory);
+
+		if (failures.get() > 0) {
+			System.out.println("FAILED: " + failures.get() + " failures");
+			System.exit(1);
+		}
+		System.out.println("passed");
+		System.exit(0);
+	}
+
+	private static void fail(String message) {
+		failures.incrementAndGet();
+		System.err.println(message);
+	}
+
+	/**
+	 * Looks every user up from every thread at once in a fresh
+	 * {@link UserStore}.
+	 */
+	private static void checkUserStore(File users) throws Exception {
+		final UserStore store = new UserStore(users.getPath(), new Presence());
+		final User[][] found = new User[THREADS][USERS];
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[THREADS];
+		for (int t = 0; t < THREADS; t++) {
+			final int thread = t;
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < USERS; i++) {
+						// Every thread in a different order
+						int user = (i + thread * 5) % USERS;
+						found[thread][user] = store.get("user" + user);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		Set<Integer> ids = new HashSet<Integer>();
+		for (int i = 0; i < USERS; i++) {
+			for (int t = 1; t < THREADS; t++) {
+				if (found[t][i] != found[0][i]) {
+					fail("user" + i + " was loaded twice");
+				}
+			}
+			int id = found[0][i].getId();
+			if (!ids.add(id) || id >= USERS || store.get(id) != found[0][i]) {
+				fail("user" + i + " has a bad id " + id);
+			}
+		}
+		System.out.println("user store: " + USERS + " users looked up by "
+				+ THREADS + " threads");
+	}
+
+	/**
+	 * Logs users in and out and sends messages from every thread at once.
+	 */
+	private static void checkLogins(File users, File directory)
+			throws Exception {
+		final Server server = new Server(users.getPath(), new File(directory,
+				"offline").getPath(), new File(directory, "blocks.dat")
+				.getPath());
+		final AtomicInteger[] holders = new AtomicInteger[USERS];
+		for (int i = 0; i < USERS; i++) {
+			holders[i] = new AtomicInteger(0);
+		}
+		final AtomicLong logins = new AtomicLong(0);
+		final AtomicLong rejected = new AtomicLong(0);
+		final AtomicLong commands = new AtomicLong(0);
+		final AtomicInteger connections = new AtomicInteger(0);
+		final long end = System.currentTimeMillis() + DURATION;
+
+		// The server logs every connection closed
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(NULL_STREAM));
+
+		Thread[] threads = new Thread[THREADS];
+		for (int t = 0; t < THREADS; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					Random random = new Random();
+					while (System.currentTimeMillis() < end) {
+						int user = random.nextInt(USERS);
+						String threadId = "thread-"
+								+ connections.incrementAndGet();
+						Connection connection = new CountingConnection(threadId);
+						server.addConnection(connection);
+						try {
+							if (!server.authenticateUser("user" + user,
+									"password" + user, connection)) {
+								fail("user" + user + " could not log in");
+							} else {
+								if (holders[user].incrementAndGet() != 1) {
+									fail("user" + user
+											+ " is logged in twice");
+								}
+								logins.incrementAndGet();
+								for (int i = 0; i < COMMANDS_PER_LOGIN; i++) {
+									server.processClientInput(
+											command(random), connection);
+									commands.incrementAndGet();
+								}
+								holders[user].decrementAndGet();
+							}
+						} catch (User.UserAlreadyLoggedInException e) {
+							rejected.incrementAndGet();
+						} catch (User.IpAddressBlockedException e) {
+							fail("blocked after a right password");
+						} catch (RuntimeException e) {
+							fail(e.toString());
+							e.printStackTrace();
+						}
+						server.removeServerThread(threadId);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		// Everybody has logged out, so everybody can log in again and nobody
+		// else is online
+		for (int i = 0; i < USERS; i++) {
+			String threadId = "check-" + i;
+			Connection connection = new CountingConnection(threadId);
+			server.addConnection(connection);
+			try {
+				if (!server.authenticateUser("user" + i, "password" + i,
+						connection)) {
+					fail("user" + i + " could not log in");
+				} else if (!server.processClientInput("whoelse", connection)
+						.startsWith("Nobody else")) {
+					fail("users left online with user" + i);
+				}
+			} catch (User.UserAlreadyLoggedInException e) {
+				fail("user" + i + " is still online");
+			} catch (User.IpAddressBlockedException e) {
+				fail("blocked after a right password");
+			}
+			server.removeServerThread(threadId);
+		}
+		System.setOut(out);
+
+		System.out.println("logins: " + logins.get()
+				+ " logged in, " + rejected.get()
+				+ " rejected as already logged in, " + commands.get()
+				+ " commands, " + CountingConnection.frames.get()
+				+ " frames sent");
+	}
+
+	private static String command(Random random) {
+		switch (random.nextInt(4)) {
+		case 0:
+			return "broadcast hello everybody";
+		case 1:
+			return "whoelse";
+		default:
+			return "message user" + random.nextInt(USERS) + " hello there";
+		}
+	}
+}
@@ -0,0 +1,279 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs micro benchmarks the way JMH does, without needing JMH: every
+ * benchmark is warmed up for a few iterations and then measured for some
+ * more, each of a fixed time, and reported as the mean time per operation
+ * with its 99.9% confidence interval. Also reports the bytes allocated and the
+ * garbage collections per operation, counting every thread so that work
+ * handed to other threads (such as the {@link Shard}s) is included.
+ *
+ * Results can be saved to a baseline file and compared with later runs.
+ * They are printed to the standard output as it was when the harness was
+ * created, so the code being measured can be silenced.
+ */
+public class Harness {
+	public static final int WARMUP_ITERATIONS = 5;
+	public static final int ITERATIONS = 10;
+	public static final int ITERATION_TIME = 200; // Milliseconds
+
+	/**
+	 * Student's t for a 99.9% confidence interval with
+	 * <code>ITERATIONS - 1</code> degrees of freedom
+	 */
+	private static final double T_999 = 4.781;
+
+	/**
+	 * Operations are timed in batches that take about this long, so that
+	 * reading the clock doesn't count
+	 */
+	private static final long BATCH_TIME = 1000000; // Nanoseconds
+
+	/**
+	 * One operation of a benchmark.
+	 */
+	public interface Operation {
+		/**
+		 * @return something that depends on the work, so that it can't be
+		 *         skipped
+		 * @throws Exception
+		 */
+		Object run() throws Exception;
+	}
+
+	/**
+	 * Measurements of a benchmark.
+	 */
+	public static class Result {
+		private String name;
+		private double time; // Nanoseconds per operation
+		private double error; // Nanoseconds per operation
+		private double bytes; // Per operation
+		private long collections;
+		private long collectionTime; // Milliseconds
+
+		private Result(String name, double time, double error, double bytes,
+				long collections, long collectionTime) {
+			this.name = name;
+			this.time = time;
+			this.error = error;
+			this.bytes = bytes;
+			this.collections = collections;
+			this.collectionTime = collectionTime;
+		}
+	}
+
+	/**
+	 * Where results go so that they can't be optimized away
+	 */
+	private static Object sink;
+
+	private static final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+			.getThreadMXBean();
+
+	private PrintStream out;
+	private Map<String, Result> baseline;
+	private List<Result> results;
+
+	/**
+	 * @param baselinePath
+	 *            file with earlier results to compare with, which need not
+	 *            exist
+	 * @throws IOException
+	 */
+	public Harness(String baselinePath) throws IOException {
+		this.out = System.out;
+		this.baseline = load(baselinePath);
+		this.results = new ArrayList<Result>();
+		out.printf("%-44s %12s %10s %12s %6s %8s %8s%n", "benchmark",
+				"ns/op", "error", "B/op", "gcs", "gc (ms)", "baseline");
+	}
+
+	/**
+	 * Measures a benchmark and prints the result.
+	 *
+	 * @param name
+	 * @param operation
+	 * @throws Exception
+	 *             whatever the operation throws
+	 */
+	public void run(String name, Operation operation) throws Exception {
+		// Find a batch size that takes about BATCH_TIME
+		long batch = 1;
+		while (true) {
+			long start = System.nanoTime();
+			for (long i = 0; i < batch; i++) {
+				sink = operation.run();
+			}
+			if (System.nanoTime() - start >= BATCH_TIME
+					|| batch >= 1 << 24) {
+				break;
+			}
+			batch *= 2;
+		}
+
+		for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+			iteration(operation, batch);
+		}
+
+		long[] threadIds = threads.getAllThreadIds();
+		long bytesBefore = sum(threads.getThreadAllocatedBytes(threadIds));
+		long collectionsBefore = 0;
+		long collectionTimeBefore = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory
+				.getGarbageCollectorMXBeans()) {
+			collectionsBefore += gc.getCollectionCount();
+			collectionTimeBefore += gc.getCollectionTime();
+		}
+
+		double[] times = new double[ITERATIONS];
+		long operations = 0;
+		for (int i = 0; i < ITERATIONS; i++) {
+			long[] measured = iteration(operation, batch);
+			times[i] = (double) measured[0] / measured[1];
+			operations += measured[1];
+		}
+
+		long bytes = sum(threads.getThreadAllocatedBytes(threadIds))
+				- bytesBefore;
+		long collections = -collectionsBefore;
+		long collectionTime = -collectionTimeBefore;
+		for (GarbageCollectorMXBean gc : ManagementFactory
+				.getGarbageCollectorMXBeans()) {
+			collections += gc.getCollectionCount();
+			collectionTime += gc.getCollectionTime();
+		}
+
+		double mean = 0;
+		for (double time : times) {
+			mean += time;
+		}
+		mean /= ITERATIONS;
+		double variance = 0;
+		for (double time : times) {
+			variance += (time - mean) * (time - mean);
+		}
+		variance /= ITERATIONS - 1;
+		double error = T_999 * Math.sqrt(variance / ITERATIONS);
+
+		Result result = new Result(name, mean, error, (double) bytes
+				/ operations, collections, collectionTime);
+		results.add(result);
+		print(result);
+	}
+
+	/**
+	 * Runs batches of operations for <code>ITERATION_TIME</code>.
+	 *
+	 * @return nanoseconds taken and operations run
+	 */
+	private static long[] iteration(Operation operation, long batch)
+			throws Exception {
+		long operations = 0;
+		long start = System.nanoTime();
+		long end = start + ITERATION_TIME * 1000000L;
+		long now;
+		do {
+			for (long i = 0; i < batch; i++) {
+				sink = operation.run();
+			}
+			operations += batch;
+			now = System.nanoTime();
+		} while (now < end);
+		return new long[] { now - start, operations };
+	}
+
+	private void print(Result result) {
+		Result before = baseline.get(result.name);
+		String change = before == null ? "" : String.format("%+7.1f%%",
+				(result.time - before.time) * 100 / before.time);
+		out.printf("%-44s %12.1f %10.1f %12.1f %6d %8d %8s%n",
+				result.name, result.time, result.error, result.bytes,
+				result.collections, result.collectionTime, change);
+	}
+
+	/**
+	 * Saves every result measured so far as the new baseline.
+	 *
+	 * @param baselinePath
+	 * @throws IOException
+	 */
+	public void save(String baselinePath) throws IOException {
+		PrintWriter writer = new PrintWriter(baselinePath, "UTF-8");
+		try {
+			writer.println("# benchmark\tns/op\terror\tB/op\tgcs\tgc (ms)");
+			writer.println("# " + System.getProperty("java.vm.name") + " "
+					+ System.getProperty("java.version") + ", "
+					+ Runtime.getRuntime().availableProcessors() + " cores");
+			for (Result result : results) {
+				writer.printf("%s\t%.1f\t%.1f\t%.1f\t%d\t%d%n", result.name,
+						result.time, result.error, result.bytes,
+						result.collections, result.collectionTime);
+			}
+		} finally {
+			writer.close();
+		}
+		out.println("saved " + results.size() + " results to "
+				+ baselinePath);
+	}
+
+	/**
+	 * @param baselinePath
+	 * @return results by name, or none if the file doesn't exist
+	 * @throws IOException
+	 */
+	private static Map<String, Result> load(String baselinePath)
+			throws IOException {
+		Map<String, Result> results = new LinkedHashMap<String, Result>();
+		if (!new File(baselinePath).isFile()) {
+			return results;
+		}
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(baselinePath), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t");
+				if (line.startsWith("#") || fields.length < 6) {
+					continue;
+				}
+				results.put(fields[0], new Result(fields[0], Double
+						.parseDouble(fields[1]), Double.parseDouble(fields[2]),
+						Double.parseDouble(fields[3]), Long
+								.parseLong(fields[4]), Long
+								.parseLong(fields[5])));
+			}
+		} finally {
+			reader.close();
+		}
+		return results;
+	}
+
+	/**
+	 * @param bytes
+	 *            bytes allocated by each thread, or -1 for a thread that is
+	 *            gone
+	 * @return bytes allocated by all threads
+	 */
+	private static long sum(long[] bytes) {
+		long sum = 0;
+		for (long b : bytes) {
+			if (b > 0) {
+				sum += b;
+			}
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,187 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Logs a crowd of users in at once, as happens right after a restart, against
+ * a {@link Server} whose passwords are all hashed. While the logins are being
+ * checked, a user who is already logged in keeps sending commands, to show
+ * that connections stay responsive because the hashing happens on the
+ * {@link Authenticator}'s workers.
+ *
+ * Run from the project root: make bench
+ */
+public class LoginStormBenchmark {
+	private static final int USERS = 200;
+	private static final int ITERATIONS = 10000; // PBKDF2 iterations
+	private static final Server.Engine[] ENGINES = { Server.Engine.NIO,
+			Server.Engine.THREAD };
+
+	/**
+	 * A client speaking the text framing.
+	 */
+	private static class LoginClient {
+		private Socket socket;
+		private BufferedReader in;
+		private OutputStream out;
+
+		private LoginClient(int port) throws IOException {
+			this.socket = new Socket("127.0.0.1", port);
+			this.in = new BufferedReader(new InputStreamReader(
+					socket.getInputStream(), Utilities.CHARSET));
+			this.out = socket.getOutputStream();
+			in.readLine(); // Username prompt
+		}
+
+		/**
+		 * @return the message sent back
+		 */
+		private String send(String line) throws IOException {
+			out.write((line + "\n").getBytes(Utilities.CHARSET));
+			return in.readLine();
+		}
+
+		/**
+		 * Logs in, trying again while the server is too busy.
+		 *
+		 * @return number of times the server was too busy
+		 */
+		private int login(String username, String password) throws IOException {
+			int busy = 0;
+			while (true) {
+				send(username);
+				String reply = send(password);
+				if (reply.contains("Welcome")) {
+					return busy;
+				}
+				if (!reply.contains("busy")) {
+					throw new IOException("could not log in " + username
+							+ ": " + reply);
+				}
+				busy++;
+			}
+		}
+
+		private void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Don't worry about it
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		File directory = File.createTempFile("login-storm", "");
+		directory.delete();
+		directory.mkdirs();
+
+		// Users with hashed passwords, plus one to probe with
+		System.out.println("hashing " + (USERS + 1) + " passwords...");
+		File users = new File(directory, "user_pass.txt");
+		PrintWriter writer = new PrintWriter(users, "UTF-8");
+		writer.println("probe " + PasswordHash.hash("probe", ITERATIONS));
+		for (int i = 0; i < USERS; i++) {
+			writer.println("user" + i + " "
+					+ PasswordHash.hash("password" + i, ITERATIONS));
+		}
+		writer.close();
+
+		System.out.println("engine  logins  time (ms)  logins/s  busy  probes  probe p50 (ms)  probe max (ms)");
+		for (Server.Engine engine : ENGINES) {
+			run(engine, users, new File(directory, "offline-" + engine));
+		}
+		System.exit(0);
+	}
+
+	private static void run(final Server.Engine engine, File users,
+			File offline) throws Exception {
+		final Server server = new Server(users.getPath(), offline.getPath());
+		ServerSocket free = new ServerSocket(0);
+		final int port = free.getLocalPort();
+		free.close();
+		Thread serverThread = new Thread() {
+			public void run() {
+				server.start(port, engine);
+			}
+		};
+		serverThread.setDaemon(true);
+		serverThread.start();
+
+		// Wait for the server and log the probe in
+		LoginClient probe = null;
+		while (probe == null) {
+			try {
+				probe = new LoginClient(port);
+			} catch (IOException e) {
+				Thread.sleep(50);
+			}
+		}
+		probe.login("probe", "probe");
+
+		// Everybody logs in at once
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(USERS);
+		final AtomicInteger busy = new AtomicInteger(0);
+		final List<LoginClient> clients = new ArrayList<LoginClient>();
+		for (int i = 0; i < USERS; i++) {
+			final int user = i;
+			new Thread() {
+				public void run() {
+					try {
+						LoginClient client = new LoginClient(port);
+						synchronized (clients) {
+							clients.add(client);
+						}
+						start.await();
+						busy.addAndGet(client.login("user" + user, "password"
+								+ user));
+					} catch (Exception e) {
+						System.out.println(e.getMessage());
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+
+		long startTime = System.nanoTime();
+		start.countDown();
+
+		// Probe while the logins are being checked
+		long[] probes = new long[1024];
+		int probeCount = 0;
+		while (done.getCount() > 0) {
+			long probeStart = System.nanoTime();
+			probe.send("whoelse");
+			if (probeCount == probes.length) {
+				probes = Arrays.copyOf(probes, probeCount * 2);
+			}
+			probes[probeCount++] = System.nanoTime() - probeStart;
+		}
+		done.await();
+		long time = System.nanoTime() - startTime;
+
+		Arrays.sort(probes, 0, probeCount);
+		System.out.printf("%-6s  %6d  %9d  %8.0f  %4d  %6d  %14.2f  %14.2f%n",
+				engine.toString().toLowerCase(), USERS, time / 1000000,
+				USERS / (time / 1e9), busy.get(), probeCount,
+				probeCount == 0 ? 0 : probes[probeCount / 2] / 1e6,
+				probeCount == 0 ? 0 : probes[probeCount - 1] / 1e6);
+
+		probe.close();
+		for (LoginClient client : clients) {
+			client.close();
+		}
+	}
+}
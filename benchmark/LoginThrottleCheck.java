@@ -0,0 +1,100 @@
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Floods a {@link LoginThrottle} with failed logins from more ip addresses
+ * than a stripe can hold, and checks that the flood neither blocks anybody
+ * who hasn't earned it nor lifts a block early.
+ *
+ * Run from the project root: make stress
+ */
+public class LoginThrottleCheck {
+	private static final int FLOOD = 10 * LoginThrottle.MAX_STRIPE_SIZE;
+
+	private static final AtomicInteger failures = new AtomicInteger(0);
+
+	public static void main(String[] args) {
+		checkFullStripe();
+		checkBlockSurvivesFlood();
+
+		if (failures.get() > 0) {
+			System.out.println("FAILED: " + failures.get() + " failures");
+			System.exit(1);
+		}
+		System.out.println("passed");
+		System.exit(0);
+	}
+
+	private static void fail(String message) {
+		failures.incrementAndGet();
+		System.err.println(message);
+	}
+
+	/**
+	 * Fills the only stripe with addresses that fail once each, and checks
+	 * that a new address failing once is not blocked.
+	 */
+	private static void checkFullStripe() {
+		LoginThrottle throttle = new LoginThrottle(1);
+		flood(throttle, "10.0.");
+
+		int seconds = throttle.loginFailed("192.168.0.1", "user0", true);
+		if (seconds != 0) {
+			fail("first failure of a new address after a flood was blocked for "
+					+ seconds + " seconds");
+		}
+		if (throttle.getSecondsBlocked("192.168.0.1", "user0") != 0) {
+			fail("new address is blocked after one failure");
+		}
+		if (throttle.loginSucceeded("192.168.0.2", "user0") != 0) {
+			fail("right password from a new address was blocked");
+		}
+	}
+
+	/**
+	 * Blocks a user at an address and an address as anybody, floods the only
+	 * stripe, and checks that both are still blocked.
+	 */
+	private static void checkBlockSurvivesFlood() {
+		LoginThrottle throttle = new LoginThrottle(1);
+		for (int i = 0; i <= LoginThrottle.MAX_LOGIN_ATTEMPTS; i++) {
+			throttle.loginFailed("192.168.0.1", "user0", true);
+		}
+		for (int i = 0; i <= LoginThrottle.MAX_IP_ADDRESS_ATTEMPTS; i++) {
+			throttle.loginFailed("192.168.0.2", "user" + i, false);
+		}
+		if (throttle.getSecondsBlocked("192.168.0.1", "user0") == 0
+				|| throttle.getSecondsBlocked("192.168.0.2", "user0") == 0) {
+			fail("not blocked after too many failures");
+			return;
+		}
+
+		flood(throttle, "10.1.");
+
+		if (throttle.getSecondsBlocked("192.168.0.1", "user0") == 0) {
+			fail("flood lifted the block of a user at an address");
+		}
+		if (throttle.getSecondsBlocked("192.168.0.2", "user1") == 0) {
+			fail("flood lifted the block of an address");
+		}
+	}
+
+	/**
+	 * Fails one login as an existing user from each of many addresses.
+	 *
+	 * @param throttle
+	 * @param prefix
+	 *            of the addresses
+	 */
+	private static void flood(LoginThrottle throttle, String prefix) {
+		for (int i = 0; i < FLOOD; i++) {
+			String ipAddress = prefix + (i >> 8 & 0xff) + "." + (i & 0xff)
+					+ "." + (i >> 16);
+			int seconds = throttle.loginFailed(ipAddress, "user" + i, true);
+			if (seconds != 0) {
+				fail("first failure of " + ipAddress + " was blocked for "
+						+ seconds + " seconds");
+				return;
+			}
+		}
+	}
+}
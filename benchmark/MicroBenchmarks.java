@@ -0,0 +1,265 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+
+/**
+ * Micro benchmarks of the hot paths of the {@link Server}, run with the
+ * {@link Harness}: encoding and decoding messages, processing every
+ * {@link Server.Command}, fanning a message out to more and more recipients,
+ * and logging in. Compares the results with benchmark/baseline.txt, or saves
+ * them there with --save.
+ *
+ * Run from the project root: make microbench
+ */
+public class MicroBenchmarks {
+	private static final String BASELINE_PATH = "benchmark/baseline.txt";
+	private static final int COMMAND_USERS = 64; // Online
+	private static final int[] RECIPIENTS = { 1, 10, 100, 1000, 10000 };
+	private static final int HASH_ITERATIONS = 10000; // PBKDF2 iterations
+	private static final String TEXT = "Hello there, how are you doing today? :)";
+
+	/**
+	 * Throws away everything written to it.
+	 */
+	private static final OutputStream NULL_STREAM = new OutputStream() {
+		public void write(int b) {
+		}
+
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+
+	/**
+	 * A {@link Connection} that encodes every frame sent to it and writes it
+	 * to nowhere.
+	 */
+	private static class NullConnection implements Connection {
+		private String threadId;
+
+		private NullConnection(String threadId) {
+			this.threadId = threadId;
+		}
+
+		public String getThreadId() {
+			return threadId;
+		}
+
+		public String getIpAddress() {
+			return "127.0.0.1";
+		}
+
+		public void print(String message) {
+			send(new Frame("Command", message));
+		}
+
+		public void send(Frame frame) {
+			try {
+				frame.writeTo(NULL_STREAM, false);
+			} catch (IOException e) {
+				Utilities.error(e.getMessage());
+			}
+		}
+
+		public int getPendingFrames() {
+			return 0;
+		}
+
+		public Outbox getOutbox() {
+			return null;
+		}
+
+		public void disconnect(String reason) {
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		boolean save = false;
+		for (String arg : args) {
+			if (arg.equals("--save")) {
+				save = true;
+			} else {
+				Utilities.error("usage: java MicroBenchmarks [--save]");
+			}
+		}
+
+		File directory = File.createTempFile("microbench", "");
+		directory.delete();
+		directory.mkdirs();
+
+		Harness harness = new Harness(BASELINE_PATH);
+
+		// The server logs every connection
+		System.setOut(new PrintStream(NULL_STREAM));
+
+		codec(harness);
+		commands(harness, directory);
+		fanOut(harness, directory);
+		login(harness, directory);
+
+		if (save) {
+			harness.save(BASELINE_PATH);
+		}
+		System.exit(0);
+	}
+
+	private static void codec(Harness harness) throws Exception {
+		final String message = "foobar says: " + TEXT + "\n\n";
+		final String encoded = Utilities.encodeMessage("Command", message);
+		harness.run("Utilities.encodeMessage", new Harness.Operation() {
+			public Object run() {
+				return Utilities.encodeMessage("Command", message);
+			}
+		});
+		harness.run("Utilities.decodeMessage", new Harness.Operation() {
+			public Object run() {
+				return Utilities.decodeMessage(encoded);
+			}
+		});
+	}
+
+	/**
+	 * Every command, sent by a user while a few others are online. Messages
+	 * and broadcasts are timed until the shards have delivered them.
+	 */
+	private static void commands(Harness harness, File directory)
+			throws Exception {
+		final Server server = start(new File(directory, "commands"),
+				COMMAND_USERS, null);
+		final Connection connection = new NullConnection("thread-0");
+
+		command(harness, server, connection, "WHOELSE", "whoelse", false);
+		command(harness, server, connection, "WHOLASTHR", "wholasthr", false);
+		command(harness, server, connection, "BROADCAST", "broadcast "
+				+ TEXT, true);
+		command(harness, server, connection, "MESSAGE", "message user1 "
+				+ TEXT, true);
+		command(harness, server, connection, "LOGOUT", "logout", false);
+
+		// Blocking the same user again changes nothing, so block and unblock
+		// in turn
+		harness.run("processClientInput BLOCK + UNBLOCK",
+				new Harness.Operation() {
+					public Object run() {
+						server.processClientInput("block user1", connection);
+						return server.processClientInput("unblock user1",
+								connection);
+					}
+				});
+	}
+
+	private static void command(Harness harness, final Server server,
+			final Connection connection, String name, final String line,
+			final boolean delivered) throws Exception {
+		harness.run("processClientInput " + name, new Harness.Operation() {
+			public Object run() throws InterruptedException {
+				String reply = server.processClientInput(line, connection);
+				if (delivered) {
+					server.awaitDelivery(Long.MAX_VALUE);
+				}
+				return reply;
+			}
+		});
+	}
+
+	/**
+	 * A broadcast to more and more online users, timed until the shards have
+	 * delivered it.
+	 */
+	private static void fanOut(Harness harness, File directory)
+			throws Exception {
+		final Server server = start(new File(directory, "fanout"), 0, null);
+		Presence presence = new Presence();
+		int users = RECIPIENTS[RECIPIENTS.length - 1];
+		final User sender = new User(users, "sender", "password", presence);
+		User[] online = new User[users];
+		for (int i = 0; i < users; i++) {
+			String threadId = "thread-" + i;
+			online[i] = new User(i, "user" + i, "password", presence);
+			online[i].setOnline(threadId);
+			server.addConnection(new NullConnection(threadId));
+		}
+
+		for (int recipients : RECIPIENTS) {
+			final User[] toUsers = new User[recipients];
+			System.arraycopy(online, 0, toUsers, 0, recipients);
+			harness.run("sendMessage to " + recipients,
+					new Harness.Operation() {
+						public Object run() throws InterruptedException {
+							Message message = new Message(TEXT, sender,
+									toUsers, true);
+							server.sendMessage(message);
+							server.awaitDelivery(Long.MAX_VALUE);
+							return message;
+						}
+					});
+		}
+	}
+
+	/**
+	 * Logging in and out with a plain and with a hashed password.
+	 */
+	private static void login(Harness harness, File directory)
+			throws Exception {
+		Server plain = start(new File(directory, "plain"), 0, null);
+		Server hashed = start(new File(directory, "hashed"), 0,
+				PasswordHash.hash("password0", HASH_ITERATIONS));
+		login(harness, plain, "authenticateUser plain");
+		login(harness, hashed, "authenticateUser hashed (" + HASH_ITERATIONS
+				+ " iterations)");
+	}
+
+	private static void login(Harness harness, final Server server, String name)
+			throws Exception {
+		harness.run(name, new Harness.Operation() {
+			private int next = 0;
+
+			public Object run() throws Exception {
+				Connection connection = new NullConnection("login-" + next++);
+				server.addConnection(connection);
+				boolean loggedIn = server.authenticateUser("user0",
+						"password0", connection);
+				server.removeServerThread(connection.getThreadId());
+				return loggedIn;
+			}
+		});
+	}
+
+	/**
+	 * Starts a server without listening, with users user0, user1... and logs
+	 * some of them in.
+	 *
+	 * @param directory
+	 * @param online
+	 *            number of users to log in
+	 * @param password
+	 *            stored password of user0, or <code>null</code> for the
+	 *            usual plain one
+	 */
+	private static Server start(File directory, int online, String password)
+			throws Exception {
+		directory.mkdirs();
+		File users = new File(directory, "user_pass.txt");
+		PrintWriter writer = new PrintWriter(users, "UTF-8");
+		for (int i = 0; i < Math.max(online, 2); i++) {
+			writer.println("user" + i + " "
+					+ (i == 0 && password != null ? password : "password" + i));
+		}
+		writer.close();
+
+		Server server = new Server(users.getPath(), new File(directory,
+				"offline").getPath(), new File(directory, "blocks.dat")
+				.getPath());
+		for (int i = 0; i < online; i++) {
+			Connection connection = new NullConnection("thread-" + i);
+			server.addConnection(connection);
+			if (!server.authenticateUser("user" + i, "password" + i,
+					connection)) {
+				throw new IllegalStateException("user" + i
+						+ " could not log in");
+			}
+		}
+		return server;
+	}
+}
@@ -0,0 +1,175 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.Random;
+
+/**
+ * Measures how delivering messages scales with the number of {@link Shard}s.
+ * Logs a few hundred users in on connections that encode every frame they
+ * get, has some of them send broadcasts and messages from threads of their
+ * own as fast as they can, and waits until the shards have delivered
+ * everything. The same run is repeated with 1, 2, 4... shards, up to the
+ * number of cores (and at least 4, so the curve has a shape on small
+ * machines too).
+ *
+ * Run from the project root: make bench
+ */
+public class ShardBenchmark {
+	private static final int USERS = 512;
+	private static final int BROADCASTS = 1000; // Per sender
+	private static final int MESSAGES = 50000; // Per sender
+	private static final int ROUNDS = 3; // Best of
+
+	/**
+	 * Throws away everything written to it.
+	 */
+	private static final OutputStream NULL_STREAM = new OutputStream() {
+		public void write(int b) {
+		}
+
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+
+	/**
+	 * A {@link Connection} that writes frames to nowhere.
+	 */
+	private static class NullConnection implements Connection {
+		private String threadId;
+
+		private NullConnection(String threadId) {
+			this.threadId = threadId;
+		}
+
+		public String getThreadId() {
+			return threadId;
+		}
+
+		public String getIpAddress() {
+			return "127.0.0.1";
+		}
+
+		public void print(String message) {
+			send(new Frame("Command", message));
+		}
+
+		public void send(Frame frame) {
+			try {
+				frame.writeTo(NULL_STREAM, false);
+			} catch (IOException e) {
+				Utilities.error(e.getMessage());
+			}
+		}
+
+		public int getPendingFrames() {
+			return 0;
+		}
+
+		public Outbox getOutbox() {
+			return null;
+		}
+
+		public void disconnect(String reason) {
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int cores = Runtime.getRuntime().availableProcessors();
+		int maxShards = Math.max(cores, 4);
+
+		File directory = File.createTempFile("shards", "");
+		directory.delete();
+		directory.mkdirs();
+		File users = new File(directory, "user_pass.txt");
+		PrintWriter writer = new PrintWriter(users, "UTF-8");
+		for (int i = 0; i < USERS; i++) {
+			writer.println("user" + i + " password" + i);
+		}
+		writer.close();
+
+		// Warm up, so the first row isn't slowed down by the compiler
+		Server warmup = login(users, new File(directory, "warmup"), maxShards);
+		run(warmup, maxShards, BROADCASTS, true);
+		run(warmup, maxShards, MESSAGES, false);
+
+		System.out.println(cores + " cores, " + maxShards + " senders, "
+				+ USERS + " users online");
+		System.out.println("shards  broadcast deliveries/s  messages/s");
+		for (int shards = 1; shards <= maxShards; shards *= 2) {
+			double broadcasts = 0;
+			double messages = 0;
+			for (int round = 0; round < ROUNDS; round++) {
+				File run = new File(directory, shards + "-" + round);
+				Server server = login(users, run, shards);
+				broadcasts = Math.max(broadcasts, run(server, maxShards,
+						BROADCASTS, true) * (USERS - 1));
+				messages = Math.max(messages, run(server, maxShards,
+						MESSAGES, false));
+			}
+			System.out.printf("%6d  %22.0f  %10.0f%n", shards, broadcasts,
+					messages);
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Starts a server with fresh offline messages and logs every user in.
+	 */
+	private static Server login(File users, File directory, int shards)
+			throws Exception {
+		// The server logs every connection
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(NULL_STREAM));
+		try {
+			Server server = new Server(users.getPath(), new File(directory,
+					"offline").getPath(), new File(directory, "blocks.dat")
+					.getPath(), shards);
+			for (int i = 0; i < USERS; i++) {
+				Connection connection = new NullConnection("thread-" + i);
+				server.addConnection(connection);
+				if (!server.authenticateUser("user" + i, "password" + i,
+						connection)) {
+					throw new IllegalStateException("user" + i
+							+ " could not log in");
+				}
+			}
+			return server;
+		} finally {
+			System.setOut(out);
+		}
+	}
+
+	/**
+	 * Has every sender send its commands as fast as it can, and waits until
+	 * the shards have delivered them.
+	 *
+	 * @return commands sent per second
+	 */
+	private static double run(final Server server, int senders,
+			final int commands, final boolean broadcast) throws Exception {
+		Thread[] threads = new Thread[senders];
+		long start = System.nanoTime();
+		for (int t = 0; t < senders; t++) {
+			final Connection connection = new NullConnection("thread-" + t);
+			threads[t] = new Thread() {
+				public void run() {
+					Random random = new Random();
+					for (int i = 0; i < commands; i++) {
+						server.processClientInput(broadcast ? "broadcast hello"
+								: "message user" + random.nextInt(USERS)
+										+ " hello", connection);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		server.awaitDelivery(Long.MAX_VALUE);
+		long time = System.nanoTime() - start;
+		return (double) senders * commands / (time / 1e9);
+	}
+}